@@ -33,6 +33,7 @@ import java.lang.annotation.Target;
  * value - service name
  * environment - service environment
  * version - service version
+ * loadBalancer - name of the load balancing strategy, empty for configured default
  */
 @Qualifier
 @Retention(RetentionPolicy.RUNTIME)
@@ -43,4 +44,6 @@ public @interface DiscoverService {
     @Nonbinding String environment() default "dev";
 
     @Nonbinding String version() default "1.0.0";
+
+    @Nonbinding String loadBalancer() default "";
 }
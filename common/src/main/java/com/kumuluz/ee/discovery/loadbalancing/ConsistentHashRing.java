@@ -0,0 +1,218 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.loadbalancing;
+
+import java.net.URL;
+import java.util.*;
+
+/**
+ * Immutable consistent hash ring of service instances.
+ * <p>
+ * Each instance is placed on the ring with a number of virtual nodes. A key is mapped to the first virtual node
+ * following the hash of the key, so adding or removing an instance only remaps keys of that instance. When instances
+ * change, {@link #rebuild(List)} reuses the points of the remaining instances and hashes only the added ones.
+ */
+public final class ConsistentHashRing {
+
+    private static final int POINTS_PER_INSTANCE = 160;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private final String[] urls;
+    private final long[] points;
+    private final int[] owners;
+
+    private ConsistentHashRing(String[] urls, long[] points, int[] owners) {
+        this.urls = urls;
+        this.points = points;
+        this.owners = owners;
+    }
+
+    /**
+     * Builds a new ring.
+     *
+     * @param instances service instances
+     * @return ring of the instances
+     */
+    public static ConsistentHashRing build(List<URL> instances) {
+        return new ConsistentHashRing(new String[0], new long[0], new int[0]).rebuild(instances);
+    }
+
+    /**
+     * Builds a ring of the given instances, reusing points of instances, which are present in this ring.
+     *
+     * @param instances service instances
+     * @return ring of the instances
+     */
+    public ConsistentHashRing rebuild(List<URL> instances) {
+
+        String[] newUrls = new String[instances.size()];
+        Map<String, Integer> newIndexes = new HashMap<>();
+        for (int i = 0; i < newUrls.length; i++) {
+            newUrls[i] = instances.get(i).toString();
+            newIndexes.putIfAbsent(newUrls[i], i);
+        }
+
+        // keep points of remaining instances, remapped to their new indexes
+        long[] newPoints = new long[points.length];
+        int[] newOwners = new int[owners.length];
+        int length = 0;
+        Set<String> retainedUrls = new HashSet<>();
+        for (int i = 0; i < points.length; i++) {
+            Integer newIndex = newIndexes.get(urls[owners[i]]);
+            if (newIndex != null) {
+                newPoints[length] = points[i];
+                newOwners[length] = newIndex;
+                length++;
+                retainedUrls.add(urls[owners[i]]);
+            }
+        }
+
+        // merge points of added instances pairwise, so adding n instances takes O(n log n) merges of points
+        List<Points> runs = new ArrayList<>();
+        runs.add(new Points(newPoints, newOwners, length));
+        for (Map.Entry<String, Integer> instance : newIndexes.entrySet()) {
+            if (retainedUrls.contains(instance.getKey())) {
+                continue;
+            }
+
+            long[] instancePoints = getInstancePoints(instance.getKey());
+            int[] instanceOwners = new int[instancePoints.length];
+            Arrays.fill(instanceOwners, instance.getValue());
+            runs.add(new Points(instancePoints, instanceOwners, instancePoints.length));
+        }
+
+        while (runs.size() > 1) {
+            List<Points> merged = new ArrayList<>((runs.size() + 1) / 2);
+            for (int i = 0; i + 1 < runs.size(); i += 2) {
+                merged.add(Points.merge(runs.get(i), runs.get(i + 1)));
+            }
+            if (runs.size() % 2 == 1) {
+                merged.add(runs.get(runs.size() - 1));
+            }
+            runs = merged;
+        }
+
+        Points ring = runs.get(0);
+
+        return new ConsistentHashRing(newUrls, Arrays.copyOf(ring.points, ring.length),
+                Arrays.copyOf(ring.owners, ring.length));
+    }
+
+    /**
+     * Maps the key to an instance.
+     *
+     * @param key hash key
+     * @return index of the instance in the list, the ring was built from, or -1 if the ring is empty
+     */
+    public int getIndex(String key) {
+
+        if (points.length == 0) {
+            return -1;
+        }
+
+        int index = Arrays.binarySearch(points, hash(key));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        if (index == points.length) {
+            index = 0;
+        }
+
+        return owners[index];
+    }
+
+    private static long[] getInstancePoints(String url) {
+
+        long base = hash(url);
+
+        long[] instancePoints = new long[POINTS_PER_INSTANCE];
+        for (int i = 0; i < instancePoints.length; i++) {
+            instancePoints[i] = mix(base + (i + 1) * GOLDEN_GAMMA);
+        }
+        Arrays.sort(instancePoints);
+
+        return instancePoints;
+    }
+
+    private static long hash(String value) {
+
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= FNV_PRIME;
+        }
+
+        return mix(hash);
+    }
+
+    // finalization step of MurmurHash3
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+
+    /**
+     * Sorted points with their owners.
+     */
+    private static final class Points {
+
+        private final long[] points;
+        private final int[] owners;
+        private final int length;
+
+        private Points(long[] points, int[] owners, int length) {
+            this.points = points;
+            this.owners = owners;
+            this.length = length;
+        }
+
+        private static Points merge(Points first, Points second) {
+
+            long[] mergedPoints = new long[first.length + second.length];
+            int[] mergedOwners = new int[mergedPoints.length];
+            int i = 0;
+            int j = 0;
+            int k = 0;
+            while (i < first.length || j < second.length) {
+                if (j == second.length || (i < first.length && first.points[i] <= second.points[j])) {
+                    mergedPoints[k] = first.points[i];
+                    mergedOwners[k] = first.owners[i];
+                    i++;
+                } else {
+                    mergedPoints[k] = second.points[j];
+                    mergedOwners[k] = second.owners[j];
+                    j++;
+                }
+                k++;
+            }
+
+            return new Points(mergedPoints, mergedOwners, k);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.loadbalancing;
+
+import com.kumuluz.ee.discovery.utils.ServiceKey;
+
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Per-instance state of load balancing strategies.
+ * <p>
+ * States are kept in a list aligned with the list of instances, so lookups during selection are plain index accesses.
+ * When a different list of instances is passed, states of instances, which are still present, are carried over.
+ *
+ * @param <T> type of instance state
+ */
+class InstanceStateTable<T> {
+
+    private final ConcurrentMap<ServiceKey, States<T>> states = new ConcurrentHashMap<>();
+    private final Supplier<T> stateFactory;
+
+    InstanceStateTable(Supplier<T> stateFactory) {
+        this.stateFactory = stateFactory;
+    }
+
+    /**
+     * @return states, aligned with the given instances
+     */
+    List<T> getStates(ServiceKey serviceKey, List<URL> instances) {
+
+        States<T> current = states.get(serviceKey);
+        if (current != null && current.instances == instances) {
+            return current.states;
+        }
+
+        return states.compute(serviceKey, (k, existing) -> (existing != null && existing.instances == instances) ?
+                existing : new States<>(instances, existing, stateFactory)).states;
+    }
+
+    /**
+     * @return state of the given instance or null, if the instance is not known
+     */
+    T getState(ServiceKey serviceKey, URL instance) {
+
+        States<T> current = states.get(serviceKey);
+        if (current == null) {
+            return null;
+        }
+
+        for (int i = 0; i < current.instances.size(); i++) {
+            if (current.instances.get(i) == instance) {
+                return current.states.get(i);
+            }
+        }
+
+        return current.statesByUrl.get(instance.toString());
+    }
+
+    private static final class States<T> {
+
+        private final List<URL> instances;
+        private final List<T> states;
+        private final Map<String, T> statesByUrl;
+
+        private States(List<URL> instances, States<T> previous, Supplier<T> stateFactory) {
+            this.instances = instances;
+
+            List<T> newStates = new ArrayList<>(instances.size());
+            Map<String, T> newStatesByUrl = new HashMap<>();
+            for (URL instance : instances) {
+                String url = instance.toString();
+
+                T state = (previous == null) ? null : previous.statesByUrl.get(url);
+                if (state == null) {
+                    state = newStatesByUrl.get(url);
+                }
+                if (state == null) {
+                    state = stateFactory.get();
+                }
+
+                newStates.add(state);
+                newStatesByUrl.put(url, state);
+            }
+
+            this.states = Collections.unmodifiableList(newStates);
+            this.statesByUrl = Collections.unmodifiableMap(newStatesByUrl);
+        }
+    }
+}
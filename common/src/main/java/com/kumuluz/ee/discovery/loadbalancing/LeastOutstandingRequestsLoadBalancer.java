@@ -0,0 +1,77 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.loadbalancing;
+
+import com.kumuluz.ee.discovery.utils.ServiceKey;
+
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selects the instance with the fewest outstanding requests. Outstanding requests are counted from selection until
+ * the instance is released. Ties are broken by starting the scan at a random instance.
+ */
+public class LeastOutstandingRequestsLoadBalancer implements LoadBalancer {
+
+    public static final String NAME = "least-outstanding-requests";
+
+    private final InstanceStateTable<AtomicInteger> outstandingRequests = new InstanceStateTable<>(AtomicInteger::new);
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int select(ServiceKey serviceKey, List<URL> instances) {
+
+        List<AtomicInteger> outstanding = outstandingRequests.getStates(serviceKey, instances);
+
+        int size = instances.size();
+        int offset = (size == 1) ? 0 : ThreadLocalRandom.current().nextInt(size);
+
+        int index = offset;
+        int minOutstanding = Integer.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            int candidate = (offset + i) % size;
+            int candidateOutstanding = outstanding.get(candidate).get();
+            if (candidateOutstanding < minOutstanding) {
+                index = candidate;
+                minOutstanding = candidateOutstanding;
+            }
+        }
+
+        outstanding.get(index).incrementAndGet();
+
+        return index;
+    }
+
+    @Override
+    public void release(ServiceKey serviceKey, URL instance) {
+
+        AtomicInteger outstanding = outstandingRequests.getState(serviceKey, instance);
+        if (outstanding != null) {
+            outstanding.updateAndGet(count -> (count > 0) ? count - 1 : 0);
+        }
+    }
+}
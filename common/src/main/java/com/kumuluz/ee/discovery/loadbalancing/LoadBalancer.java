@@ -0,0 +1,75 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.loadbalancing;
+
+import com.kumuluz.ee.discovery.utils.ServiceKey;
+
+import java.net.URL;
+import java.util.List;
+
+/**
+ * Strategy for selecting a service instance.
+ * <p>
+ * Implementations are shared between all services and must keep their per-service state keyed by {@link ServiceKey}
+ * without locking. Custom implementations are registered with {@link java.util.ServiceLoader} and selected by
+ * {@link #getName()}.
+ */
+public interface LoadBalancer {
+
+    /**
+     * @return name, used to select the strategy in configuration and in
+     * {@link com.kumuluz.ee.discovery.annotations.DiscoverService#loadBalancer()}
+     */
+    String getName();
+
+    /**
+     * Selects an instance of the service.
+     * <p>
+     * The same list instance is passed on every call until the instances of the service change, so implementations
+     * may cache per-instance state against it.
+     *
+     * @param serviceKey key of the service
+     * @param instances  non-empty list of service instances
+     * @return index of the selected instance in the list
+     */
+    int select(ServiceKey serviceKey, List<URL> instances);
+
+    /**
+     * Notifies the strategy that a call to a previously selected instance has finished.
+     *
+     * @param serviceKey key of the service
+     * @param instance   selected instance
+     */
+    default void release(ServiceKey serviceKey, URL instance) {
+    }
+
+    /**
+     * Notifies the strategy that a call to a previously selected instance has finished and reports its outcome.
+     *
+     * @param serviceKey   key of the service
+     * @param instance     selected instance
+     * @param latencyNanos latency of the call in nanoseconds
+     * @param success      true, if the call succeeded
+     */
+    default void release(ServiceKey serviceKey, URL instance, long latencyNanos, boolean success) {
+        release(serviceKey, instance);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.loadbalancing;
+
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Registry of available load balancing strategies.
+ * <p>
+ * Contains the built-in strategies and strategies registered with {@link ServiceLoader}. Strategies are shared, one
+ * instance per name.
+ */
+public class LoadBalancers {
+
+    private static final Logger log = Logger.getLogger(LoadBalancers.class.getName());
+
+    private static final Map<String, LoadBalancer> loadBalancers = new ConcurrentHashMap<>();
+
+    static {
+        register(new RoundRobinLoadBalancer());
+        register(new RandomLoadBalancer());
+        register(new PowerOfTwoChoicesLoadBalancer());
+        register(new LeastOutstandingRequestsLoadBalancer());
+        register(new PeakEwmaLoadBalancer());
+
+        for (LoadBalancer loadBalancer : ServiceLoader.load(LoadBalancer.class)) {
+            log.info("Registering load balancer: " + loadBalancer.getName());
+            register(loadBalancer);
+        }
+    }
+
+    private LoadBalancers() {
+    }
+
+    private static void register(LoadBalancer loadBalancer) {
+        loadBalancers.put(loadBalancer.getName(), loadBalancer);
+    }
+
+    /**
+     * Returns load balancer with the given name. Falls back to round-robin if name is empty or unknown.
+     *
+     * @param name name of the load balancer
+     * @return load balancer
+     */
+    public static LoadBalancer get(String name) {
+
+        if (name == null || name.isEmpty()) {
+            return loadBalancers.get(RoundRobinLoadBalancer.NAME);
+        }
+
+        LoadBalancer loadBalancer = loadBalancers.get(name);
+
+        if (loadBalancer == null) {
+            log.warning("Unknown load balancer: " + name + ". Using " + RoundRobinLoadBalancer.NAME + ".");
+            // remember the fallback, so the warning is logged only once
+            loadBalancer = loadBalancers.computeIfAbsent(name, n -> loadBalancers.get(RoundRobinLoadBalancer.NAME));
+        }
+
+        return loadBalancer;
+    }
+}
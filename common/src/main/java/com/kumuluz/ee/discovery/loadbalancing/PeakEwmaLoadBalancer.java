@@ -0,0 +1,139 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.loadbalancing;
+
+import com.kumuluz.ee.discovery.utils.ServiceKey;
+
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency-aware strategy, based on peak exponentially-weighted moving average (EWMA) of call latencies.
+ * <p>
+ * Picks two random instances and selects the one with the lower cost, where cost is the latency EWMA multiplied by
+ * the number of outstanding requests. Latency increases are taken into account immediately, decreases decay
+ * with a time constant of ten seconds. Failed calls are recorded with penalised latency. Statistics are reported with
+ * {@link #release(ServiceKey, URL, long, boolean)} and updated without locking.
+ */
+public class PeakEwmaLoadBalancer implements LoadBalancer {
+
+    public static final String NAME = "peak-ewma";
+
+    private static final double DECAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final int FAILURE_PENALTY = 5;
+    // cost of instances with outstanding requests, but no latency samples yet
+    private static final double PENDING_PENALTY = TimeUnit.SECONDS.toNanos(1);
+
+    private final InstanceStateTable<Statistics> statistics = new InstanceStateTable<>(Statistics::new);
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int select(ServiceKey serviceKey, List<URL> instances) {
+
+        List<Statistics> instanceStatistics = statistics.getStates(serviceKey, instances);
+
+        int index;
+        if (instances.size() == 1) {
+            index = 0;
+        } else {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(instances.size());
+            int second = random.nextInt(instances.size() - 1);
+            if (second >= first) {
+                second++;
+            }
+
+            index = (instanceStatistics.get(second).getCost() < instanceStatistics.get(first).getCost()) ?
+                    second : first;
+        }
+
+        instanceStatistics.get(index).outstanding.incrementAndGet();
+
+        return index;
+    }
+
+    @Override
+    public void release(ServiceKey serviceKey, URL instance) {
+
+        Statistics instanceStatistics = statistics.getState(serviceKey, instance);
+        if (instanceStatistics != null) {
+            instanceStatistics.release();
+        }
+    }
+
+    @Override
+    public void release(ServiceKey serviceKey, URL instance, long latencyNanos, boolean success) {
+
+        Statistics instanceStatistics = statistics.getState(serviceKey, instance);
+        if (instanceStatistics != null) {
+            instanceStatistics.release();
+            instanceStatistics.record(success ? latencyNanos : latencyNanos * FAILURE_PENALTY);
+        }
+    }
+
+    private static final class Statistics {
+
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicLong ewmaBits = new AtomicLong(Double.doubleToRawLongBits(0));
+        private volatile long lastSampleNanos = System.nanoTime();
+
+        private double getCost() {
+            double ewma = Double.longBitsToDouble(ewmaBits.get());
+            int pending = outstanding.get();
+
+            if (ewma == 0 && pending != 0) {
+                return PENDING_PENALTY + pending;
+            }
+
+            return ewma * (pending + 1);
+        }
+
+        private void release() {
+            outstanding.updateAndGet(count -> (count > 0) ? count - 1 : 0);
+        }
+
+        private void record(long latencyNanos) {
+
+            long now = System.nanoTime();
+            double elapsed = Math.max(now - lastSampleNanos, 0);
+            double weight = Math.exp(-elapsed / DECAY_NANOS);
+
+            long oldBits;
+            long newBits;
+            do {
+                oldBits = ewmaBits.get();
+                double ewma = Double.longBitsToDouble(oldBits);
+                double newEwma = (latencyNanos > ewma) ? latencyNanos : ewma * weight + latencyNanos * (1 - weight);
+                newBits = Double.doubleToRawLongBits(newEwma);
+            } while (!ewmaBits.compareAndSet(oldBits, newBits));
+
+            lastSampleNanos = now;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.loadbalancing;
+
+import com.kumuluz.ee.discovery.utils.ServiceKey;
+
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks two random instances and selects the one with fewer outstanding requests. Outstanding requests are counted
+ * from selection until the instance is released.
+ */
+public class PowerOfTwoChoicesLoadBalancer implements LoadBalancer {
+
+    public static final String NAME = "power-of-two-choices";
+
+    private final InstanceStateTable<AtomicInteger> outstandingRequests = new InstanceStateTable<>(AtomicInteger::new);
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int select(ServiceKey serviceKey, List<URL> instances) {
+
+        List<AtomicInteger> outstanding = outstandingRequests.getStates(serviceKey, instances);
+
+        int index;
+        if (instances.size() == 1) {
+            index = 0;
+        } else {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(instances.size());
+            int second = random.nextInt(instances.size() - 1);
+            if (second >= first) {
+                second++;
+            }
+
+            index = (outstanding.get(second).get() < outstanding.get(first).get()) ? second : first;
+        }
+
+        outstanding.get(index).incrementAndGet();
+
+        return index;
+    }
+
+    @Override
+    public void release(ServiceKey serviceKey, URL instance) {
+
+        AtomicInteger outstanding = outstandingRequests.getState(serviceKey, instance);
+        if (outstanding != null) {
+            outstanding.updateAndGet(count -> (count > 0) ? count - 1 : 0);
+        }
+    }
+}
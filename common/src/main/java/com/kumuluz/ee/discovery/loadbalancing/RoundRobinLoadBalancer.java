@@ -0,0 +1,55 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.loadbalancing;
+
+import com.kumuluz.ee.discovery.utils.ServiceKey;
+
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selects instances in turn, with a separate counter for each service.
+ */
+public class RoundRobinLoadBalancer implements LoadBalancer {
+
+    public static final String NAME = "round-robin";
+
+    private final ConcurrentMap<ServiceKey, AtomicInteger> counters = new ConcurrentHashMap<>();
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int select(ServiceKey serviceKey, List<URL> instances) {
+
+        AtomicInteger counter = counters.get(serviceKey);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(serviceKey, k -> new AtomicInteger());
+        }
+
+        return (counter.getAndIncrement() & Integer.MAX_VALUE) % instances.size();
+    }
+}
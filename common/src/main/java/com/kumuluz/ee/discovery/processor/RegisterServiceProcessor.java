@@ -20,7 +20,9 @@
 */
 package com.kumuluz.ee.discovery.processor;
 
+import com.kumuluz.ee.discovery.annotations.DiscoverService;
 import com.kumuluz.ee.discovery.annotations.RegisterService;
+import com.kumuluz.ee.discovery.utils.DiscoveryDescriptor;
 
 import javax.annotation.processing.AbstractProcessor;
 import javax.annotation.processing.Filer;
@@ -29,21 +31,30 @@ import javax.annotation.processing.RoundEnvironment;
 import javax.lang.model.SourceVersion;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
 import javax.tools.FileObject;
 import javax.tools.StandardLocation;
 import java.io.*;
-import java.util.Collections;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Properties;
 import java.util.Set;
 
 /**
- * Compile-time annotation processor for RegisterService annotation. Generates service file.
+ * Compile-time annotation processor for RegisterService and DiscoverService annotations. Generates service file and
+ * discovery descriptor.
  *
  * @author Jan Meznarič
  */
 public class RegisterServiceProcessor extends AbstractProcessor {
 
     private Filer filer;
+    private Elements elementUtils;
+
+    private final Set<String> serviceClassNames = new HashSet<>();
+    private final Properties descriptor = new Properties();
+    private final Set<String> processedClassNames = new HashSet<>();
 
     @Override
     public SourceVersion getSupportedSourceVersion() {
@@ -52,31 +63,53 @@ public class RegisterServiceProcessor extends AbstractProcessor {
 
     @Override
     public Set<String> getSupportedAnnotationTypes() {
-        return Collections.singleton("*");
+        return new HashSet<>(Arrays.asList(RegisterService.class.getName(), DiscoverService.class.getName()));
     }
 
     @Override
     public synchronized void init(ProcessingEnvironment processingEnv) {
         super.init(processingEnv);
         filer = processingEnv.getFiler();
+        elementUtils = processingEnv.getElementUtils();
     }
 
     @Override
     public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
 
-        // get annotated elements
-        Set<? extends Element> annotatedClasses = roundEnv.getElementsAnnotatedWith(RegisterService.class);
+        // classes compiled in this round, their previous descriptor entries are replaced
+        for (Element element : roundEnv.getRootElements()) {
+            if (element instanceof TypeElement) {
+                processedClassNames.add(elementUtils.getBinaryName((TypeElement) element).toString());
+            }
+        }
 
         // get full qualified names of annotated classes
-        Set<String> serviceClassNames = new HashSet<>();
-        for (Element element : annotatedClasses) {
+        for (Element element : roundEnv.getElementsAnnotatedWith(RegisterService.class)) {
             serviceClassNames.add(element.toString());
+            DiscoveryDescriptor.putRegisteredService(descriptor,
+                    elementUtils.getBinaryName((TypeElement) element).toString(),
+                    element.getAnnotation(RegisterService.class));
+        }
+
+        // get injection targets of discovered services
+        for (Element element : roundEnv.getElementsAnnotatedWith(DiscoverService.class)) {
+            Element enclosingElement = element.getEnclosingElement();
+            if (enclosingElement instanceof TypeElement) {
+                DiscoveryDescriptor.putDiscoveredService(descriptor,
+                        elementUtils.getBinaryName((TypeElement) enclosingElement).toString(),
+                        element.getSimpleName().toString(), element.getAnnotation(DiscoverService.class));
+            }
         }
 
-        // write annotated class names to service file
-        if (!serviceClassNames.isEmpty()) {
+        // files can be created only once per compilation, write them in the last round
+        if (roundEnv.processingOver()) {
             try {
-                writeServiceFile(serviceClassNames, "META-INF/services/javax.ws.rs.core.Application");
+                if (!serviceClassNames.isEmpty()) {
+                    writeServiceFile(serviceClassNames, "META-INF/services/javax.ws.rs.core.Application");
+                }
+                if (!descriptor.isEmpty()) {
+                    writeDescriptor();
+                }
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -85,6 +118,29 @@ public class RegisterServiceProcessor extends AbstractProcessor {
         return true;
     }
 
+    private void writeDescriptor() throws IOException {
+
+        // keep entries of classes, which were not recompiled
+        Properties merged = new Properties();
+        try {
+            FileObject oldFile = filer.getResource(StandardLocation.CLASS_OUTPUT, "", DiscoveryDescriptor.LOCATION);
+            try (Reader reader = oldFile.openReader(true)) {
+                merged.load(reader);
+            }
+        } catch (FileNotFoundException | NoSuchFileException | IllegalArgumentException e) {
+            // no previous descriptor
+        }
+
+        for (String className : processedClassNames) {
+            DiscoveryDescriptor.removeClass(merged, className);
+        }
+        merged.putAll(descriptor);
+
+        FileObject file = filer.createResource(StandardLocation.CLASS_OUTPUT, "", DiscoveryDescriptor.LOCATION);
+        try (Writer writer = file.openWriter()) {
+            DiscoveryDescriptor.write(merged, writer);
+        }
+    }
 
     private void writeServiceFile(Set<String> serviceClassNames, String serviceFileName) throws IOException {
 
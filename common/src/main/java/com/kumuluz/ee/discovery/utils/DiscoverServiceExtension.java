@@ -0,0 +1,57 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import com.kumuluz.ee.discovery.annotations.DiscoverService;
+
+import javax.enterprise.event.Observes;
+import javax.enterprise.inject.spi.Extension;
+import javax.enterprise.inject.spi.ProcessInjectionPoint;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * CDI extension, which collects services injected with {@link DiscoverService} during deployment, so they can be
+ * prefetched before the application starts serving requests.
+ */
+public class DiscoverServiceExtension implements Extension {
+
+    private final Set<ServiceDependency> dependencies = ConcurrentHashMap.newKeySet();
+
+    public void processInjectionPoint(@Observes ProcessInjectionPoint<?, ?> event) {
+
+        DiscoverService discoverService = event.getInjectionPoint().getAnnotated()
+                .getAnnotation(DiscoverService.class);
+
+        if (discoverService != null) {
+            dependencies.add(new ServiceDependency(discoverService.value(), discoverService.version(),
+                    discoverService.environment()));
+        }
+    }
+
+    /**
+     * @return injected services, versions may be NPM ranges
+     */
+    public Set<ServiceDependency> getDependencies() {
+        return Collections.unmodifiableSet(dependencies);
+    }
+}
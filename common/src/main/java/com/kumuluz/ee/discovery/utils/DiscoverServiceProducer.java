@@ -21,51 +21,66 @@
 package com.kumuluz.ee.discovery.utils;
 
 import com.kumuluz.ee.discovery.annotations.DiscoverService;
+import com.kumuluz.ee.discovery.loadbalancing.LoadBalancers;
 
-import javax.enterprise.context.RequestScoped;
+import javax.enterprise.context.ApplicationScoped;
 import javax.enterprise.inject.Produces;
 import javax.enterprise.inject.spi.InjectionPoint;
 import javax.inject.Inject;
-import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.WebTarget;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
 /**
- * Producer for DiscoverService annotation.
+ * Producer for DiscoverService annotation. Service handles are created once per distinct annotation and shared by all
+ * injection points.
  */
-@RequestScoped
+@ApplicationScoped
 public class DiscoverServiceProducer {
 
     private static final Logger log = Logger.getLogger(DiscoverServiceProducer.class.getName());
 
+    private final ConcurrentMap<DiscoverService, ServiceHandle> serviceHandles = new ConcurrentHashMap<>();
+
     @Inject
     private DiscoveryUtil discoveryUtil;
 
+    @Inject
+    private DiscoveryClientCache clientCache;
+
     @Produces
     @DiscoverService
-    public URL getUrl(InjectionPoint injectionPoint) {
+    public ServiceHandle getServiceHandle(InjectionPoint injectionPoint) {
 
-        String serviceName = injectionPoint.getAnnotated().getAnnotation(DiscoverService.class).value();
-        String environment = injectionPoint.getAnnotated().getAnnotation(DiscoverService.class).environment();
-        String version = injectionPoint.getAnnotated().getAnnotation(DiscoverService.class).version();
+        DiscoverService discoverService = injectionPoint.getAnnotated().getAnnotation(DiscoverService.class);
 
-        return getUrl(serviceName, environment, version);
+        ServiceHandle serviceHandle = serviceHandles.get(discoverService);
+        if (serviceHandle == null) {
+            serviceHandle = serviceHandles.computeIfAbsent(discoverService, a -> new ServiceHandle(discoveryUtil,
+                    a.value(), a.version(), a.environment(),
+                    a.loadBalancer().isEmpty() ? null : LoadBalancers.get(a.loadBalancer())));
+        }
+
+        return serviceHandle;
 
     }
 
     @Produces
     @DiscoverService
-    public String getUrlString(InjectionPoint injectionPoint) {
+    public URL getUrl(InjectionPoint injectionPoint) {
 
-        String serviceName = injectionPoint.getAnnotated().getAnnotation(DiscoverService.class).value();
-        String environment = injectionPoint.getAnnotated().getAnnotation(DiscoverService.class).environment();
-        String version = injectionPoint.getAnnotated().getAnnotation(DiscoverService.class).version();
+        return getUrl(getServiceHandle(injectionPoint));
 
-        URL url = getUrl(serviceName, environment, version);
+    }
+
+    @Produces
+    @DiscoverService
+    public String getUrlString(InjectionPoint injectionPoint) {
+
+        URL url = getUrl(getServiceHandle(injectionPoint));
 
         if (url != null) {
             return url.toString();
@@ -78,15 +93,13 @@ public class DiscoverServiceProducer {
     @DiscoverService
     public WebTarget getUrlWebTarget(InjectionPoint injectionPoint) {
 
-        String serviceName = injectionPoint.getAnnotated().getAnnotation(DiscoverService.class).value();
-        String environment = injectionPoint.getAnnotated().getAnnotation(DiscoverService.class).environment();
-        String version = injectionPoint.getAnnotated().getAnnotation(DiscoverService.class).version();
+        ServiceHandle serviceHandle = getServiceHandle(injectionPoint);
 
-        Client client = ClientBuilder.newClient();
-        URL url = getUrl(serviceName, environment, version);
+        URL url = getUrl(serviceHandle);
         if (url != null) {
             try {
-                return client.target(url.toURI());
+                return clientCache.getClient(serviceHandle.getServiceName(), serviceHandle.getEnvironment())
+                        .target(url.toURI());
             } catch (URISyntaxException e) {
                 e.printStackTrace();
             }
@@ -96,14 +109,12 @@ public class DiscoverServiceProducer {
 
     }
 
-    private URL getUrl(String serviceName, String environment, String version) {
-
-        log.info("Initializing field for service: " + serviceName + " version: " + version + " environment: " +
-                environment);
+    private URL getUrl(ServiceHandle serviceHandle) {
 
-        Optional<URL> serviceUrl = discoveryUtil.getServiceInstance(serviceName, version, environment);
+        log.info("Initializing field for service: " + serviceHandle.getServiceName() + " version: " +
+                serviceHandle.getVersion() + " environment: " + serviceHandle.getEnvironment());
 
-        return serviceUrl.orElse(null);
+        return serviceHandle.next().orElse(null);
 
     }
 
@@ -0,0 +1,108 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import com.kumuluz.ee.configuration.utils.ConfigurationUtil;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * Application-wide cache of JAX-RS clients for discovered services, one client per service and environment. Clients
+ * are reused across requests, so their connections are kept alive and pooled, and are closed on shutdown.
+ */
+@ApplicationScoped
+public class DiscoveryClientCache {
+
+    private static final Logger log = Logger.getLogger(DiscoveryClientCache.class.getName());
+
+    // Jersey client properties, ignored by other JAX-RS implementations
+    private static final String CONNECT_TIMEOUT_PROPERTY = "jersey.config.client.connectTimeout";
+    private static final String READ_TIMEOUT_PROPERTY = "jersey.config.client.readTimeout";
+    private static final String ASYNC_THREAD_POOL_SIZE_PROPERTY = "jersey.config.client.async.threadPoolSize";
+
+    private final ConcurrentMap<ServiceKey, Client> clients = new ConcurrentHashMap<>();
+
+    private Optional<Integer> connectTimeout;
+    private Optional<Integer> readTimeout;
+    private Optional<Integer> asyncPoolSize;
+
+    @PostConstruct
+    public void init() {
+
+        ConfigurationUtil configurationUtil = ConfigurationUtil.getInstance();
+
+        this.connectTimeout = configurationUtil.getInteger("kumuluzee.discovery.client.connect-timeout-ms");
+        this.readTimeout = configurationUtil.getInteger("kumuluzee.discovery.client.read-timeout-ms");
+        this.asyncPoolSize = configurationUtil.getInteger("kumuluzee.discovery.client.async-pool-size");
+    }
+
+    /**
+     * Returns shared client for the service. The client must not be closed by the caller.
+     *
+     * @param serviceName service name
+     * @param environment service environment
+     * @return shared client
+     */
+    public Client getClient(String serviceName, String environment) {
+
+        ServiceKey key = ServiceKey.of(serviceName, environment);
+
+        Client client = clients.get(key);
+        if (client == null) {
+            client = clients.computeIfAbsent(key, k -> buildClient());
+        }
+
+        return client;
+    }
+
+    private Client buildClient() {
+
+        ClientBuilder clientBuilder = ClientBuilder.newBuilder();
+
+        connectTimeout.ifPresent(timeout -> clientBuilder.property(CONNECT_TIMEOUT_PROPERTY, timeout));
+        readTimeout.ifPresent(timeout -> clientBuilder.property(READ_TIMEOUT_PROPERTY, timeout));
+        asyncPoolSize.ifPresent(size -> clientBuilder.property(ASYNC_THREAD_POOL_SIZE_PROPERTY, size));
+
+        return clientBuilder.build();
+    }
+
+    @PreDestroy
+    public void close() {
+
+        for (Client client : clients.values()) {
+            try {
+                client.close();
+            } catch (RuntimeException e) {
+                log.warning("Cannot close client: " + e);
+            }
+        }
+
+        clients.clear();
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import com.kumuluz.ee.discovery.annotations.DiscoverService;
+import com.kumuluz.ee.discovery.annotations.RegisterService;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Descriptor of registered services and service dependencies, generated at compile time by
+ * {@link com.kumuluz.ee.discovery.processor.RegisterServiceProcessor}.
+ * <p>
+ * The descriptor is a properties file with keys {@code register.<class>.<attribute>} for every class annotated with
+ * {@link RegisterService} and {@code discover.<class>#<member>.<attribute>} for every {@link DiscoverService}
+ * injection target.
+ */
+public class DiscoveryDescriptor {
+
+    private static final Logger log = Logger.getLogger(DiscoveryDescriptor.class.getName());
+
+    public static final String LOCATION = "META-INF/kumuluzee/discovery.properties";
+
+    private static final String REGISTER_PREFIX = "register.";
+    private static final String DISCOVER_PREFIX = "discover.";
+
+    private final List<RegisteredService> registeredServices;
+    private final List<DiscoveredService> discoveredServices;
+
+    private DiscoveryDescriptor(List<RegisteredService> registeredServices,
+                                List<DiscoveredService> discoveredServices) {
+        this.registeredServices = Collections.unmodifiableList(registeredServices);
+        this.discoveredServices = Collections.unmodifiableList(discoveredServices);
+    }
+
+    /**
+     * Loads and merges all descriptors, visible to the class loader.
+     *
+     * @param classLoader class loader
+     * @return descriptor, empty if no descriptors are found
+     */
+    public static DiscoveryDescriptor load(ClassLoader classLoader) {
+
+        Properties properties = new Properties();
+
+        try {
+            Enumeration<URL> resources = classLoader.getResources(LOCATION);
+            while (resources.hasMoreElements()) {
+                try (Reader reader = new InputStreamReader(resources.nextElement().openStream(),
+                        StandardCharsets.UTF_8)) {
+                    properties.load(reader);
+                }
+            }
+        } catch (IOException e) {
+            log.warning("Cannot read discovery descriptor: " + e);
+        }
+
+        List<RegisteredService> registeredServices = new ArrayList<>();
+        List<DiscoveredService> discoveredServices = new ArrayList<>();
+
+        for (String key : new TreeSet<>(properties.stringPropertyNames())) {
+            if (!key.endsWith(".value")) {
+                continue;
+            }
+
+            if (key.startsWith(REGISTER_PREFIX)) {
+                String prefix = key.substring(0, key.length() - "value".length());
+                registeredServices.add(new RegisteredService(prefix.substring(REGISTER_PREFIX.length(),
+                        prefix.length() - 1), properties.getProperty(key),
+                        Long.parseLong(properties.getProperty(prefix + "ttl", "-1")),
+                        Long.parseLong(properties.getProperty(prefix + "ping-interval", "-1")),
+                        properties.getProperty(prefix + "environment", ""),
+                        properties.getProperty(prefix + "version", ""),
+                        Boolean.parseBoolean(properties.getProperty(prefix + "singleton"))));
+            } else if (key.startsWith(DISCOVER_PREFIX)) {
+                String prefix = key.substring(0, key.length() - "value".length());
+                discoveredServices.add(new DiscoveredService(prefix.substring(DISCOVER_PREFIX.length(),
+                        prefix.length() - 1), properties.getProperty(key),
+                        properties.getProperty(prefix + "environment", "dev"),
+                        properties.getProperty(prefix + "version", "1.0.0"),
+                        properties.getProperty(prefix + "load-balancer", "")));
+            }
+        }
+
+        return new DiscoveryDescriptor(registeredServices, discoveredServices);
+    }
+
+    /**
+     * @return services, annotated with {@link RegisterService}
+     */
+    public List<RegisteredService> getRegisteredServices() {
+        return registeredServices;
+    }
+
+    /**
+     * @return injection targets, annotated with {@link DiscoverService}
+     */
+    public List<DiscoveredService> getDiscoveredServices() {
+        return discoveredServices;
+    }
+
+    public static void putRegisteredService(Properties properties, String className, RegisterService annotation) {
+        String prefix = REGISTER_PREFIX + className + ".";
+
+        properties.setProperty(prefix + "value", annotation.value());
+        properties.setProperty(prefix + "ttl", String.valueOf(annotation.ttl()));
+        properties.setProperty(prefix + "ping-interval", String.valueOf(annotation.pingInterval()));
+        properties.setProperty(prefix + "environment", annotation.environment());
+        properties.setProperty(prefix + "version", annotation.version());
+        properties.setProperty(prefix + "singleton", String.valueOf(annotation.singleton()));
+    }
+
+    public static void putDiscoveredService(Properties properties, String className, String member,
+                                            DiscoverService annotation) {
+        String prefix = DISCOVER_PREFIX + className + "#" + member + ".";
+
+        properties.setProperty(prefix + "value", annotation.value());
+        properties.setProperty(prefix + "environment", annotation.environment());
+        properties.setProperty(prefix + "version", annotation.version());
+        properties.setProperty(prefix + "load-balancer", annotation.loadBalancer());
+    }
+
+    /**
+     * Removes all entries of the class, e.g. before the class is processed again.
+     */
+    public static void removeClass(Properties properties, String className) {
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(REGISTER_PREFIX + className + ".") ||
+                    key.startsWith(DISCOVER_PREFIX + className + "#")) {
+                properties.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Writes sorted entries without timestamp, so the output is reproducible.
+     */
+    public static void write(Properties properties, Writer writer) throws IOException {
+
+        StringWriter stored = new StringWriter();
+        properties.store(stored, null);
+
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new StringReader(stored.toString()))) {
+            String line = reader.readLine();
+            while (line != null) {
+                if (!line.startsWith("#")) {
+                    lines.add(line);
+                }
+                line = reader.readLine();
+            }
+        }
+        Collections.sort(lines);
+
+        for (String line : lines) {
+            writer.write(line);
+            writer.write("\n");
+        }
+    }
+
+    /**
+     * Attributes of a service, annotated with {@link RegisterService}.
+     */
+    public static class RegisteredService {
+
+        private final String className;
+        private final String value;
+        private final long ttl;
+        private final long pingInterval;
+        private final String environment;
+        private final String version;
+        private final boolean singleton;
+
+        private RegisteredService(String className, String value, long ttl, long pingInterval, String environment,
+                                  String version, boolean singleton) {
+            this.className = className;
+            this.value = value;
+            this.ttl = ttl;
+            this.pingInterval = pingInterval;
+            this.environment = environment;
+            this.version = version;
+            this.singleton = singleton;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public long getTtl() {
+            return ttl;
+        }
+
+        public long getPingInterval() {
+            return pingInterval;
+        }
+
+        public String getEnvironment() {
+            return environment;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        public boolean isSingleton() {
+            return singleton;
+        }
+    }
+
+    /**
+     * Attributes of an injection target, annotated with {@link DiscoverService}.
+     */
+    public static class DiscoveredService {
+
+        private final String target;
+        private final String value;
+        private final String environment;
+        private final String version;
+        private final String loadBalancer;
+
+        private DiscoveredService(String target, String value, String environment, String version,
+                                  String loadBalancer) {
+            this.target = target;
+            this.value = value;
+            this.environment = environment;
+            this.version = version;
+            this.loadBalancer = loadBalancer;
+        }
+
+        /**
+         * @return class and member of the injection target, e.g. {@code com.example.Resource#url}
+         */
+        public String getTarget() {
+            return target;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public String getEnvironment() {
+            return environment;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        public String getLoadBalancer() {
+            return loadBalancer;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import com.kumuluz.ee.configuration.utils.ConfigurationUtil;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+/**
+ * Prefetches instances of all declared service dependencies in parallel on startup and exposes readiness of the
+ * discovery.
+ * <p>
+ * Dependencies are collected from {@link com.kumuluz.ee.discovery.annotations.DiscoverService} injection points and
+ * from the compile-time {@link DiscoveryDescriptor}. Startup can be held until the prefetch completes, for at most the
+ * configured timeout.
+ */
+@ApplicationScoped
+public class DiscoveryReadiness {
+
+    private static final Logger log = Logger.getLogger(DiscoveryReadiness.class.getName());
+
+    private final CompletableFuture<Void> ready = new CompletableFuture<>();
+
+    @Inject
+    private DiscoveryUtil discoveryUtil;
+
+    @Inject
+    private DiscoverServiceExtension discoverServiceExtension;
+
+    public void cdiInitialized(@Observes @Initialized(ApplicationScoped.class) Object init) {
+
+        ConfigurationUtil configurationUtil = ConfigurationUtil.getInstance();
+
+        if (!configurationUtil.getBoolean("kumuluzee.discovery.prefetch.enabled").orElse(true)) {
+            ready.complete(null);
+            return;
+        }
+
+        Set<ServiceDependency> dependencies = new LinkedHashSet<>(discoverServiceExtension.getDependencies());
+        for (DiscoveryDescriptor.DiscoveredService discoveredService :
+                DiscoveryDescriptor.load(Thread.currentThread().getContextClassLoader()).getDiscoveredServices()) {
+            dependencies.add(new ServiceDependency(discoveredService.getValue(), discoveredService.getVersion(),
+                    discoveredService.getEnvironment()));
+        }
+
+        if (dependencies.isEmpty()) {
+            ready.complete(null);
+            return;
+        }
+
+        log.info("Prefetching " + dependencies.size() + " service dependencies.");
+
+        List<CompletableFuture<?>> prefetches = new ArrayList<>(dependencies.size());
+        for (ServiceDependency dependency : dependencies) {
+            prefetches.add(discoveryUtil.getServiceInstancesAsync(dependency.getServiceName(),
+                    dependency.getVersion(), dependency.getEnvironment()).toCompletableFuture()
+                    .exceptionally(t -> {
+                        log.warning("Cannot prefetch service " + dependency + ": " + t);
+                        return null;
+                    }));
+        }
+
+        CompletableFuture.allOf(prefetches.toArray(new CompletableFuture[0]))
+                .whenComplete((result, t) -> ready.complete(null));
+
+        // by default startup is not held, readiness is exposed with isReady() and whenReady()
+        long timeout = configurationUtil.getLong("kumuluzee.discovery.prefetch.timeout-ms").orElse(0L);
+        if (timeout <= 0) {
+            return;
+        }
+
+        try {
+            ready.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.warning("Prefetch of service dependencies did not complete in " + timeout + " ms, " +
+                    "continuing startup.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.warning("Prefetch of service dependencies failed: " + e);
+        }
+    }
+
+    /**
+     * @return true, once all declared service dependencies were looked up
+     */
+    public boolean isReady() {
+        return ready.isDone();
+    }
+
+    /**
+     * @return stage, completed once all declared service dependencies were looked up
+     */
+    public CompletionStage<Void> whenReady() {
+        return ready.thenApply(r -> r);
+    }
+}
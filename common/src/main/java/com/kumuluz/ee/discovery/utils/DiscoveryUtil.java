@@ -20,9 +20,14 @@
 */
 package com.kumuluz.ee.discovery.utils;
 
+import com.kumuluz.ee.discovery.loadbalancing.LoadBalancer;
+
 import java.net.URL;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Jan Meznarič
@@ -37,10 +42,94 @@ public interface DiscoveryUtil {
     Optional<List<URL>> getServiceInstances(String serviceName, String version, String
             environment);
 
+    /**
+     * Asynchronous variant of {@link #getServiceInstances(String, String, String)}. The default implementation runs
+     * the blocking lookup in the common fork-join pool.
+     */
+    default CompletionStage<Optional<List<URL>>> getServiceInstancesAsync(String serviceName, String version,
+                                                                          String environment) {
+        return CompletableFuture.supplyAsync(() -> getServiceInstances(serviceName, version, environment));
+    }
+
     Optional<URL> getServiceInstance(String serviceName, String version, String environment);
 
+    /**
+     * Asynchronous variant of {@link #getServiceInstance(String, String, String)}. The default implementation runs
+     * the blocking lookup in the common fork-join pool.
+     */
+    default CompletionStage<Optional<URL>> getServiceInstanceAsync(String serviceName, String version,
+                                                                   String environment) {
+        return CompletableFuture.supplyAsync(() -> getServiceInstance(serviceName, version, environment));
+    }
+
+    /**
+     * Returns instance of the service, selected with the given load balancer. The default implementation ignores the
+     * load balancer.
+     */
+    default Optional<URL> getServiceInstance(String serviceName, String version, String environment,
+                                             LoadBalancer loadBalancer) {
+        return getServiceInstance(serviceName, version, environment);
+    }
+
+    /**
+     * Returns instance of the service, selected with consistent hashing, so the same key is mapped to the same
+     * instance for as long as the instance is available.
+     *
+     * @param serviceName service name
+     * @param version     service version or NPM version range
+     * @param environment service environment
+     * @param hashKey     key, e.g. tenant id, used to select the instance, or null to use the default load balancer
+     * @return selected instance or empty, if no instances are available
+     */
+    default Optional<URL> getServiceInstanceByKey(String serviceName, String version, String environment,
+                                                  String hashKey) {
+        return getServiceInstance(serviceName, version, environment);
+    }
+
+    /**
+     * Notifies the default load balancer that a call to the selected instance has finished. Does nothing by default.
+     */
+    default void releaseServiceInstance(String serviceName, String version, String environment, URL url) {
+    }
+
+    /**
+     * Notifies the default load balancer that a call to the selected instance has finished and reports its outcome.
+     * Does nothing by default.
+     */
+    default void releaseServiceInstance(String serviceName, String version, String environment, URL url,
+                                        long latency, TimeUnit unit, boolean success) {
+    }
+
+    /**
+     * Notifies the load balancer, which selected the instance with
+     * {@link #getServiceInstance(String, String, String, LoadBalancer)}, that a call to it has finished. The default
+     * implementation ignores the load balancer.
+     */
+    default void releaseServiceInstance(String serviceName, String version, String environment, URL url,
+                                        LoadBalancer loadBalancer) {
+        releaseServiceInstance(serviceName, version, environment, url);
+    }
+
+    /**
+     * Notifies the load balancer, which selected the instance with
+     * {@link #getServiceInstance(String, String, String, LoadBalancer)}, that a call to it has finished and reports
+     * its outcome. The default implementation ignores the load balancer.
+     */
+    default void releaseServiceInstance(String serviceName, String version, String environment, URL url,
+                                        LoadBalancer loadBalancer, long latency, TimeUnit unit, boolean success) {
+        releaseServiceInstance(serviceName, version, environment, url, latency, unit, success);
+    }
+
     Optional<List<String>> getServiceVersions(String serviceName, String environment);
 
+    /**
+     * Asynchronous variant of {@link #getServiceVersions(String, String)}. The default implementation runs the
+     * blocking lookup in the common fork-join pool.
+     */
+    default CompletionStage<Optional<List<String>>> getServiceVersionsAsync(String serviceName, String environment) {
+        return CompletableFuture.supplyAsync(() -> getServiceVersions(serviceName, environment));
+    }
+
     void disableServiceInstance(String serviceName, String version, String environment,
                                 URL url);
 }
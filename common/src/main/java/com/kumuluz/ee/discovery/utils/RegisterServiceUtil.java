@@ -32,9 +32,12 @@ import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 import javax.servlet.annotation.WebListener;
 import javax.ws.rs.core.Application;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.ServiceLoader;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
 import java.util.logging.Logger;
 
 /**
@@ -46,6 +49,8 @@ public class RegisterServiceUtil implements ServletContextListener {
 
     private static final Logger log = Logger.getLogger(RegisterServiceUtil.class.getName());
 
+    private static final String SERVICES_LOCATION = "META-INF/services/" + Application.class.getName();
+
     private boolean beanInitialised;
     private boolean deregistratorEnabled;
 
@@ -71,57 +76,155 @@ public class RegisterServiceUtil implements ServletContextListener {
 
     private boolean initialiseBean() {
 
-        List<Application> applications = new ArrayList<>();
-
-        ServiceLoader.load(Application.class).forEach(applications::add);
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        List<DiscoveryDescriptor.RegisteredService> registeredServices = DiscoveryDescriptor.load(classLoader)
+                .getRegisteredServices();
+
+        // registration attributes were recorded at compile time, applications need not be instantiated
+        Set<String> registeredClassNames = new HashSet<>();
+        for (DiscoveryDescriptor.RegisteredService registeredService : registeredServices) {
+            registeredClassNames.add(registeredService.getClassName());
+            // service files list canonical names
+            registeredClassNames.add(registeredService.getClassName().replace('$', '.'));
+
+            if (!isClassPresent(registeredService.getClassName(), classLoader)) {
+                continue;
+            }
+
+            log.info("Registering JAX-RS application class: " + registeredService.getClassName());
+            registerService(registeredService.getClassName(), registeredService.getValue(),
+                    registeredService.getTtl(), registeredService.getPingInterval(),
+                    registeredService.getEnvironment(), registeredService.getVersion(),
+                    registeredService.isSingleton());
+        }
 
-        for (Application application : applications) {
-            log.info("Registering JAX-RS application class: " + application.getClass().getSimpleName());
-            registerService(application.getClass());
+        // applications without a descriptor entry, e.g. from jars compiled with an older processor
+        for (String className : readApplicationClassNames(classLoader)) {
+            if (registeredClassNames.contains(className)) {
+                continue;
+            }
+
+            Class<?> applicationClass = loadClass(className, classLoader);
+            if (applicationClass == null || applicationClass.getAnnotation(RegisterService.class) == null ||
+                    !registeredClassNames.add(applicationClass.getName())) {
+                continue;
+            }
+            registeredClassNames.add(className);
+
+            log.info("Registering JAX-RS application class: " + applicationClass.getSimpleName());
+            registerService(applicationClass);
         }
 
         return true;
     }
 
     /**
-     * Method initialises class fields from configuration.
+     * Reads class names from service files of {@link Application}, without loading or instantiating the classes.
      */
-    private void registerService(Class targetClass) {
+    private Set<String> readApplicationClassNames(ClassLoader classLoader) {
+
+        Set<String> classNames = new LinkedHashSet<>();
+        try {
+            Enumeration<URL> resources = classLoader.getResources(SERVICES_LOCATION);
+            while (resources.hasMoreElements()) {
+                URL resource = resources.nextElement();
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(resource.openStream(),
+                        StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        int comment = line.indexOf('#');
+                        String className = ((comment >= 0) ? line.substring(0, comment) : line).trim();
+                        if (!className.isEmpty()) {
+                            classNames.add(className);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.warning("Cannot read " + SERVICES_LOCATION + ": " + e);
+        }
 
-        ConfigurationUtil configurationUtil = ConfigurationUtil.getInstance();
+        return classNames;
+    }
+
+    /**
+     * Loads class by its binary or canonical name, without initialising it.
+     *
+     * @return class or null, if the class does not exist
+     */
+    private Class<?> loadClass(String className, ClassLoader classLoader) {
+
+        String binaryName = className;
+        while (true) {
+            try {
+                return Class.forName(binaryName, false, classLoader);
+            } catch (ClassNotFoundException e) {
+                // canonical name of a nested class
+                int separator = binaryName.lastIndexOf('.');
+                if (separator < 0) {
+                    log.warning("Skipping registration of missing class: " + className);
+                    return null;
+                }
+                binaryName = binaryName.substring(0, separator) + '$' + binaryName.substring(separator + 1);
+            }
+        }
+    }
+
+    private boolean isClassPresent(String className, ClassLoader classLoader) {
+        try {
+            // stale entries of removed classes may remain in descriptors of incremental builds
+            Class.forName(className, false, classLoader);
+            return true;
+        } catch (ClassNotFoundException e) {
+            log.warning("Skipping registration of missing class: " + className);
+            return false;
+        }
+    }
+
+    /**
+     * Method initialises class fields from annotation.
+     */
+    private void registerService(Class targetClass) {
 
         if (targetClassIsProxied(targetClass)) {
             targetClass = targetClass.getSuperclass();
         }
 
-        String serviceName = ((RegisterService) targetClass.getAnnotation(RegisterService.class)).value();
+        RegisterService registerService = (RegisterService) targetClass.getAnnotation(RegisterService.class);
+
+        registerService(targetClass.getName(), registerService.value(), registerService.ttl(),
+                registerService.pingInterval(), registerService.environment(), registerService.version(),
+                registerService.singleton());
+    }
+
+    /**
+     * Method initialises unset attributes from configuration and registers the service.
+     */
+    private void registerService(String className, String serviceName, long ttl, long pingInterval,
+                                 String environment, String version, boolean singleton) {
+
+        ConfigurationUtil configurationUtil = ConfigurationUtil.getInstance();
 
         if (serviceName.isEmpty()) {
-            serviceName = targetClass.getName();
+            serviceName = className;
         }
 
-        long ttl = ((RegisterService) targetClass.getAnnotation(RegisterService.class)).ttl();
         if (ttl == -1) {
             ttl = configurationUtil.getInteger("kumuluzee.discovery.ttl").orElse(30);
         }
 
-        long pingInterval = ((RegisterService) targetClass.getAnnotation(RegisterService.class)).pingInterval();
         if (pingInterval == -1) {
             pingInterval = configurationUtil.getInteger("kumuluzee.discovery.ping-interval").orElse(20);
         }
 
-        String environment = ((RegisterService) targetClass.getAnnotation(RegisterService.class)).environment();
         if (environment.isEmpty()) {
             environment = configurationUtil.get("kumuluzee.env").orElse("dev");
         }
 
-        String version = ((RegisterService) targetClass.getAnnotation(RegisterService.class)).version();
         if (version.isEmpty()) {
             version = configurationUtil.get("kumuluzee.version").orElse("1.0.0");
         }
 
-        boolean singleton = ((RegisterService) targetClass.getAnnotation(RegisterService.class)).singleton();
-
         log.info("Registering service: " + serviceName);
 
         discoveryUtil.register(serviceName, version, environment, ttl, pingInterval, singleton);
@@ -0,0 +1,81 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import java.util.Objects;
+
+/**
+ * Service dependency, declared with {@link com.kumuluz.ee.discovery.annotations.DiscoverService}. Unlike
+ * {@link ServiceKey}, dependencies are not interned, so declared version ranges do not stay in the key table.
+ */
+public final class ServiceDependency {
+
+    private final String serviceName;
+    private final String version;
+    private final String environment;
+
+    public ServiceDependency(String serviceName, String version, String environment) {
+        this.serviceName = serviceName;
+        this.version = version;
+        this.environment = environment;
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    /**
+     * @return version or NPM version range
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    public String getEnvironment() {
+        return environment;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        ServiceDependency that = (ServiceDependency) o;
+
+        return Objects.equals(serviceName, that.serviceName) && Objects.equals(version, that.version) &&
+                Objects.equals(environment, that.environment);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(serviceName, version, environment);
+    }
+
+    @Override
+    public String toString() {
+        return "ServiceDependency{serviceName=" + serviceName + ", version=" + version + ", environment=" +
+                environment + "}";
+    }
+}
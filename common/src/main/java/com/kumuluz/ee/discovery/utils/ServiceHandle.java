@@ -0,0 +1,118 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import com.kumuluz.ee.discovery.loadbalancing.LoadBalancer;
+
+import java.net.URL;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handle of a discovered service, injected with {@link com.kumuluz.ee.discovery.annotations.DiscoverService}.
+ * <p>
+ * Unlike injected URLs, the handle resolves an instance on each call of {@link #next()}, so it can be held by
+ * application scoped beans. Handles are immutable and thread-safe.
+ */
+public final class ServiceHandle {
+
+    private final DiscoveryUtil discoveryUtil;
+    private final String serviceName;
+    private final String version;
+    private final String environment;
+    private final LoadBalancer loadBalancer;
+
+    /**
+     * @param discoveryUtil discovery implementation
+     * @param serviceName   service name
+     * @param version       service version or NPM version range
+     * @param environment   service environment
+     * @param loadBalancer  load balancer, or null for the default one
+     */
+    public ServiceHandle(DiscoveryUtil discoveryUtil, String serviceName, String version, String environment,
+                         LoadBalancer loadBalancer) {
+        this.discoveryUtil = discoveryUtil;
+        this.serviceName = serviceName;
+        this.version = version;
+        this.environment = environment;
+        this.loadBalancer = loadBalancer;
+    }
+
+    /**
+     * @return instance, selected with the load balancer of the handle, or empty if no instances are available
+     */
+    public Optional<URL> next() {
+        if (loadBalancer == null) {
+            return discoveryUtil.getServiceInstance(serviceName, version, environment);
+        } else {
+            return discoveryUtil.getServiceInstance(serviceName, version, environment, loadBalancer);
+        }
+    }
+
+    /**
+     * @return all available instances
+     */
+    public Optional<List<URL>> all() {
+        return discoveryUtil.getServiceInstances(serviceName, version, environment);
+    }
+
+    /**
+     * Releases instance, returned by {@link #next()}, once the call completes.
+     */
+    public void release(URL url) {
+        if (loadBalancer == null) {
+            discoveryUtil.releaseServiceInstance(serviceName, version, environment, url);
+        } else {
+            discoveryUtil.releaseServiceInstance(serviceName, version, environment, url, loadBalancer);
+        }
+    }
+
+    /**
+     * Releases instance, returned by {@link #next()}, and reports latency and outcome of the call.
+     */
+    public void release(URL url, long latency, TimeUnit unit, boolean success) {
+        if (loadBalancer == null) {
+            discoveryUtil.releaseServiceInstance(serviceName, version, environment, url, latency, unit, success);
+        } else {
+            discoveryUtil.releaseServiceInstance(serviceName, version, environment, url, loadBalancer, latency, unit,
+                    success);
+        }
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getEnvironment() {
+        return environment;
+    }
+
+    @Override
+    public String toString() {
+        return "ServiceHandle{serviceName=" + serviceName + ", version=" + version + ", environment=" + environment +
+                "}";
+    }
+}
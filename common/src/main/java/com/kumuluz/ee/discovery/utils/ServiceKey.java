@@ -0,0 +1,159 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Interned key of a service (name, version and environment) with cached hash code.
+ * <p>
+ * Keys are obtained with {@link #of(String, String, String)} and {@link #of(String, String)}, which return the same
+ * instance for equal arguments without allocating once the key exists.
+ */
+public final class ServiceKey {
+
+    private static final ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String, ServiceKey>>> INTERNED =
+            new ConcurrentHashMap<>();
+
+    // marks keys, which are not bound to a specific version
+    private static final String ALL_VERSIONS = "\u0000*";
+
+    private final String serviceName;
+    private final String version;
+    private final String environment;
+    private final int hash;
+
+    private ServiceKey allVersionsKey;
+
+    private ServiceKey(String serviceName, String version, String environment) {
+        this.serviceName = serviceName;
+        this.version = version;
+        this.environment = environment;
+        this.hash = Objects.hash(serviceName, version, environment);
+    }
+
+    /**
+     * Returns key of the specific service version in the environment.
+     *
+     * @param serviceName service name
+     * @param version     service version
+     * @param environment service environment
+     * @return interned key
+     */
+    public static ServiceKey of(String serviceName, String version, String environment) {
+        return intern(serviceName, Objects.requireNonNull(version, "version"), environment);
+    }
+
+    /**
+     * Returns key of all versions of the service in the environment.
+     *
+     * @param serviceName service name
+     * @param environment service environment
+     * @return interned key
+     */
+    public static ServiceKey of(String serviceName, String environment) {
+        return intern(serviceName, ALL_VERSIONS, environment);
+    }
+
+    private static ServiceKey intern(String serviceName, String version, String environment) {
+
+        Objects.requireNonNull(serviceName, "serviceName");
+        Objects.requireNonNull(environment, "environment");
+
+        ConcurrentMap<String, ConcurrentMap<String, ServiceKey>> services = INTERNED.get(environment);
+        if (services == null) {
+            services = INTERNED.computeIfAbsent(environment, e -> new ConcurrentHashMap<>());
+        }
+
+        ConcurrentMap<String, ServiceKey> versions = services.get(serviceName);
+        if (versions == null) {
+            versions = services.computeIfAbsent(serviceName, s -> new ConcurrentHashMap<>());
+        }
+
+        ServiceKey key = versions.get(version);
+        if (key == null) {
+            key = versions.computeIfAbsent(version, v -> new ServiceKey(serviceName, v, environment));
+        }
+
+        return key;
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    /**
+     * @return service version or null, if key denotes all versions of the service
+     */
+    public String getVersion() {
+        return isAllVersions() ? null : version;
+    }
+
+    public String getEnvironment() {
+        return environment;
+    }
+
+    public boolean isAllVersions() {
+        return ALL_VERSIONS.equals(version);
+    }
+
+    /**
+     * @return key of all versions of this service in the same environment
+     */
+    public ServiceKey allVersions() {
+        ServiceKey key = allVersionsKey;
+        if (key == null) {
+            // racy single-check is safe, keys are interned and immutable
+            key = intern(serviceName, ALL_VERSIONS, environment);
+            allVersionsKey = key;
+        }
+
+        return key;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        ServiceKey that = (ServiceKey) o;
+
+        return hash == that.hash && serviceName.equals(that.serviceName) && version.equals(that.version) &&
+                environment.equals(that.environment);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "ServiceKey{serviceName=" + serviceName + ", version=" + (isAllVersions() ? "*" : version) +
+                ", environment=" + environment + "}";
+    }
+}
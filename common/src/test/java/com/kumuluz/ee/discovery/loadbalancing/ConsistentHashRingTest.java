@@ -0,0 +1,153 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.loadbalancing;
+
+import org.junit.Test;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link ConsistentHashRing}.
+ */
+public class ConsistentHashRingTest {
+
+    private static final int KEYS = 10000;
+
+    @Test
+    public void emptyRingHasNoInstance() {
+        assertEquals(-1, ConsistentHashRing.build(Collections.emptyList()).getIndex("key"));
+    }
+
+    @Test
+    public void mapsKeysToTheSameInstance() {
+
+        List<URL> instances = instances(0, 5);
+        ConsistentHashRing first = ConsistentHashRing.build(instances);
+        ConsistentHashRing second = ConsistentHashRing.build(instances);
+
+        for (int i = 0; i < KEYS; i++) {
+            int index = first.getIndex("key-" + i);
+            assertTrue(index >= 0 && index < instances.size());
+            assertEquals(index, second.getIndex("key-" + i));
+        }
+    }
+
+    @Test
+    public void spreadsKeysOverInstances() {
+
+        List<URL> instances = instances(0, 10);
+        ConsistentHashRing ring = ConsistentHashRing.build(instances);
+
+        int[] counts = new int[instances.size()];
+        for (int i = 0; i < KEYS; i++) {
+            counts[ring.getIndex("key-" + i)]++;
+        }
+
+        for (int count : counts) {
+            assertTrue("unbalanced ring: " + count, count > KEYS / instances.size() / 2);
+            assertTrue("unbalanced ring: " + count, count < KEYS / instances.size() * 2);
+        }
+    }
+
+    @Test
+    public void addingInstanceOnlyRemapsKeysToIt() {
+
+        List<URL> instances = instances(0, 5);
+        List<URL> added = instances(0, 6);
+        ConsistentHashRing ring = ConsistentHashRing.build(instances);
+        ConsistentHashRing rebuilt = ring.rebuild(added);
+
+        int remapped = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String key = "key-" + i;
+            URL before = instances.get(ring.getIndex(key));
+            URL after = added.get(rebuilt.getIndex(key));
+            if (!before.toString().equals(after.toString())) {
+                assertEquals(added.get(5).toString(), after.toString());
+                remapped++;
+            }
+        }
+
+        assertTrue(remapped > 0 && remapped < KEYS / 3);
+    }
+
+    @Test
+    public void removingInstanceOnlyRemapsItsKeys() {
+
+        List<URL> instances = instances(0, 5);
+        List<URL> remaining = new ArrayList<>(instances);
+        URL removed = remaining.remove(2);
+        ConsistentHashRing ring = ConsistentHashRing.build(instances);
+        ConsistentHashRing rebuilt = ring.rebuild(remaining);
+
+        for (int i = 0; i < KEYS; i++) {
+            String key = "key-" + i;
+            URL before = instances.get(ring.getIndex(key));
+            URL after = remaining.get(rebuilt.getIndex(key));
+            if (!before.toString().equals(removed.toString())) {
+                assertEquals(before.toString(), after.toString());
+            }
+        }
+    }
+
+    @Test
+    public void rebuiltRingMatchesNewRing() {
+
+        List<URL> instances = instances(0, 8);
+        List<URL> changed = new ArrayList<>(instances(3, 12));
+        Collections.reverse(changed);
+
+        ConsistentHashRing rebuilt = ConsistentHashRing.build(instances).rebuild(changed);
+        ConsistentHashRing built = ConsistentHashRing.build(changed);
+
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(built.getIndex("key-" + i), rebuilt.getIndex("key-" + i));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void buildsLargeRings() {
+
+        ConsistentHashRing ring = ConsistentHashRing.build(instances(0, 5000));
+
+        assertTrue(ring.getIndex("key") >= 0);
+    }
+
+    private static List<URL> instances(int from, int to) {
+
+        List<URL> instances = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            try {
+                instances.add(new URL("http://instance-" + i + ":8080"));
+            } catch (MalformedURLException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        return instances;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.loadbalancing;
+
+import com.kumuluz.ee.discovery.utils.ServiceKey;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link LeastOutstandingRequestsLoadBalancer} and {@link PowerOfTwoChoicesLoadBalancer}.
+ */
+public class LeastOutstandingRequestsLoadBalancerTest {
+
+    @Test
+    public void selectsInstanceWithFewestOutstandingRequests() throws Exception {
+
+        List<URL> instances = Arrays.asList(new URL("http://a:8080"), new URL("http://b:8080"),
+                new URL("http://c:8080"));
+        LeastOutstandingRequestsLoadBalancer loadBalancer = new LeastOutstandingRequestsLoadBalancer();
+        ServiceKey key = ServiceKey.of("least-outstanding-service", "1.0.0", "dev");
+
+        // every instance gets one request before any gets a second one
+        int[] counts = new int[instances.size()];
+        for (int i = 0; i < instances.size(); i++) {
+            counts[loadBalancer.select(key, instances)]++;
+        }
+        assertArrayEquals(new int[]{1, 1, 1}, counts);
+
+        loadBalancer.release(key, instances.get(1));
+        assertEquals(1, loadBalancer.select(key, instances));
+    }
+
+    @Test
+    public void carriesOutstandingRequestsOverToChangedInstances() throws Exception {
+
+        URL a = new URL("http://a:8080");
+        URL b = new URL("http://b:8080");
+        LeastOutstandingRequestsLoadBalancer loadBalancer = new LeastOutstandingRequestsLoadBalancer();
+        ServiceKey key = ServiceKey.of("changing-service", "1.0.0", "dev");
+
+        assertEquals(0, loadBalancer.select(key, Arrays.asList(a)));
+
+        // new list with an added instance, a has one outstanding request
+        List<URL> instances = new ArrayList<>(Arrays.asList(a, b));
+        assertEquals(1, loadBalancer.select(key, instances));
+    }
+
+    @Test
+    public void releaseOfUnknownInstanceIsIgnored() throws Exception {
+
+        LeastOutstandingRequestsLoadBalancer loadBalancer = new LeastOutstandingRequestsLoadBalancer();
+        ServiceKey key = ServiceKey.of("unknown-release-service", "1.0.0", "dev");
+
+        loadBalancer.release(key, new URL("http://a:8080"));
+        assertEquals(0, loadBalancer.select(key, Arrays.asList(new URL("http://a:8080"))));
+    }
+
+    @Test
+    public void powerOfTwoChoicesAvoidsBusyInstance() throws Exception {
+
+        List<URL> instances = Arrays.asList(new URL("http://a:8080"), new URL("http://b:8080"));
+        PowerOfTwoChoicesLoadBalancer loadBalancer = new PowerOfTwoChoicesLoadBalancer();
+        ServiceKey key = ServiceKey.of("power-of-two-service", "1.0.0", "dev");
+
+        // with two instances both are always compared, so selections alternate between them
+        int[] counts = new int[instances.size()];
+        for (int i = 0; i < 100; i++) {
+            counts[loadBalancer.select(key, instances)]++;
+        }
+        assertTrue(Math.abs(counts[0] - counts[1]) <= 1);
+    }
+}
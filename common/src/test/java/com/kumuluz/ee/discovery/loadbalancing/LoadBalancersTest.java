@@ -0,0 +1,54 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.loadbalancing;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link LoadBalancers}.
+ */
+public class LoadBalancersTest {
+
+    @Test
+    public void returnsBuiltInStrategiesByName() {
+        assertEquals(RoundRobinLoadBalancer.NAME, LoadBalancers.get(RoundRobinLoadBalancer.NAME).getName());
+        assertEquals(RandomLoadBalancer.NAME, LoadBalancers.get(RandomLoadBalancer.NAME).getName());
+        assertEquals(PowerOfTwoChoicesLoadBalancer.NAME,
+                LoadBalancers.get(PowerOfTwoChoicesLoadBalancer.NAME).getName());
+        assertEquals(LeastOutstandingRequestsLoadBalancer.NAME,
+                LoadBalancers.get(LeastOutstandingRequestsLoadBalancer.NAME).getName());
+        assertEquals(PeakEwmaLoadBalancer.NAME, LoadBalancers.get(PeakEwmaLoadBalancer.NAME).getName());
+    }
+
+    @Test
+    public void sharesOneInstancePerName() {
+        assertSame(LoadBalancers.get(RandomLoadBalancer.NAME), LoadBalancers.get(RandomLoadBalancer.NAME));
+    }
+
+    @Test
+    public void fallsBackToRoundRobin() {
+        assertEquals(RoundRobinLoadBalancer.NAME, LoadBalancers.get(null).getName());
+        assertEquals(RoundRobinLoadBalancer.NAME, LoadBalancers.get("").getName());
+        assertEquals(RoundRobinLoadBalancer.NAME, LoadBalancers.get("unknown").getName());
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.loadbalancing;
+
+import com.kumuluz.ee.discovery.utils.ServiceKey;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link PeakEwmaLoadBalancer}.
+ */
+public class PeakEwmaLoadBalancerTest {
+
+    @Test
+    public void prefersInstanceWithLowerLatency() throws Exception {
+
+        List<URL> instances = Arrays.asList(new URL("http://a:8080"), new URL("http://b:8080"));
+        PeakEwmaLoadBalancer loadBalancer = new PeakEwmaLoadBalancer();
+        ServiceKey key = ServiceKey.of("latency-service", "1.0.0", "dev");
+
+        record(loadBalancer, key, instances, 0, TimeUnit.MILLISECONDS.toNanos(200), true);
+        record(loadBalancer, key, instances, 1, TimeUnit.MILLISECONDS.toNanos(10), true);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(1, loadBalancer.select(key, instances));
+            loadBalancer.release(key, instances.get(1), TimeUnit.MILLISECONDS.toNanos(10), true);
+        }
+    }
+
+    @Test
+    public void penalisesFailedCalls() throws Exception {
+
+        List<URL> instances = Arrays.asList(new URL("http://a:8080"), new URL("http://b:8080"));
+        PeakEwmaLoadBalancer loadBalancer = new PeakEwmaLoadBalancer();
+        ServiceKey key = ServiceKey.of("failing-service", "1.0.0", "dev");
+
+        record(loadBalancer, key, instances, 0, TimeUnit.MILLISECONDS.toNanos(10), false);
+        record(loadBalancer, key, instances, 1, TimeUnit.MILLISECONDS.toNanos(20), true);
+
+        assertEquals(1, loadBalancer.select(key, instances));
+    }
+
+    @Test
+    public void avoidsInstancesWithOutstandingRequestsBeforeFirstSample() throws Exception {
+
+        List<URL> instances = Arrays.asList(new URL("http://a:8080"), new URL("http://b:8080"));
+        PeakEwmaLoadBalancer loadBalancer = new PeakEwmaLoadBalancer();
+        ServiceKey key = ServiceKey.of("pending-service", "1.0.0", "dev");
+
+        int first = loadBalancer.select(key, instances);
+        assertEquals(1 - first, loadBalancer.select(key, instances));
+    }
+
+    @Test
+    public void releaseWithoutOutcomeOnlyDecrementsOutstandingRequests() throws Exception {
+
+        List<URL> instances = Arrays.asList(new URL("http://a:8080"), new URL("http://b:8080"));
+        PeakEwmaLoadBalancer loadBalancer = new PeakEwmaLoadBalancer();
+        ServiceKey key = ServiceKey.of("release-service", "1.0.0", "dev");
+
+        int first = loadBalancer.select(key, instances);
+        loadBalancer.release(key, instances.get(first));
+        loadBalancer.release(key, instances.get(first));
+
+        int second = loadBalancer.select(key, instances);
+        assertEquals(1 - second, loadBalancer.select(key, instances));
+    }
+
+    private static void record(PeakEwmaLoadBalancer loadBalancer, ServiceKey key, List<URL> instances, int index,
+                               long latencyNanos, boolean success) {
+
+        // select until the instance is picked, then release all selections with the outcome
+        int selections = 0;
+        int[] selected = new int[instances.size()];
+        while (selected[index] == 0) {
+            selected[loadBalancer.select(key, instances)]++;
+            selections++;
+            assertTrue(selections < 1000);
+        }
+        for (int i = 0; i < selected.length; i++) {
+            for (int j = 0; j < selected[i]; j++) {
+                if (i == index) {
+                    loadBalancer.release(key, instances.get(i), latencyNanos, success);
+                } else {
+                    loadBalancer.release(key, instances.get(i));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.loadbalancing;
+
+import com.kumuluz.ee.discovery.utils.ServiceKey;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link RoundRobinLoadBalancer} and {@link RandomLoadBalancer}.
+ */
+public class RoundRobinLoadBalancerTest {
+
+    @Test
+    public void selectsInstancesInTurn() throws Exception {
+
+        List<URL> instances = Arrays.asList(new URL("http://a:8080"), new URL("http://b:8080"),
+                new URL("http://c:8080"));
+        RoundRobinLoadBalancer loadBalancer = new RoundRobinLoadBalancer();
+        ServiceKey key = ServiceKey.of("round-robin-service", "1.0.0", "dev");
+
+        for (int i = 0; i < 9; i++) {
+            assertEquals(i % 3, loadBalancer.select(key, instances));
+        }
+    }
+
+    @Test
+    public void countsSeparatelyForEachService() throws Exception {
+
+        List<URL> instances = Arrays.asList(new URL("http://a:8080"), new URL("http://b:8080"));
+        RoundRobinLoadBalancer loadBalancer = new RoundRobinLoadBalancer();
+        ServiceKey first = ServiceKey.of("first-service", "1.0.0", "dev");
+        ServiceKey second = ServiceKey.of("second-service", "1.0.0", "dev");
+
+        assertEquals(0, loadBalancer.select(first, instances));
+        assertEquals(0, loadBalancer.select(second, instances));
+        assertEquals(1, loadBalancer.select(first, instances));
+        assertEquals(1, loadBalancer.select(second, instances));
+    }
+
+    @Test
+    public void randomSelectsIndexesInRange() throws Exception {
+
+        List<URL> instances = Arrays.asList(new URL("http://a:8080"), new URL("http://b:8080"));
+        RandomLoadBalancer loadBalancer = new RandomLoadBalancer();
+        ServiceKey key = ServiceKey.of("random-service", "1.0.0", "dev");
+
+        boolean[] selected = new boolean[instances.size()];
+        for (int i = 0; i < 1000; i++) {
+            selected[loadBalancer.select(key, instances)] = true;
+        }
+
+        assertTrue(selected[0] && selected[1]);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import com.kumuluz.ee.discovery.loadbalancing.LoadBalancers;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of default methods of {@link DiscoveryUtil}, used by implementations written against the original interface.
+ */
+public class DiscoveryUtilTest {
+
+    @Test
+    public void defaultMethodsDelegateToBlockingLookups() throws Exception {
+
+        URL url = new URL("http://a:8080");
+        DiscoveryUtil discoveryUtil = new MinimalDiscoveryUtil(url);
+
+        assertEquals(Optional.of(Collections.singletonList(url)), discoveryUtil
+                .getServiceInstancesAsync("service", "1.0.0", "dev").toCompletableFuture().get(5, TimeUnit.SECONDS));
+        assertEquals(Optional.of(url), discoveryUtil.getServiceInstanceAsync("service", "1.0.0", "dev")
+                .toCompletableFuture().get(5, TimeUnit.SECONDS));
+        assertEquals(Optional.of(Arrays.asList("1.0.0")), discoveryUtil.getServiceVersionsAsync("service", "dev")
+                .toCompletableFuture().get(5, TimeUnit.SECONDS));
+
+        assertEquals(Optional.of(url), discoveryUtil.getServiceInstance("service", "1.0.0", "dev",
+                LoadBalancers.get(null)));
+        assertEquals(Optional.of(url), discoveryUtil.getServiceInstanceByKey("service", "1.0.0", "dev", "tenant"));
+        assertEquals(Optional.of(url), discoveryUtil.getServiceInstanceByKey("service", "1.0.0", "dev", null));
+
+        discoveryUtil.releaseServiceInstance("service", "1.0.0", "dev", url);
+        discoveryUtil.releaseServiceInstance("service", "1.0.0", "dev", url, 10, TimeUnit.MILLISECONDS, true);
+        discoveryUtil.releaseServiceInstance("service", "1.0.0", "dev", url, LoadBalancers.get(null));
+        discoveryUtil.releaseServiceInstance("service", "1.0.0", "dev", url, LoadBalancers.get(null), 10,
+                TimeUnit.MILLISECONDS, true);
+    }
+
+    private static class MinimalDiscoveryUtil implements DiscoveryUtil {
+
+        private final URL url;
+
+        private MinimalDiscoveryUtil(URL url) {
+            this.url = url;
+        }
+
+        @Override
+        public void register(String serviceName, String version, String environment, long ttl, long pingInterval,
+                             boolean singleton) {
+        }
+
+        @Override
+        public void deregister() {
+        }
+
+        @Override
+        public Optional<List<URL>> getServiceInstances(String serviceName, String version, String environment) {
+            return Optional.of(Collections.singletonList(url));
+        }
+
+        @Override
+        public Optional<URL> getServiceInstance(String serviceName, String version, String environment) {
+            return Optional.of(url);
+        }
+
+        @Override
+        public Optional<List<String>> getServiceVersions(String serviceName, String environment) {
+            return Optional.of(Arrays.asList("1.0.0"));
+        }
+
+        @Override
+        public void disableServiceInstance(String serviceName, String version, String environment, URL url) {
+        }
+    }
+}
@@ -21,6 +21,8 @@
 package com.kumuluz.ee.discovery;
 
 import com.kumuluz.ee.configuration.utils.ConfigurationUtil;
+import com.kumuluz.ee.discovery.loadbalancing.LoadBalancer;
+import com.kumuluz.ee.discovery.loadbalancing.LoadBalancers;
 import com.kumuluz.ee.discovery.utils.*;
 import com.vdurmont.semver4j.Requirement;
 import com.vdurmont.semver4j.Semver;
@@ -31,6 +33,7 @@ import mousio.client.promises.ResponsePromise;
 import mousio.client.retry.RetryWithExponentialBackOff;
 import mousio.etcd4j.EtcdClient;
 import mousio.etcd4j.EtcdSecurityContext;
+import mousio.etcd4j.requests.EtcdKeyGetRequest;
 import mousio.etcd4j.promises.EtcdResponsePromise;
 import mousio.etcd4j.responses.EtcdAuthenticationException;
 import mousio.etcd4j.responses.EtcdErrorCode;
@@ -38,19 +41,31 @@ import mousio.etcd4j.responses.EtcdException;
 import mousio.etcd4j.responses.EtcdKeysResponse;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
 import javax.net.ssl.SSLException;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.*;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
 import java.util.logging.Logger;
 
 /**
@@ -60,15 +75,40 @@ import java.util.logging.Logger;
 public class Etcd2DiscoveryUtilImpl implements DiscoveryUtil {
 
     private static final Logger log = Logger.getLogger(Etcd2DiscoveryUtilImpl.class.getName());
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+
+    private static final long SHUTDOWN_TIMEOUT_S = 5;
+
+    // fetch retries, recoveries and snapshot writes
+    private final ScheduledExecutorService scheduler = newScheduler("kumuluzee-discovery-scheduler");
+    // heartbeats are not delayed by tasks of the scheduler
+    private final ScheduledExecutorService heartbeatExecutor = newScheduler("kumuluzee-discovery-heartbeat");
     private final ConfigurationUtil configurationUtil = ConfigurationUtil.getInstance();
 
-    private List<Etcd2ServiceConfiguration> registeredServices;
+    private List<Etcd2Registrator> registrators;
+    private Etcd2HeartbeatScheduler heartbeatScheduler;
+    private Etcd2RecoveryLimiter recoveryLimiter;
+
+    private Etcd2ServiceRegistry registry;
+
+    private LoadBalancer defaultLoadBalancer;
+
+    private final ConcurrentMap<String, Optional<Requirement>> versionRequirements = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<ServiceKey, CompletableFuture<Etcd2ServiceRegistry.Instances>> instanceFetches =
+            new ConcurrentHashMap<>();
+    private final ConcurrentMap<ServiceKey, CompletableFuture<Optional<List<String>>>> versionFetches =
+            new ConcurrentHashMap<>();
+
+    private final Etcd2DiscoveryMetrics metrics = new Etcd2DiscoveryMetrics();
+
+    private Etcd2CachePolicy cachePolicy;
 
-    private int lastInstanceServedIndex;
+    private boolean watchEnvironments;
+    private final ConcurrentMap<String, EnvironmentWatch> environmentWatches = new ConcurrentHashMap<>();
+    private Etcd2WatchEventQueue<WatchEvent> watchEvents;
 
-    private Map<String, Map<String, Etcd2Service>> serviceInstances;
-    private Map<String, List<String>> serviceVersions;
+    private Path snapshotPath;
+    private volatile Etcd2ServiceRegistry.Snapshot lastWrittenSnapshot;
 
     private EtcdClient etcd;
 
@@ -77,11 +117,12 @@ public class Etcd2DiscoveryUtilImpl implements DiscoveryUtil {
     @PostConstruct
     public void init() {
 
-        this.registeredServices = new LinkedList<>();
+        this.registrators = new CopyOnWriteArrayList<>();
+        this.recoveryLimiter = new Etcd2RecoveryLimiter(scheduler, configurationUtil);
+        this.heartbeatScheduler = new Etcd2HeartbeatScheduler(heartbeatExecutor, configurationUtil);
 
-        this.lastInstanceServedIndex = 0;
-        this.serviceInstances = new HashMap<>();
-        this.serviceVersions = new HashMap<>();
+        this.defaultLoadBalancer = LoadBalancers.get(configurationUtil.get("kumuluzee.discovery.load-balancer")
+                .orElse(null));
 
         // get user credentials
         String etcdUsername = configurationUtil.get("kumuluzee.discovery.etcd.username").orElse(null);
@@ -160,6 +201,136 @@ public class Etcd2DiscoveryUtilImpl implements DiscoveryUtil {
         }
 
         this.clusterId = configurationUtil.get("kumuluzee.discovery.cluster").orElse(null);
+        this.registry = new Etcd2ServiceRegistry(this.clusterId);
+        this.cachePolicy = new Etcd2CachePolicy(configurationUtil);
+        this.watchEnvironments = "environment".equals(configurationUtil.get("kumuluzee.discovery.watch-mode")
+                .orElse("service"));
+        this.watchEvents = new Etcd2WatchEventQueue<>(configurationUtil, this::publishWatchEvents);
+
+        this.metrics.setHeartbeatGauges(this.heartbeatScheduler::getMinIntervalMs,
+                this.heartbeatScheduler::getMaxRoundTripTimeMicros);
+        this.metrics.setRecoveryGauges(this.recoveryLimiter::getPendingRecoveries, this.recoveryLimiter::getRecoveries,
+                this.heartbeatScheduler::getUnregisteredServices);
+        this.metrics.register();
+
+        String snapshotFile = configurationUtil.get("kumuluzee.discovery.snapshot.file").orElse(null);
+        if (snapshotFile != null && !snapshotFile.isEmpty()) {
+            this.snapshotPath = Paths.get(snapshotFile);
+            loadSnapshot();
+
+            int writeInterval = configurationUtil.getInteger("kumuluzee.discovery.snapshot.write-interval-s")
+                    .orElse(30);
+            scheduler.scheduleWithFixedDelay(this::writeSnapshot, writeInterval, writeInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        this.heartbeatExecutor.shutdownNow();
+        this.watchEvents.shutdown();
+        this.metrics.unregister();
+
+        // delayed retries and recoveries are dropped, a snapshot write in progress completes before the last one
+        this.scheduler.shutdown();
+        try {
+            if (!this.scheduler.awaitTermination(SHUTDOWN_TIMEOUT_S, TimeUnit.SECONDS)) {
+                log.warning("Scheduled tasks did not complete in " + SHUTDOWN_TIMEOUT_S + " s.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (this.snapshotPath != null) {
+            writeSnapshot();
+        }
+    }
+
+    /**
+     * @return single-threaded daemon scheduler, which drops delayed tasks on shutdown
+     */
+    private static ScheduledExecutorService newScheduler(String threadName) {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+
+        return executor;
+    }
+
+    /**
+     * Loads cache from the snapshot file and reconciles loaded entries with etcd in the background.
+     */
+    private void loadSnapshot() {
+
+        Etcd2RegistrySnapshotFile.Contents contents;
+        try {
+            contents = Etcd2RegistrySnapshotFile.read(this.snapshotPath);
+        } catch (IOException e) {
+            log.warning("Cannot read registry snapshot, starting with empty cache: " + e);
+            return;
+        }
+
+        if (contents == null) {
+            return;
+        }
+
+        this.lastWrittenSnapshot = this.registry.update(contents::applyTo);
+        log.info("Loaded registry snapshot with " + contents.getInstances().size() + " services.");
+
+        if (etcd == null) {
+            return;
+        }
+
+        for (ServiceKey versionsKey : contents.getVersions().keySet()) {
+            reconcileVersions(versionsKey, 0);
+        }
+        for (ServiceKey instancesKey : contents.getInstances().keySet()) {
+            // instances of services with cached versions are reconciled together with versions
+            if (!contents.getVersions().containsKey(instancesKey.allVersions())) {
+                reconcileInstances(instancesKey, 0);
+            }
+        }
+    }
+
+    private void reconcileInstances(ServiceKey instancesKey, int attempt) {
+        getEtcdDir(Etcd2Utils.getServiceKeyInstances(instancesKey.getEnvironment(), instancesKey.getServiceName(),
+                instancesKey.getVersion()))
+                .whenComplete((etcdKeysResponse, t) -> {
+                    if (t == null) {
+                        cacheInstances(instancesKey, etcdKeysResponse);
+                    } else {
+                        // keep loaded instances while etcd is unavailable
+                        recoveryLimiter.schedule(() -> reconcileInstances(instancesKey, attempt + 1), attempt);
+                    }
+                });
+    }
+
+    private void reconcileVersions(ServiceKey versionsKey, int attempt) {
+        getEtcdDir(getServiceKeyVersions(versionsKey.getEnvironment(), versionsKey.getServiceName()))
+                .whenComplete((etcdKeysResponse, t) -> {
+                    if (t == null) {
+                        cacheVersions(versionsKey, etcdKeysResponse, true);
+                    } else {
+                        recoveryLimiter.schedule(() -> reconcileVersions(versionsKey, attempt + 1), attempt);
+                    }
+                });
+    }
+
+    private void writeSnapshot() {
+
+        Etcd2ServiceRegistry.Snapshot snapshot = this.registry.getSnapshot();
+        if (snapshot == this.lastWrittenSnapshot) {
+            return;
+        }
+
+        try {
+            Etcd2RegistrySnapshotFile.write(this.snapshotPath, snapshot);
+            this.lastWrittenSnapshot = snapshot;
+        } catch (IOException e) {
+            log.warning("Cannot write registry snapshot: " + e);
+        }
     }
 
     @Override
@@ -251,10 +422,9 @@ public class Etcd2DiscoveryUtilImpl implements DiscoveryUtil {
         Etcd2ServiceConfiguration serviceConfiguration = new Etcd2ServiceConfiguration(serviceName, version,
                 environment, (int)ttl, singleton, baseUrl, containerUrl, this.clusterId);
 
-        this.registeredServices.add(serviceConfiguration);
-
-        Etcd2Registrator registrator = new Etcd2Registrator(etcd, serviceConfiguration);
-        scheduler.scheduleWithFixedDelay(registrator, 0, pingInterval, TimeUnit.SECONDS);
+        Etcd2Registrator registrator = new Etcd2Registrator(etcd, serviceConfiguration, this.recoveryLimiter);
+        this.registrators.add(registrator);
+        this.heartbeatScheduler.add(registrator, pingInterval);
 
     }
 
@@ -262,16 +432,57 @@ public class Etcd2DiscoveryUtilImpl implements DiscoveryUtil {
     public void deregister() {
 
         if (etcd != null) {
-            for(Etcd2ServiceConfiguration serviceConfiguration : this.registeredServices) {
-                log.info("Deregistering service with etcd. Service name: " + serviceConfiguration.getServiceName() +
-                        " Service ID: " + serviceConfiguration.getServiceKeyUrl());
+            long gracePeriodMs = configurationUtil.getLong("kumuluzee.discovery.deregister.grace-period-ms")
+                    .orElse(1000L);
+            long timeoutMs = configurationUtil.getLong("kumuluzee.discovery.deregister.timeout-ms").orElse(5000L);
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+
+            // instances are marked as draining first, so clients stop selecting them before they are deleted
+            List<CompletableFuture<Boolean>> draining = new ArrayList<>(this.registrators.size());
+            for (Etcd2Registrator registrator : this.registrators) {
+                draining.add(registrator.drain());
+            }
 
+            boolean drained = awaitDeregistration(draining, deadline) &&
+                    draining.stream().anyMatch(CompletableFuture::join);
+            if (drained) {
+                long graceNanos = Math.min(TimeUnit.MILLISECONDS.toNanos(gracePeriodMs), deadline - System.nanoTime());
                 try {
-                    etcd.delete(serviceConfiguration.getServiceKeyUrl()).send();
-                } catch (IOException e) {
-                    log.severe("Cannot deregister service. Error: " + e.toString());
+                    TimeUnit.NANOSECONDS.sleep(graceNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
             }
+
+            List<CompletableFuture<Void>> deleted = new ArrayList<>(this.registrators.size());
+            for (Etcd2Registrator registrator : this.registrators) {
+                Etcd2ServiceConfiguration serviceConfiguration = registrator.getServiceConfig();
+                log.info("Deregistering service with etcd. Service name: " + serviceConfiguration.getServiceName() +
+                        " Service ID: " + serviceConfiguration.getServiceKeyUrl());
+
+                deleted.add(registrator.deregister());
+            }
+
+            if (!awaitDeregistration(deleted, deadline)) {
+                log.warning("Deregistration did not complete in " + timeoutMs + " ms, remaining instances expire " +
+                        "with their TTL.");
+            }
+        }
+    }
+
+    /**
+     * @return true, if all futures completed before the deadline
+     */
+    private static boolean awaitDeregistration(List<? extends CompletableFuture<?>> futures, long deadline) {
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                    .get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
         }
     }
 
@@ -279,197 +490,592 @@ public class Etcd2DiscoveryUtilImpl implements DiscoveryUtil {
     public Optional<List<URL>> getServiceInstances(String serviceName, String version,
                                                    String environment) {
 
-        version = determineVersion(serviceName, version, environment);
+        return getInstances(determineServiceKey(serviceName, version, environment)).getOptionalUrls();
 
-        if (!this.serviceInstances.containsKey(serviceName + "_" + version + "_" + environment)) {
+    }
 
-            EtcdKeysResponse etcdKeysResponse = Etcd2Utils.getEtcdDir(etcd, Etcd2Utils.getServiceKeyInstances
-                    (environment, serviceName, version));
+    @Override
+    public CompletionStage<Optional<List<URL>>> getServiceInstancesAsync(String serviceName, String version,
+                                                                         String environment) {
 
-            HashMap<String, Etcd2Service> serviceUrls = new HashMap<>();
-            if (etcdKeysResponse != null) {
-                for (EtcdKeysResponse.EtcdNode node : etcdKeysResponse.getNode().getNodes()) {
+        return determineServiceKeyAsync(serviceName, version, environment)
+                .thenCompose(this::getInstancesAsync)
+                .thenApply(Etcd2ServiceRegistry.Instances::getOptionalUrls);
 
-                    String url = null;
-                    String containerUrlString = null;
-                    String clusterId = null;
-                    boolean isActive = true;
-                    for (EtcdKeysResponse.EtcdNode instanceNode : node.getNodes()) {
+    }
 
-                        if ("url".equals(Etcd2Utils.getLastKeyLayer(instanceNode.getKey())) &&
-                                instanceNode.getValue() != null) {
-                            url = instanceNode.getValue();
-                        }
+    /**
+     * Returns cached instances of the service, fetching them from etcd and setting up a watch on cache miss.
+     */
+    private Etcd2ServiceRegistry.Instances getInstances(ServiceKey instancesKey) {
 
-                        if ("containerUrl".equals(Etcd2Utils.getLastKeyLayer(instanceNode.getKey())) &&
-                                instanceNode.getValue() != null) {
-                            containerUrlString = instanceNode.getValue();
-                        }
+        Etcd2ServiceRegistry.Instances instances = this.registry.getSnapshot().getInstances(instancesKey);
 
-                        if ("clusterId".equals(Etcd2Utils.getLastKeyLayer(instanceNode.getKey())) &&
-                                instanceNode.getValue() != null && !instanceNode.getValue().isEmpty()) {
-                            clusterId = instanceNode.getValue();
-                        }
+        if (instances != null && !instances.isExpired(System.nanoTime())) {
+            return instances;
+        }
 
-                        if ("status".equals(Etcd2Utils.getLastKeyLayer(instanceNode.getKey())) &&
-                                "disabled".equals(instanceNode.getValue())) {
-                            isActive = false;
-                        }
+        return getInstancesAsync(instancesKey).join();
 
-                    }
-                    if (isActive && url != null) {
-                        try {
-                            URL containerUrl = (containerUrlString == null || containerUrlString.isEmpty()) ?
-                                    null : new URL(containerUrlString);
-                            serviceUrls.put(node.getKey() + "/url",
-                                    new Etcd2Service(new URL(url), containerUrl, clusterId));
-                        } catch (MalformedURLException e) {
-                            log.severe("Malformed URL exception: " + e.toString());
-                        }
-                    }
+    }
+
+    /**
+     * Returns cached instances of the service. On cache miss, instances are fetched from etcd without blocking.
+     * Expired entries are served while they are fetched again in the background, if stale-while-revalidate is
+     * enabled.
+     */
+    private CompletableFuture<Etcd2ServiceRegistry.Instances> getInstancesAsync(ServiceKey instancesKey) {
+
+        Etcd2ServiceRegistry.Instances instances = this.registry.getSnapshot().getInstances(instancesKey);
+
+        if (instances != null) {
+            if (!instances.isExpired(System.nanoTime())) {
+                return CompletableFuture.completedFuture(instances);
+            }
+
+            if (this.cachePolicy.isStaleWhileRevalidate()) {
+                fetchInstances(instancesKey);
+                return CompletableFuture.completedFuture(instances);
+            }
+        }
+
+        return fetchInstances(instancesKey);
+
+    }
+
+    private CompletableFuture<Etcd2ServiceRegistry.Instances> fetchInstances(ServiceKey instancesKey) {
+        return fetchOnce(this.instanceFetches, instancesKey, this::getCachedInstances,
+                key -> getEtcdDir(Etcd2Utils.getServiceKeyInstances(key.getEnvironment(), key.getServiceName(),
+                        key.getVersion()))
+                        .handle((etcdKeysResponse, t) -> (t == null) ? cacheInstances(key, etcdKeysResponse) :
+                                cacheFailedInstances(key)));
+    }
+
+    /**
+     * @return cached instances, or null if instances are not cached or expired
+     */
+    private Etcd2ServiceRegistry.Instances getCachedInstances(ServiceKey instancesKey) {
+        Etcd2ServiceRegistry.Instances instances = this.registry.getSnapshot().getInstances(instancesKey);
+
+        return (instances == null || instances.isExpired(System.nanoTime())) ? null : instances;
+    }
+
+    /**
+     * Reads directory from etcd with bounded retries.
+     *
+     * @return future, completed with the response, with null if the directory does not exist, or exceptionally if
+     * all attempts failed
+     */
+    private CompletableFuture<EtcdKeysResponse> getEtcdDir(String key) {
+        CompletableFuture<EtcdKeysResponse> etcdKeysResponse = new CompletableFuture<>();
+        getEtcdDir(key, 0, etcdKeysResponse);
+
+        return etcdKeysResponse;
+    }
+
+    private void getEtcdDir(String key, int attempt, CompletableFuture<EtcdKeysResponse> etcdKeysResponse) {
+        Etcd2Utils.getEtcdDirAsync(etcd, key, this.cachePolicy.getFetchTimeoutMs()).whenComplete((response, t) -> {
+            if (t == null) {
+                etcdKeysResponse.complete(response);
+            } else if (etcd != null && attempt < this.cachePolicy.getFetchRetries()) {
+                try {
+                    scheduler.schedule(() -> getEtcdDir(key, attempt + 1, etcdKeysResponse),
+                            this.cachePolicy.getFetchRetryDelayMs(attempt), TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // shut down
+                    etcdKeysResponse.completeExceptionally(t);
                 }
+            } else {
+                etcdKeysResponse.completeExceptionally(t);
             }
+        });
+    }
 
-            this.serviceInstances.put(serviceName + "_" + version + "_" + environment, serviceUrls);
+    /**
+     * Coalesces concurrent cache misses of the same key into a single fetch. The first caller performs the fetch,
+     * others share its result.
+     *
+     * @param inFlight fetches in progress
+     * @param key      key of the missed entry
+     * @param cached   returns the cached entry or null, checked again once the fetch is claimed
+     * @param fetch    fetches and caches the entry
+     * @return future, completed with the fetched entry
+     */
+    private <T> CompletableFuture<T> fetchOnce(ConcurrentMap<ServiceKey, CompletableFuture<T>> inFlight,
+                                               ServiceKey key, Function<ServiceKey, T> cached,
+                                               Function<ServiceKey, CompletableFuture<T>> fetch) {
+
+        CompletableFuture<T> result = inFlight.get(key);
+        if (result == null) {
+            CompletableFuture<T> claimed = new CompletableFuture<>();
+            result = inFlight.putIfAbsent(key, claimed);
+
+            if (result == null) {
+                // previous fetch may have completed between the cache miss and the claim
+                T entry = cached.apply(key);
+                if (entry != null) {
+                    inFlight.remove(key, claimed);
+                    claimed.complete(entry);
+                    return claimed;
+                }
 
-            if (!this.serviceVersions.containsKey(serviceName + "_" + environment)) {
-                // we are already watching all versions, no need to watch specific version
-                watchServiceInstances(Etcd2Utils.getServiceKeyInstances(environment, serviceName, version),
-                        etcdKeysResponse.etcdIndex + 1);
+                this.metrics.recordCacheMissFetch();
+                try {
+                    fetch.apply(key).whenComplete((fetched, t) -> {
+                        inFlight.remove(key, claimed);
+                        if (t == null) {
+                            claimed.complete(fetched);
+                        } else {
+                            claimed.completeExceptionally(t);
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    inFlight.remove(key, claimed);
+                    claimed.completeExceptionally(e);
+                }
+
+                return claimed;
             }
+        }
 
-            List<URL> instances = new LinkedList<>();
-            for(Etcd2Service service : serviceUrls.values()) {
-                if(this.clusterId != null && this.clusterId.equals(service.getClusterId())) {
-                    instances.add(service.getContainerUrl());
-                } else {
-                    instances.add(service.getBaseUrl());
+        this.metrics.recordCoalescedRequest();
+
+        return result;
+    }
+
+    /**
+     * Parses fetched instances, publishes them to the registry and sets up a watch.
+     */
+    private Etcd2ServiceRegistry.Instances cacheInstances(ServiceKey instancesKey,
+                                                          EtcdKeysResponse etcdKeysResponse) {
+
+        if (etcdKeysResponse == null) {
+            // service does not exist, cache negative result until it expires
+            long expiresAt = this.cachePolicy.getNegativeExpiry();
+
+            return this.registry.update(snapshot -> snapshot.withExpiringInstances(instancesKey,
+                    Collections.emptyMap(), expiresAt)).getInstances(instancesKey);
+        }
+
+        Map<String, Etcd2Service> fetchedServiceUrls = parseInstances(etcdKeysResponse.getNode());
+
+        if (this.watchEnvironments) {
+            long expired = System.nanoTime();
+
+            return publishWatchedByEnvironment(instancesKey.getEnvironment(), etcdKeysResponse,
+                    snapshot -> snapshot.withInstances(instancesKey, fetchedServiceUrls),
+                    snapshot -> snapshot.withExpiringInstances(instancesKey, fetchedServiceUrls, expired))
+                    .getInstances(instancesKey);
+        }
+
+        Etcd2ServiceRegistry.Instances instances = this.registry.update(snapshot ->
+                snapshot.withInstances(instancesKey, fetchedServiceUrls)).getInstances(instancesKey);
+
+        if (!this.registry.getSnapshot().hasVersions(instancesKey.allVersions())) {
+            // we are already watching all versions, no need to watch specific version
+            watchServiceInstances(Etcd2Utils.getServiceKeyInstances(instancesKey.getEnvironment(),
+                    instancesKey.getServiceName(), instancesKey.getVersion()), getWatchIndex(etcdKeysResponse));
+        }
+
+        return instances;
+
+    }
+
+    /**
+     * Parses active instances from the instances directory of a service version.
+     */
+    private Map<String, Etcd2Service> parseInstances(EtcdKeysResponse.EtcdNode instancesNode) {
+
+        Map<String, Etcd2Service> fetchedServiceUrls = new HashMap<>();
+        for (EtcdKeysResponse.EtcdNode node : instancesNode.getNodes()) {
+
+            String url = null;
+            String containerUrlString = null;
+            String clusterId = null;
+            boolean isActive = true;
+            for (EtcdKeysResponse.EtcdNode instanceNode : node.getNodes()) {
+
+                if ("url".equals(Etcd2Utils.getLastKeyLayer(instanceNode.getKey())) &&
+                        instanceNode.getValue() != null) {
+                    url = instanceNode.getValue();
+                }
+
+                if ("containerUrl".equals(Etcd2Utils.getLastKeyLayer(instanceNode.getKey())) &&
+                        instanceNode.getValue() != null) {
+                    containerUrlString = instanceNode.getValue();
+                }
+
+                if ("clusterId".equals(Etcd2Utils.getLastKeyLayer(instanceNode.getKey())) &&
+                        instanceNode.getValue() != null && !instanceNode.getValue().isEmpty()) {
+                    clusterId = instanceNode.getValue();
+                }
+
+                if ("status".equals(Etcd2Utils.getLastKeyLayer(instanceNode.getKey())) &&
+                        Etcd2Utils.isInactiveStatus(instanceNode.getValue())) {
+                    isActive = false;
+                }
+
+            }
+            if (isActive && url != null) {
+                try {
+                    URL containerUrl = (containerUrlString == null || containerUrlString.isEmpty()) ?
+                            null : new URL(containerUrlString);
+                    fetchedServiceUrls.put(node.getKey() + "/url",
+                            new Etcd2Service(new URL(url), containerUrl, clusterId));
+                } catch (MalformedURLException e) {
+                    log.severe("Malformed URL exception: " + e.toString());
                 }
             }
-            return Optional.of(instances);
+        }
 
-        } else {
+        return fetchedServiceUrls;
+    }
 
-            List<URL> instances = new LinkedList<>();
-            for(Etcd2Service service : this.serviceInstances.get(serviceName + "_" + version + "_" + environment)
-                    .values()) {
-                if(this.clusterId != null && this.clusterId.equals(service.getClusterId())) {
-                    instances.add(service.getContainerUrl());
-                } else {
-                    instances.add(service.getBaseUrl());
+    /**
+     * Parses versions of the service and their active instances.
+     *
+     * @param serviceNode         directory of the service
+     * @param versionsKey         key of all versions of the service
+     * @param discoveredInstances map, to which active instances are added
+     * @return versions with active instances
+     */
+    private List<String> parseVersions(EtcdKeysResponse.EtcdNode serviceNode, ServiceKey versionsKey,
+                                       Map<ServiceKey, Map<String, Etcd2Service>> discoveredInstances) {
+
+        String serviceName = versionsKey.getServiceName();
+        String environment = versionsKey.getEnvironment();
+
+        List<String> versions = new LinkedList<>();
+        for (EtcdKeysResponse.EtcdNode versionNode : serviceNode.getNodes()) {
+
+            String version = Etcd2Utils.getLastKeyLayer(versionNode.getKey());
+            if (versionNode.getNodes().isEmpty()) {
+                continue;
+            }
+
+            boolean versionActive = false;
+            for (EtcdKeysResponse.EtcdNode instanceNode : versionNode.getNodes().get(0).getNodes()) {
+
+                String url = null;
+                String status = null;
+                String containerUrlString = null;
+                String clusterId = null;
+
+                for (EtcdKeysResponse.EtcdNode node : instanceNode.getNodes()) {
+
+                    if ("url".equals(Etcd2Utils.getLastKeyLayer(node.getKey())) &&
+                            node.getValue() != null) {
+                        url = node.getValue();
+                    }
+
+                    if ("containerUrl".equals(Etcd2Utils.getLastKeyLayer(node.getKey())) &&
+                            node.getValue() != null) {
+                        containerUrlString = node.getValue();
+                    }
+
+                    if ("clusterId".equals(Etcd2Utils.getLastKeyLayer(node.getKey())) &&
+                            node.getValue() != null && !node.getValue().isEmpty()) {
+                        clusterId = node.getValue();
+                    }
+
+                    if ("status".equals(Etcd2Utils.getLastKeyLayer(node.getKey())) &&
+                            node.getValue() != null) {
+                        status = node.getValue();
+                    }
                 }
+
+                if (url != null && !Etcd2Utils.isInactiveStatus(status)) {
+                    versionActive = true;
+
+                    // active instance, add to buffer
+                    try {
+                        URL containerUrl = (containerUrlString == null || containerUrlString.isEmpty()) ?
+                                null : new URL(containerUrlString);
+                        discoveredInstances.computeIfAbsent(ServiceKey.of(serviceName, version,
+                                environment), k -> new HashMap<>()).put(instanceNode.getKey() + "/url",
+                                new Etcd2Service(new URL(url), containerUrl, clusterId));
+                    } catch (MalformedURLException e) {
+                        log.severe("Malformed URL exception: " + e.toString());
+                    }
+                }
+
             }
-            return Optional.of(instances);
 
+            if (versionActive) {
+                versions.add(version);
+            }
+        }
+
+        return versions;
+    }
+
+    /**
+     * Keeps stale instances after a failed fetch, or caches empty instances if none are cached, until the entry
+     * expires.
+     */
+    private Etcd2ServiceRegistry.Instances cacheFailedInstances(ServiceKey instancesKey) {
+
+        long expiresAt = this.cachePolicy.getErrorExpiry();
+
+        return this.registry.update(snapshot -> {
+            Etcd2ServiceRegistry.Instances stale = snapshot.getInstances(instancesKey);
+            if (stale != null && !stale.isExpiring()) {
+                return snapshot;
+            }
+
+            return snapshot.withExpiringInstances(instancesKey, (stale == null) ? Collections.emptyMap() :
+                    stale.getServices(), expiresAt);
+        }).getInstances(instancesKey);
+    }
+
+    private long getWatchIndex(EtcdKeysResponse etcdKeysResponse) {
+        if (etcdKeysResponse.etcdIndex != null) {
+            return etcdKeysResponse.etcdIndex + 1;
         }
 
+        return etcdKeysResponse.getNode().getModifiedIndex() + 1;
     }
 
     @Override
     public Optional<URL> getServiceInstance(String serviceName, String version, String
             environment) {
 
-        Optional<List<URL>> optionalServiceInstances = getServiceInstances(serviceName, version, environment);
+        ServiceKey serviceKey = determineServiceKey(serviceName, version, environment);
 
-        if (optionalServiceInstances.isPresent()) {
+        return selectInstance(serviceKey, this.defaultLoadBalancer);
 
-            List<URL> serviceInstances = optionalServiceInstances.get();
+    }
 
-            if (!serviceInstances.isEmpty()) {
-                int index = 0;
-                if (serviceInstances.size() >= lastInstanceServedIndex + 2) {
-                    index = lastInstanceServedIndex + 1;
-                }
-                lastInstanceServedIndex = index;
+    @Override
+    public CompletionStage<Optional<URL>> getServiceInstanceAsync(String serviceName, String version,
+                                                                  String environment) {
 
-                return Optional.of(serviceInstances.get(index));
-            }
+        return determineServiceKeyAsync(serviceName, version, environment)
+                .thenCompose(serviceKey -> getInstancesAsync(serviceKey)
+                        .thenApply(serviceInstances -> selectInstance(serviceKey, serviceInstances,
+                                this.defaultLoadBalancer)));
+
+    }
+
+    @Override
+    public Optional<URL> getServiceInstance(String serviceName, String version, String environment,
+                                            LoadBalancer loadBalancer) {
+
+        return selectInstance(determineServiceKey(serviceName, version, environment), loadBalancer);
+
+    }
+
+    @Override
+    public Optional<URL> getServiceInstanceByKey(String serviceName, String version, String environment,
+                                                 String hashKey) {
+
+        if (hashKey == null) {
+            return getServiceInstance(serviceName, version, environment);
+        }
+
+        Etcd2ServiceRegistry.Instances serviceInstances = getInstances(determineServiceKey(serviceName, version,
+                environment));
+
+        if (serviceInstances.size() > 0) {
+            return serviceInstances.getUrl(serviceInstances.getRing().getIndex(hashKey));
+        }
+
+        return Optional.empty();
+
+    }
+
+    private Optional<URL> selectInstance(ServiceKey serviceKey, LoadBalancer loadBalancer) {
+
+        return selectInstance(serviceKey, getInstances(serviceKey), loadBalancer);
+
+    }
+
+    private Optional<URL> selectInstance(ServiceKey serviceKey, Etcd2ServiceRegistry.Instances serviceInstances,
+                                         LoadBalancer loadBalancer) {
+
+        if (serviceInstances.size() > 0) {
+            return serviceInstances.getUrl(loadBalancer.select(serviceKey, serviceInstances.getUrls()));
         }
 
         return Optional.empty();
 
     }
 
+    @Override
+    public void releaseServiceInstance(String serviceName, String version, String environment, URL url) {
+
+        releaseServiceInstance(serviceName, version, environment, url, this.defaultLoadBalancer);
+
+    }
+
+    @Override
+    public void releaseServiceInstance(String serviceName, String version, String environment, URL url,
+                                       long latency, TimeUnit unit, boolean success) {
+
+        releaseServiceInstance(serviceName, version, environment, url, this.defaultLoadBalancer, latency, unit,
+                success);
+
+    }
+
+    @Override
+    public void releaseServiceInstance(String serviceName, String version, String environment, URL url,
+                                       LoadBalancer loadBalancer) {
+
+        loadBalancer.release(determineServiceKey(serviceName, version, environment), url);
+
+    }
+
+    @Override
+    public void releaseServiceInstance(String serviceName, String version, String environment, URL url,
+                                       LoadBalancer loadBalancer, long latency, TimeUnit unit, boolean success) {
+
+        loadBalancer.release(determineServiceKey(serviceName, version, environment), url, unit.toNanos(latency),
+                success);
+
+    }
+
     @Override
     public Optional<List<String>> getServiceVersions(String serviceName, String environment) {
-        if (!this.serviceVersions.containsKey(serviceName + "_" + environment)) {
-            EtcdKeysResponse etcdKeysResponse = Etcd2Utils.getEtcdDir(etcd, getServiceKeyVersions(environment,
-                    serviceName));
+        ServiceKey versionsKey = ServiceKey.of(serviceName, environment);
+        Etcd2ServiceRegistry.Versions cachedVersions = this.registry.getSnapshot().getVersionIndex(versionsKey);
 
-            if (etcdKeysResponse != null) {
+        if (cachedVersions == null || cachedVersions.isExpired(System.nanoTime())) {
+            return getServiceVersionsAsync(serviceName, environment).toCompletableFuture().join();
+        } else {
+            return cachedVersions.getOptionalVersions();
+        }
+    }
 
-                List<String> versions = new LinkedList<>();
-                for (EtcdKeysResponse.EtcdNode versionNode : etcdKeysResponse.getNode().getNodes()) {
+    @Override
+    public CompletionStage<Optional<List<String>>> getServiceVersionsAsync(String serviceName, String environment) {
+        ServiceKey versionsKey = ServiceKey.of(serviceName, environment);
+        Etcd2ServiceRegistry.Versions cachedVersions = this.registry.getSnapshot().getVersionIndex(versionsKey);
 
-                    String version = Etcd2Utils.getLastKeyLayer(versionNode.getKey());
+        if (cachedVersions != null) {
+            if (!cachedVersions.isExpired(System.nanoTime())) {
+                return CompletableFuture.completedFuture(cachedVersions.getOptionalVersions());
+            }
 
-                    boolean versionActive = false;
-                    for (EtcdKeysResponse.EtcdNode instanceNode : versionNode.getNodes().get(0).getNodes()) {
+            if (this.cachePolicy.isStaleWhileRevalidate()) {
+                fetchVersions(versionsKey);
+                return CompletableFuture.completedFuture(cachedVersions.getOptionalVersions());
+            }
+        }
 
-                        String url = null;
-                        String status = null;
-                        String containerUrlString = null;
-                        String clusterId = null;
+        return fetchVersions(versionsKey);
+    }
 
-                        for (EtcdKeysResponse.EtcdNode node : instanceNode.getNodes()) {
+    private CompletableFuture<Optional<List<String>>> fetchVersions(ServiceKey versionsKey) {
+        return fetchOnce(this.versionFetches, versionsKey, this::getCachedVersions,
+                key -> getEtcdDir(getServiceKeyVersions(key.getEnvironment(), key.getServiceName()))
+                        .handle((etcdKeysResponse, t) -> (t == null) ? cacheVersions(key, etcdKeysResponse) :
+                                cacheFailedVersions(key)));
+    }
 
-                            if ("url".equals(Etcd2Utils.getLastKeyLayer(node.getKey())) &&
-                                    node.getValue() != null) {
-                                url = node.getValue();
-                            }
+    /**
+     * @return cached versions, or null if versions are not cached or expired
+     */
+    private Optional<List<String>> getCachedVersions(ServiceKey versionsKey) {
+        Etcd2ServiceRegistry.Versions cachedVersions = this.registry.getSnapshot().getVersionIndex(versionsKey);
 
-                            if ("containerUrl".equals(Etcd2Utils.getLastKeyLayer(node.getKey())) &&
-                                    node.getValue() != null) {
-                                containerUrlString = node.getValue();
-                            }
+        return (cachedVersions == null || cachedVersions.isExpired(System.nanoTime())) ? null :
+                cachedVersions.getOptionalVersions();
+    }
 
-                            if ("clusterId".equals(Etcd2Utils.getLastKeyLayer(node.getKey())) &&
-                                    node.getValue() != null && !node.getValue().isEmpty()) {
-                                clusterId = node.getValue();
-                            }
+    /**
+     * Keeps stale versions after a failed fetch, or caches missing versions if none are cached, until the entry
+     * expires.
+     */
+    private Optional<List<String>> cacheFailedVersions(ServiceKey versionsKey) {
 
-                            if ("status".equals(Etcd2Utils.getLastKeyLayer(node.getKey())) &&
-                                    node.getValue() != null) {
-                                status = node.getValue();
-                            }
-                        }
+        long expiresAt = this.cachePolicy.getErrorExpiry();
 
-                        if (url != null && !"disabled".equals(status)) {
-                            versionActive = true;
-
-                            // active instance, add to buffer
-                            try {
-                                if(!this.serviceInstances.containsKey(serviceName + "_" + version + "_" +
-                                        environment)) {
-                                    this.serviceInstances.put(serviceName + "_" + version + "_" + environment,
-                                            new HashMap<>());
-                                }
-                                URL containerUrl = (containerUrlString == null || containerUrlString.isEmpty()) ?
-                                        null : new URL(containerUrlString);
-                                this.serviceInstances.get(serviceName + "_" + version + "_" + environment)
-                                        .put(instanceNode.getKey() + "/url",
-                                                new Etcd2Service(new URL(url), containerUrl, clusterId));
-                            } catch (MalformedURLException e) {
-                                log.severe("Malformed URL exception: " + e.toString());
-                            }
-                        }
+        return this.registry.update(snapshot -> {
+            Etcd2ServiceRegistry.Versions stale = snapshot.getVersionIndex(versionsKey);
+            if (stale != null && !stale.isExpiring()) {
+                return snapshot;
+            }
 
-                    }
+            return snapshot.withExpiringVersions(versionsKey, (stale == null) ? null :
+                    stale.getOptionalVersions().orElse(null), expiresAt);
+        }).getVersionIndex(versionsKey).getOptionalVersions();
+    }
+
+    /**
+     * Parses fetched versions and their instances, publishes them to the registry and sets up a watch.
+     */
+    private Optional<List<String>> cacheVersions(ServiceKey versionsKey, EtcdKeysResponse etcdKeysResponse) {
+        return cacheVersions(versionsKey, etcdKeysResponse, false);
+    }
 
-                    if (versionActive) {
-                        versions.add(version);
+    /**
+     * @param replaceInstances if true, cached instances of all versions are replaced with the fetched ones, otherwise
+     *                         fetched instances are merged into the cache
+     */
+    private Optional<List<String>> cacheVersions(ServiceKey versionsKey, EtcdKeysResponse etcdKeysResponse,
+                                                 boolean replaceInstances) {
+
+        if (etcdKeysResponse == null) {
+            // service does not exist, cache negative result until it expires
+            long expiresAt = this.cachePolicy.getNegativeExpiry();
+
+            return this.registry.update(snapshot -> {
+                Etcd2ServiceRegistry.Snapshot updated = snapshot.withExpiringVersions(versionsKey, null, expiresAt);
+                if (replaceInstances) {
+                    for (ServiceKey cachedKey : snapshot.getAllInstances().keySet()) {
+                        if (cachedKey.allVersions() == versionsKey) {
+                            updated = updated.withExpiringInstances(cachedKey, Collections.emptyMap(), expiresAt);
+                        }
                     }
                 }
+                return updated;
+            }).getVersionIndex(versionsKey).getOptionalVersions();
+        }
+
+        String serviceName = versionsKey.getServiceName();
+        String environment = versionsKey.getEnvironment();
 
-                this.serviceVersions.put(serviceName + "_" + environment, versions);
-                watchServiceInstances(getServiceKeyVersions(environment, serviceName),
-                        etcdKeysResponse.etcdIndex + 1);
-                return Optional.of(versions);
+        Map<ServiceKey, Map<String, Etcd2Service>> discoveredInstances = new HashMap<>();
+        List<String> versions = parseVersions(etcdKeysResponse.getNode(), versionsKey, discoveredInstances);
+
+        UnaryOperator<Etcd2ServiceRegistry.Snapshot> update = snapshot -> {
+            Etcd2ServiceRegistry.Snapshot updated = snapshot;
+            if (replaceInstances) {
+                for (ServiceKey cachedKey : snapshot.getAllInstances().keySet()) {
+                    if (cachedKey.allVersions() == versionsKey && !discoveredInstances.containsKey(cachedKey)) {
+                        updated = updated.withInstances(cachedKey, Collections.emptyMap());
+                    }
+                }
             }
-            return Optional.empty();
-        } else {
-            return Optional.of(this.serviceVersions.get(serviceName + "_" + environment));
+            for (Map.Entry<ServiceKey, Map<String, Etcd2Service>> discovered : discoveredInstances.entrySet()) {
+                Map<String, Etcd2Service> instances = new HashMap<>();
+                if (!replaceInstances && updated.hasInstances(discovered.getKey())) {
+                    instances.putAll(updated.getInstances(discovered.getKey()).getServices());
+                }
+                instances.putAll(discovered.getValue());
+                updated = updated.withInstances(discovered.getKey(), instances);
+            }
+            return updated.withVersions(versionsKey, versions);
+        };
+
+        if (this.watchEnvironments) {
+            long expired = System.nanoTime();
+
+            return publishWatchedByEnvironment(environment, etcdKeysResponse, update, snapshot -> {
+                Etcd2ServiceRegistry.Snapshot updated = update.apply(snapshot)
+                        .withExpiringVersions(versionsKey, versions, expired);
+                for (ServiceKey instancesKey : discoveredInstances.keySet()) {
+                    updated = updated.withExpiringInstances(instancesKey,
+                            updated.getInstances(instancesKey).getServices(), expired);
+                }
+                return updated;
+            }).getVersionIndex(versionsKey).getOptionalVersions();
         }
+
+        this.registry.update(update);
+        watchServiceInstances(getServiceKeyVersions(environment, serviceName), getWatchIndex(etcdKeysResponse));
+
+        return this.registry.getSnapshot().getVersionIndex(versionsKey).getOptionalVersions();
     }
 
     @Override
@@ -493,187 +1099,599 @@ public class Etcd2DiscoveryUtilImpl implements DiscoveryUtil {
         }
     }
 
-    private void watchServiceInstances(String key, long index) {
+    /**
+     * Publishes fetched entry, which is kept up to date by the watch of its environment, starting the watch if
+     * needed. If the watch has already dispatched events newer than the fetch, events of the entry may have been
+     * skipped before it was cached, so the entry is published as expired and fetched again on the next lookup.
+     *
+     * @param update      publishes the entry
+     * @param staleUpdate publishes the entry as expired
+     * @return published snapshot
+     */
+    private Etcd2ServiceRegistry.Snapshot publishWatchedByEnvironment(
+            String environment, EtcdKeysResponse etcdKeysResponse, UnaryOperator<Etcd2ServiceRegistry.Snapshot> update,
+            UnaryOperator<Etcd2ServiceRegistry.Snapshot> staleUpdate) {
+
+        long fetchIndex = getWatchIndex(etcdKeysResponse);
+
+        EnvironmentWatch created = new EnvironmentWatch(fetchIndex);
+        EnvironmentWatch environmentWatch = this.environmentWatches.putIfAbsent(environment, created);
+        if (environmentWatch == null) {
+            environmentWatch = created;
+            watchEnvironment(environment, created, fetchIndex, 0);
+        }
+
+        synchronized (environmentWatch) {
+            if (environmentWatch.index > fetchIndex) {
+                return this.registry.update(staleUpdate);
+            }
+
+            return this.registry.update(update);
+        }
+    }
+
+    /**
+     * Watches all services in the environment with a single recursive watch and dispatches events to cached entries.
+     */
+    private void watchEnvironment(String environment, EnvironmentWatch environmentWatch, long index) {
+        watchEnvironment(environment, environmentWatch, index, 0);
+    }
+
+    /**
+     * @param failures number of consecutive failures of the watch, used for backoff of the next retry
+     */
+    private void watchEnvironment(String environment, EnvironmentWatch environmentWatch, long index, int failures) {
+
+        String key = getEnvironmentServicesKey(environment);
 
         if (etcd != null) {
 
             log.info("Initialising watch for key: " + key);
 
-            EtcdResponsePromise<EtcdKeysResponse> responsePromiseUrl = null;
+            EtcdResponsePromise<EtcdKeysResponse> responsePromise;
             try {
-                responsePromiseUrl = etcd.getDir(key).recursive().waitForChange(index).send();
+                responsePromise = waitForChange(key, index).send();
             } catch (IOException e) {
-                e.printStackTrace();
+                log.severe("Cannot watch environment " + environment + ": " + e);
+                recoveryLimiter.schedule(() -> watchEnvironment(environment, environmentWatch, index, failures + 1),
+                        failures);
+                return;
+            }
+
+            responsePromise.addListener((ResponsePromise<EtcdKeysResponse> promise) -> this.watchEvents.execute(key,
+                    () -> handleEnvironmentWatchResponse(environment, environmentWatch, index, failures, promise)));
+
+        } else {
+            log.severe("etcd not initialised.");
+        }
+    }
+
+    private void handleEnvironmentWatchResponse(String environment, EnvironmentWatch environmentWatch, long index,
+                                                int failures, ResponsePromise<EtcdKeysResponse> promise) {
+
+        Throwable t = promise.getException();
+        EtcdKeysResponse response = (t == null) ? promise.getNow() : null;
+
+        if (isWatchGap(t, response)) {
+            log.warning("Watch of environment " + environment + " missed events, resynchronising.");
+            recoveryLimiter.schedule(() -> resyncEnvironment(environment, environmentWatch, 0), 0);
+            return;
+        }
+
+        if (t != null) {
+            log.severe("Exception in etcd promise: " + t);
+            recoveryLimiter.schedule(() -> watchEnvironment(environment, environmentWatch, index, failures + 1),
+                    failures);
+            return;
+        }
+
+        EtcdKeysResponse.EtcdNode node = response.getNode();
+
+        String serviceName = getServiceNameFromKey(node.getKey());
+        String version = getVersionFromKey(node.getKey());
+
+        ServiceKey instancesKey = (serviceName != null && version != null) ?
+                ServiceKey.of(serviceName, version, environment) : null;
+        this.watchEvents.add(new WatchEvent(null, node, instancesKey, environmentWatch));
+
+        watchEnvironment(environment, environmentWatch, node.getModifiedIndex() + 1);
+    }
+
+    /**
+     * Fetches all services in the environment once, publishes only the cached entries, which differ from etcd, and
+     * restarts the watch of the environment from the index of the fetch.
+     */
+    private void resyncEnvironment(String environment, EnvironmentWatch environmentWatch, int attempt) {
+
+        String key = getEnvironmentServicesKey(environment);
+
+        getEtcdDir(key).whenCompleteAsync((etcdKeysResponse, t) -> {
+            if (t != null) {
+                log.severe("Cannot resynchronise environment " + environment + ": " + t);
+                recoveryLimiter.schedule(() -> resyncEnvironment(environment, environmentWatch, attempt + 1),
+                        attempt);
+                return;
+            }
+
+            Map<ServiceKey, List<String>> fetchedVersions = new HashMap<>();
+            Map<ServiceKey, Map<String, Etcd2Service>> discoveredInstances = new HashMap<>();
+            if (etcdKeysResponse != null) {
+                for (EtcdKeysResponse.EtcdNode serviceNode : etcdKeysResponse.getNode().getNodes()) {
+                    ServiceKey versionsKey = ServiceKey.of(Etcd2Utils.getLastKeyLayer(serviceNode.getKey()),
+                            environment);
+                    fetchedVersions.put(versionsKey, parseVersions(serviceNode, versionsKey, discoveredInstances));
+                }
             }
 
-            responsePromiseUrl.addListener((ResponsePromise<EtcdKeysResponse> promise) -> {
-                Throwable t = promise.getException();
-                if (t instanceof EtcdException) {
-                    if (((EtcdException) t).isErrorCode(EtcdErrorCode.NodeExist)) {
-                        log.severe("Exception in etcd promise: " + ((EtcdException) t).etcdMessage);
+            // only watched entries are kept up to date, expiring entries are fetched again once they expire
+            UnaryOperator<Etcd2ServiceRegistry.Snapshot> update = snapshot -> {
+                Etcd2ServiceRegistry.Snapshot updated = snapshot;
+                for (Map.Entry<ServiceKey, Etcd2ServiceRegistry.Instances> entry :
+                        snapshot.getAllInstances().entrySet()) {
+                    ServiceKey instancesKey = entry.getKey();
+                    if (environment.equals(instancesKey.getEnvironment()) && !entry.getValue().isExpiring()) {
+                        updated = applyInstancesDiff(updated, instancesKey,
+                                discoveredInstances.getOrDefault(instancesKey, Collections.emptyMap()));
+                    }
+                }
+                for (Map.Entry<ServiceKey, Etcd2ServiceRegistry.Versions> entry :
+                        snapshot.getAllVersions().entrySet()) {
+                    ServiceKey versionsKey = entry.getKey();
+                    if (environment.equals(versionsKey.getEnvironment()) && !entry.getValue().isExpiring()) {
+                        updated = applyVersionsDiff(updated, versionsKey,
+                                fetchedVersions.getOrDefault(versionsKey, Collections.emptyList()));
                     }
                 }
+                return updated;
+            };
 
-                EtcdKeysResponse.EtcdNode node = promise.getNow().getNode();
+            long index = (etcdKeysResponse == null) ? 0 : getWatchIndex(etcdKeysResponse);
 
-                // get service name, version and environment from key
-                String serviceName = getServiceNameFromKey(node.getKey());
-                String version = getVersionFromKey(node.getKey());
-                String environment = getEnvironmentFromKey(node.getKey());
+            // events received before the gap are published first, so they do not overwrite the fresh state
+            this.watchEvents.publish();
 
-                if (serviceName != null && version != null && environment != null) {
+            synchronized (environmentWatch) {
+                publishResync(key, update);
+                environmentWatch.index = index;
+            }
 
-                    // url have changed: added or deleted
-                    if ("url".equals(Etcd2Utils.getLastKeyLayer(node.getKey()))) {
+            watchEnvironment(environment, environmentWatch, index);
+        }, this.watchEvents.executor(key));
+    }
 
-                        if (node.getValue() == null) {
-                            log.info("Service instance deleted: " + node.getKey());
-                            this.serviceInstances.get(serviceName + "_" + version + "_" + environment).remove(node
-                                    .getKey());
-                        } else {
-                            log.info("Service instance added: " + node.getKey() + " Value: " + node.getValue());
-                            try {
-                                if (!this.serviceInstances.containsKey(serviceName + "_" + version + "_" +
-                                        environment)) {
-                                    this.serviceInstances.put(serviceName + "_" + version + "_" + environment,
-                                            new HashMap<>());
-                                }
-                                Etcd2Service etcd2Service = new Etcd2Service(new URL(node.getValue()), null,
-                                        null);
-                                if(this.serviceInstances.get(serviceName + "_" + version + "_" + environment)
-                                        .containsKey(node.getKey())) {
-                                    etcd2Service.setContainerUrl(this.serviceInstances.get(serviceName + "_" + version
-                                            + "_" + environment).get(node.getKey()).getContainerUrl());
-                                    etcd2Service.setClusterId(this.serviceInstances.get(serviceName + "_" + version
-                                            + "_" + environment).get(node.getKey()).getClusterId());
-                                }
-                                this.serviceInstances.get(serviceName + "_" + version + "_" + environment).put(node
-                                        .getKey(), etcd2Service);
-                            } catch (MalformedURLException e) {
-                                log.severe("Malformed URL exception: " + e.toString());
-                            }
-                        }
+    /**
+     * Publishes a batch of watch events. Events of watched keys are published with a single registry update, events
+     * of each watched environment with a single update under the monitor of its watch.
+     */
+    private void publishWatchEvents(List<WatchEvent> events) {
+
+        List<WatchEvent> keyEvents = new ArrayList<>();
+        Map<EnvironmentWatch, List<WatchEvent>> environmentEvents = new LinkedHashMap<>();
+        for (WatchEvent event : events) {
+            if (event.environmentWatch == null) {
+                logWatchEvent(event.node, event.instancesKey);
+                keyEvents.add(event);
+            } else {
+                environmentEvents.computeIfAbsent(event.environmentWatch, w -> new ArrayList<>()).add(event);
+            }
+        }
 
-                    }
+        if (!keyEvents.isEmpty()) {
+            this.registry.update(snapshot -> applyWatchEvents(snapshot, keyEvents));
+        }
 
-                    // container url added or deleted
-                    if ("containerUrl".equals(Etcd2Utils.getLastKeyLayer(node.getKey()))) {
-                        if (node.getValue() == null) {
-                            Etcd2Service service = this.serviceInstances.get(serviceName + "_" + version + "_" +
-                                    environment).get(getKeyOneLayerUp(node.getKey()) + "url");
-                            if(service != null) {
-                                log.info("Service container url deleted: " + node.getKey());
-                                service.setContainerUrl(null);
-                                this.serviceInstances.get(serviceName + "_" + version + "_" +
-                                        environment).put(getKeyOneLayerUp(node.getKey()) + "url", service);
-                            }
-                        } else {
-                            log.info("Service container url added: " + node.getKey() + " Value: " + node.getValue());
-                            try {
-                                if (!this.serviceInstances.containsKey(serviceName + "_" + version + "_" +
-                                        environment)) {
-                                    this.serviceInstances.put(serviceName + "_" + version + "_" + environment,
-                                            new HashMap<>());
-                                }
-                                String instanceMapKey = getKeyOneLayerUp(node.getKey()) + "url";
-                                Etcd2Service etcd2Service = new Etcd2Service(null, new URL(node.getValue()),
-                                        null);
-                                if(this.serviceInstances.get(serviceName + "_" + version + "_" + environment)
-                                        .containsKey(instanceMapKey)) {
-                                    etcd2Service.setBaseUrl(this.serviceInstances.get(serviceName + "_" + version
-                                            + "_" + environment).get(instanceMapKey).getBaseUrl());
-                                    etcd2Service.setClusterId(this.serviceInstances.get(serviceName + "_" + version
-                                            + "_" + environment).get(instanceMapKey).getClusterId());
-                                }
-                                this.serviceInstances.get(serviceName + "_" + version + "_" + environment)
-                                        .put(instanceMapKey, etcd2Service);
-                            } catch (MalformedURLException e) {
-                                log.severe("Malformed URL exception: " + e.toString());
-                            }
-                        }
-                    }
+        for (Map.Entry<EnvironmentWatch, List<WatchEvent>> entry : environmentEvents.entrySet()) {
+            publishEnvironmentEvents(entry.getKey(), entry.getValue());
+        }
+    }
 
-                    if ("clusterId".equals(Etcd2Utils.getLastKeyLayer(node.getKey()))) {
-                        if (node.getValue() == null) {
-                            Etcd2Service service = this.serviceInstances.get(serviceName + "_" + version + "_" +
-                                    environment).get(getKeyOneLayerUp(node.getKey()) + "url");
-                            if(service != null) {
-                                log.info("Service container id deleted: " + node.getKey());
-                                service.setClusterId(null);
-                                this.serviceInstances.get(serviceName + "_" + version + "_" +
-                                        environment).put(getKeyOneLayerUp(node.getKey()) + "url", service);
-                            }
-                        } else {
-                            log.info("Service container id added: " + node.getKey() + " Value: " + node.getValue());
-
-                            if (!this.serviceInstances.containsKey(serviceName + "_" + version + "_" +
-                                    environment)) {
-                                this.serviceInstances.put(serviceName + "_" + version + "_" + environment,
-                                        new HashMap<>());
-                            }
-                            String instanceMapKey = getKeyOneLayerUp(node.getKey()) + "url";
-                            Etcd2Service etcd2Service = new Etcd2Service(null, null,
-                                    node.getValue());
-                            if(this.serviceInstances.get(serviceName + "_" + version + "_" + environment)
-                                    .containsKey(instanceMapKey)) {
-                                etcd2Service.setBaseUrl(this.serviceInstances.get(serviceName + "_" + version
-                                        + "_" + environment).get(instanceMapKey).getBaseUrl());
-                                etcd2Service.setContainerUrl(this.serviceInstances.get(serviceName + "_" + version
-                                        + "_" + environment).get(instanceMapKey).getContainerUrl());
-                            }
-                            this.serviceInstances.get(serviceName + "_" + version + "_" + environment)
-                                    .put(instanceMapKey, etcd2Service);
-                        }
-                    }
+    private void publishEnvironmentEvents(EnvironmentWatch environmentWatch, List<WatchEvent> events) {
 
-                    // status has changed: set to disabled
-                    if ("status".equals(Etcd2Utils.getLastKeyLayer(node.getKey())) &&
-                            "disabled".equals(node.getValue())) {
-                        log.info("Service instance disabled: " + node.getKey());
-                        this.serviceInstances.get(serviceName + "_" + version + "_" + environment).remove
-                                (getKeyOneLayerUp(node.getKey()) + "url");
-                    }
+        synchronized (environmentWatch) {
+            Etcd2ServiceRegistry.Snapshot snapshot = this.registry.getSnapshot();
 
-                    // node's TTL expired
-                    if (node.getTTL() == 0 && this.serviceInstances.containsKey(serviceName + "_" + version + "_" +
-                            environment) && this.serviceInstances.get(serviceName + "_" + version + "_" +
-                            environment).containsKey(node.getKey() + "/url")) {
-                        log.info("Service instance TTL expired: " + node.getKey());
-                        this.serviceInstances.get(serviceName + "_" + version + "_" + environment).remove(node.getKey
-                                () + "/url");
-                    }
+            List<WatchEvent> cachedEvents = new ArrayList<>();
+            for (WatchEvent event : events) {
+                ServiceKey instancesKey = event.instancesKey;
+                if (instancesKey == null) {
+                    continue;
+                }
+
+                boolean versionsCached = snapshot.hasVersions(instancesKey.allVersions());
+
+                // events of services, which were not looked up, are ignored
+                if (versionsCached || snapshot.hasInstances(instancesKey)) {
+                    String watchKey = versionsCached ?
+                            getServiceKeyVersions(instancesKey.getEnvironment(), instancesKey.getServiceName()) :
+                            Etcd2Utils.getServiceKeyInstances(instancesKey.getEnvironment(),
+                                    instancesKey.getServiceName(), instancesKey.getVersion());
+
+                    logWatchEvent(event.node, instancesKey);
+
+                    cachedEvents.add(new WatchEvent(watchKey, event.node, instancesKey, environmentWatch));
+                }
+            }
+
+            if (!cachedEvents.isEmpty()) {
+                this.registry.update(s -> applyWatchEvents(s, cachedEvents));
+            }
+
+            environmentWatch.index = events.get(events.size() - 1).node.getModifiedIndex() + 1;
+        }
+    }
+
+    private Etcd2ServiceRegistry.Snapshot applyWatchEvents(Etcd2ServiceRegistry.Snapshot snapshot,
+                                                           List<WatchEvent> events) {
+        Etcd2ServiceRegistry.Snapshot updated = snapshot;
+        for (WatchEvent event : events) {
+            updated = applyWatchEvent(updated, event.watchKey, event.node, event.instancesKey);
+        }
+
+        return updated;
+    }
+
+    private String getEnvironmentServicesKey(String environment) {
+        return "/environments/" + environment + "/services";
+    }
+
+    /**
+     * Position of the watch of an environment. Guarded by its own monitor, so entries are not published between
+     * dispatch of an event and update of the position.
+     */
+    private static final class EnvironmentWatch {
+
+        private long index;
+
+        private EnvironmentWatch(long index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * Change of a key, received by a watch.
+     */
+    private static final class WatchEvent {
+
+        // key of the watch, which the event is applied for, or null if not resolved yet
+        private final String watchKey;
+        private final EtcdKeysResponse.EtcdNode node;
+        private final ServiceKey instancesKey;
+        // watch of the environment, which received the event, or null if the event was received by a key watch
+        private final EnvironmentWatch environmentWatch;
+
+        private WatchEvent(String watchKey, EtcdKeysResponse.EtcdNode node, ServiceKey instancesKey,
+                           EnvironmentWatch environmentWatch) {
+            this.watchKey = watchKey;
+            this.node = node;
+            this.instancesKey = instancesKey;
+            this.environmentWatch = environmentWatch;
+        }
+    }
+
+    /**
+     * Watches the key for changes, starting at the given etcd index.
+     *
+     * @param index etcd index, from which changes are watched, or 0 to watch only future changes
+     */
+    private void watchServiceInstances(String key, long index) {
+        watchServiceInstances(key, index, 0);
+    }
+
+    /**
+     * @param failures number of consecutive failures of the watch, used for backoff of the next retry
+     */
+    private void watchServiceInstances(String key, long index, int failures) {
+
+        if (etcd != null) {
+
+            log.info("Initialising watch for key: " + key);
+
+            EtcdResponsePromise<EtcdKeysResponse> responsePromiseUrl;
+            try {
+                responsePromiseUrl = waitForChange(key, index).send();
+            } catch (IOException e) {
+                log.severe("Cannot watch key " + key + ": " + e);
+                recoveryLimiter.schedule(() -> watchServiceInstances(key, index, failures + 1), failures);
+                return;
+            }
+
+            responsePromiseUrl.addListener((ResponsePromise<EtcdKeysResponse> promise) ->
+                    this.watchEvents.execute(key, () -> handleWatchResponse(key, index, failures, promise)));
+
+        } else {
+            log.severe("etcd not initialised.");
+        }
+    }
+
+    private void handleWatchResponse(String key, long index, int failures, ResponsePromise<EtcdKeysResponse> promise) {
+
+        Throwable t = promise.getException();
+        EtcdKeysResponse response = (t == null) ? promise.getNow() : null;
+
+        if (isWatchGap(t, response)) {
+            log.warning("Watch of key " + key + " missed events, resynchronising.");
+            recoveryLimiter.schedule(() -> resyncServiceInstances(key, 0), 0);
+            return;
+        }
+
+        if (t != null) {
+            log.severe("Exception in etcd promise: " + t);
+            recoveryLimiter.schedule(() -> watchServiceInstances(key, index, failures + 1), failures);
+            return;
+        }
+
+        EtcdKeysResponse.EtcdNode node = response.getNode();
+
+        // get service name, version and environment from key
+        String serviceName = getServiceNameFromKey(node.getKey());
+        String version = getVersionFromKey(node.getKey());
+        String environment = getEnvironmentFromKey(node.getKey());
+
+        if (serviceName != null && version != null && environment != null) {
+            this.watchEvents.add(new WatchEvent(key, node, ServiceKey.of(serviceName, version, environment), null));
+        }
+
+        if (isKeyForVersions(key) || serviceName == null || environment == null ||
+                !this.registry.getSnapshot().hasVersions(ServiceKey.of(serviceName, environment))) {
+            // does not set watch if key is for specific version and we are already watching all versions
+            watchServiceInstances(key, node.getModifiedIndex() + 1);
+        }
+    }
+
+    private EtcdKeyGetRequest waitForChange(String key, long index) {
+        EtcdKeyGetRequest request = etcd.getDir(key).recursive();
+
+        return (index > 0) ? request.waitForChange(index) : request.waitForChange();
+    }
 
-                    // if we are watching all versions, update serviceVersions
-                    if (isKeyForVersions(key)) {
-                        if (this.serviceVersions.containsKey(serviceName + "_" + environment)) {
-                            List<String> versions = this.serviceVersions.get(serviceName + "_" + environment);
-                            if (versions.contains(version) &&
-                                    this.serviceInstances.get(serviceName + "_" + version + "_" + environment)
-                                            .isEmpty()) {
-                                // version was removed and no other instances of this version exist, remove version
-                                versions.remove(version);
-                            } else if (!versions.contains(version) &&
-                                    (!this.serviceInstances.containsKey(serviceName + "_" + version + "_" +
-                                            environment) ||
-                                            !this.serviceInstances.get(serviceName + "_" + version + "_" +
-                                                    environment).isEmpty())) {
-                                // instance of new version was added
-                                versions.add(version);
-                            }
+    /**
+     * @return true, if the watch may have missed events, because etcd no longer holds the watched index in its event
+     * history, or the watch returned no event
+     */
+    private boolean isWatchGap(Throwable t, EtcdKeysResponse response) {
+        if (t != null) {
+            return t instanceof EtcdException && ((EtcdException) t).isErrorCode(EtcdErrorCode.EventIndexCleared);
+        }
+
+        return response == null || response.getNode() == null;
+    }
+
+    /**
+     * Fetches the watched key once, publishes only the entries, which differ from the cache, and restarts the watch
+     * from the index of the fetch.
+     */
+    private void resyncServiceInstances(String key, int attempt) {
+
+        getEtcdDir(key).whenCompleteAsync((etcdKeysResponse, t) -> {
+            if (t != null) {
+                log.severe("Cannot resynchronise key " + key + ": " + t);
+                recoveryLimiter.schedule(() -> resyncServiceInstances(key, attempt + 1), attempt);
+                return;
+            }
+
+            String serviceName = getServiceNameFromKey(key);
+            String environment = getEnvironmentFromKey(key);
+
+            UnaryOperator<Etcd2ServiceRegistry.Snapshot> update;
+            if (isKeyForVersions(key)) {
+                ServiceKey versionsKey = ServiceKey.of(serviceName, environment);
+
+                Map<ServiceKey, Map<String, Etcd2Service>> discoveredInstances = new HashMap<>();
+                List<String> versions = (etcdKeysResponse == null) ? Collections.emptyList() :
+                        parseVersions(etcdKeysResponse.getNode(), versionsKey, discoveredInstances);
+
+                update = snapshot -> {
+                    Etcd2ServiceRegistry.Snapshot updated = snapshot;
+                    Set<ServiceKey> instancesKeys = new HashSet<>(discoveredInstances.keySet());
+                    for (ServiceKey cachedKey : snapshot.getAllInstances().keySet()) {
+                        if (cachedKey.allVersions() == versionsKey) {
+                            instancesKeys.add(cachedKey);
                         }
                     }
+                    for (ServiceKey instancesKey : instancesKeys) {
+                        updated = applyInstancesDiff(updated, instancesKey,
+                                discoveredInstances.getOrDefault(instancesKey, Collections.emptyMap()));
+                    }
+                    return applyVersionsDiff(updated, versionsKey, versions);
+                };
+            } else {
+                ServiceKey instancesKey = ServiceKey.of(serviceName, getVersionFromKey(key), environment);
+
+                Map<String, Etcd2Service> instances = (etcdKeysResponse == null) ? Collections.emptyMap() :
+                        parseInstances(etcdKeysResponse.getNode());
+
+                update = snapshot -> applyInstancesDiff(snapshot, instancesKey, instances);
+            }
+
+            // events received before the gap are published first, so they do not overwrite the fresh state
+            this.watchEvents.publish();
+            publishResync(key, update);
+
+            watchServiceInstances(key, (etcdKeysResponse == null) ? 0 : getWatchIndex(etcdKeysResponse));
+        }, this.watchEvents.executor(key));
+    }
+
+    /**
+     * Publishes the result of a resynchronisation and records it.
+     */
+    private void publishResync(String key, UnaryOperator<Etcd2ServiceRegistry.Snapshot> update) {
+
+        Etcd2ServiceRegistry.Snapshot previous = this.registry.getSnapshot();
+        Etcd2ServiceRegistry.Snapshot published = this.registry.update(update);
+
+        int changedEntries = 0;
+        for (Map.Entry<ServiceKey, Etcd2ServiceRegistry.Instances> entry : published.getAllInstances().entrySet()) {
+            if (previous.getInstances(entry.getKey()) != entry.getValue()) {
+                changedEntries++;
+            }
+        }
+        for (Map.Entry<ServiceKey, Etcd2ServiceRegistry.Versions> entry : published.getAllVersions().entrySet()) {
+            if (previous.getVersionIndex(entry.getKey()) != entry.getValue()) {
+                changedEntries++;
+            }
+        }
+
+        this.metrics.recordWatchResync(changedEntries);
+        log.info("Resynchronised key " + key + ", changed entries: " + changedEntries);
+    }
+
+    /**
+     * Publishes fetched instances as a watched entry, unless the cached entry is watched and equal to them.
+     */
+    private Etcd2ServiceRegistry.Snapshot applyInstancesDiff(Etcd2ServiceRegistry.Snapshot snapshot,
+                                                             ServiceKey instancesKey,
+                                                             Map<String, Etcd2Service> instances) {
+
+        Etcd2ServiceRegistry.Instances cached = snapshot.getInstances(instancesKey);
+        if (cached != null && !cached.isExpiring() && cached.getServices().equals(instances)) {
+            return snapshot;
+        }
+
+        return snapshot.withInstances(instancesKey, instances);
+    }
 
+    /**
+     * Publishes fetched versions as a watched entry, unless the cached entry is watched and contains the same
+     * versions.
+     */
+    private Etcd2ServiceRegistry.Snapshot applyVersionsDiff(Etcd2ServiceRegistry.Snapshot snapshot,
+                                                            ServiceKey versionsKey, List<String> versions) {
+
+        Etcd2ServiceRegistry.Versions cached = snapshot.getVersionIndex(versionsKey);
+        if (cached != null && !cached.isExpiring() &&
+                new HashSet<>(cached.getVersions()).equals(new HashSet<>(versions))) {
+            return snapshot;
+        }
+
+        return snapshot.withVersions(versionsKey, versions);
+    }
+
+    private void logWatchEvent(EtcdKeysResponse.EtcdNode node, ServiceKey instancesKey) {
+
+        String lastKeyLayer = Etcd2Utils.getLastKeyLayer(node.getKey());
+
+        if ("url".equals(lastKeyLayer)) {
+            if (node.getValue() == null) {
+                log.info("Service instance deleted: " + node.getKey());
+            } else {
+                log.info("Service instance added: " + node.getKey() + " Value: " + node.getValue());
+            }
+        } else if ("containerUrl".equals(lastKeyLayer)) {
+            if (node.getValue() == null) {
+                log.info("Service container url deleted: " + node.getKey());
+            } else {
+                log.info("Service container url added: " + node.getKey() + " Value: " + node.getValue());
+            }
+        } else if ("clusterId".equals(lastKeyLayer)) {
+            if (node.getValue() == null) {
+                log.info("Service container id deleted: " + node.getKey());
+            } else {
+                log.info("Service container id added: " + node.getKey() + " Value: " + node.getValue());
+            }
+        } else if ("status".equals(lastKeyLayer) && Etcd2Utils.isInactiveStatus(node.getValue())) {
+            log.info("Service instance " + node.getValue() + ": " + node.getKey());
+        }
+
+        if (node.getTTL() == 0 && this.registry.getSnapshot().getInstance(instancesKey,
+                node.getKey() + "/url") != null) {
+            log.info("Service instance TTL expired: " + node.getKey());
+        }
+    }
+
+    /**
+     * Applies a single watch event to the given snapshot. Must be free of side effects, since it can be invoked
+     * multiple times when concurrent writers publish snapshots.
+     */
+    private Etcd2ServiceRegistry.Snapshot applyWatchEvent(Etcd2ServiceRegistry.Snapshot snapshot, String watchKey,
+                                                          EtcdKeysResponse.EtcdNode node,
+                                                          ServiceKey instancesKey) {
+        String lastKeyLayer = Etcd2Utils.getLastKeyLayer(node.getKey());
+        Etcd2ServiceRegistry.Snapshot updated = snapshot;
+
+        // url have changed: added or deleted
+        if ("url".equals(lastKeyLayer)) {
+
+            if (node.getValue() == null) {
+                updated = updated.withoutInstance(instancesKey, node.getKey());
+            } else {
+                try {
+                    URL baseUrl = new URL(node.getValue());
+                    Etcd2Service service = updated.getInstance(instancesKey, node.getKey());
+                    updated = updated.withInstance(instancesKey, node.getKey(), (service == null) ?
+                            new Etcd2Service(baseUrl, null, null) : service.withBaseUrl(baseUrl));
+                } catch (MalformedURLException e) {
+                    log.severe("Malformed URL exception: " + e.toString());
+                }
+            }
+
+        }
+
+        // container url added or deleted
+        if ("containerUrl".equals(lastKeyLayer)) {
+            String instanceMapKey = getKeyOneLayerUp(node.getKey()) + "url";
+            Etcd2Service service = updated.getInstance(instancesKey, instanceMapKey);
+
+            if (node.getValue() == null) {
+                if (service != null) {
+                    updated = updated.withInstance(instancesKey, instanceMapKey, service.withContainerUrl(null));
+                }
+            } else {
+                try {
+                    URL containerUrl = new URL(node.getValue());
+                    updated = updated.withInstance(instancesKey, instanceMapKey, (service == null) ?
+                            new Etcd2Service(null, containerUrl, null) : service.withContainerUrl(containerUrl));
+                } catch (MalformedURLException e) {
+                    log.severe("Malformed URL exception: " + e.toString());
                 }
+            }
+        }
 
-                if (isKeyForVersions(key) || !this.serviceVersions.containsKey(serviceName + "_" + environment)) {
-                    // does not set watch if key is for specific version and we are already watching all versions
-                    watchServiceInstances(key, node.getModifiedIndex() + 1);
+        if ("clusterId".equals(lastKeyLayer)) {
+            String instanceMapKey = getKeyOneLayerUp(node.getKey()) + "url";
+            Etcd2Service service = updated.getInstance(instancesKey, instanceMapKey);
+
+            if (node.getValue() == null) {
+                if (service != null) {
+                    updated = updated.withInstance(instancesKey, instanceMapKey, service.withClusterId(null));
                 }
-            });
+            } else {
+                updated = updated.withInstance(instancesKey, instanceMapKey, (service == null) ?
+                        new Etcd2Service(null, null, node.getValue()) : service.withClusterId(node.getValue()));
+            }
+        }
 
-        } else {
-            log.severe("etcd not initialised.");
+        // status has changed: set to disabled or draining
+        if ("status".equals(lastKeyLayer) && Etcd2Utils.isInactiveStatus(node.getValue())) {
+            updated = updated.withoutInstance(instancesKey, getKeyOneLayerUp(node.getKey()) + "url");
         }
+
+        // node's TTL expired
+        if (node.getTTL() == 0) {
+            updated = updated.withoutInstance(instancesKey, node.getKey() + "/url");
+        }
+
+        // if we are watching all versions, update serviceVersions
+        if (isKeyForVersions(watchKey)) {
+            ServiceKey versionsKey = instancesKey.allVersions();
+            String version = instancesKey.getVersion();
+            List<String> versions = updated.getVersions(versionsKey);
+            if (versions != null) {
+                Etcd2ServiceRegistry.Instances instances = updated.getInstances(instancesKey);
+                if (versions.contains(version) && instances != null && instances.isEmpty()) {
+                    // version was removed and no other instances of this version exist, remove version
+                    List<String> newVersions = new LinkedList<>(versions);
+                    newVersions.remove(version);
+                    updated = updated.withVersions(versionsKey, newVersions);
+                } else if (!versions.contains(version) && instances != null && !instances.isEmpty()) {
+                    // instance of new version was published
+                    List<String> newVersions = new LinkedList<>(versions);
+                    newVersions.add(version);
+                    updated = updated.withVersions(versionsKey, newVersions);
+                }
+            }
+        }
+
+        return updated;
     }
 
     private boolean isKeyForVersions(String key) {
@@ -700,7 +1718,7 @@ public class Etcd2DiscoveryUtilImpl implements DiscoveryUtil {
 
         String[] splitted = key.split("/");
 
-        if (splitted.length < 4) {
+        if (splitted.length < 5) {
             return null;
         } else {
             return splitted[4];
@@ -711,7 +1729,7 @@ public class Etcd2DiscoveryUtilImpl implements DiscoveryUtil {
 
         String[] splitted = key.split("/");
 
-        if (splitted.length < 5) {
+        if (splitted.length < 6) {
             return null;
         } else {
             return splitted[5];
@@ -723,7 +1741,7 @@ public class Etcd2DiscoveryUtilImpl implements DiscoveryUtil {
 
         String[] splitted = key.split("/");
 
-        if (splitted.length < 2) {
+        if (splitted.length < 3) {
             return null;
         } else {
             return splitted[2];
@@ -731,54 +1749,97 @@ public class Etcd2DiscoveryUtilImpl implements DiscoveryUtil {
 
     }
 
-    private String determineVersion(String serviceName, String version, String environment) {
+    private ServiceKey determineServiceKey(String serviceName, String version, String environment) {
 
         // check, if version has special characters (*, ^, ~)
-        // if true, use get getServiceVersions to get appropriate version
-        // return version
+        // if true, use semver index of service versions to get appropriate version
+        // return key of the service with determined version
 
-        Requirement versionRequirement;
-        try {
-            versionRequirement = Requirement.buildNPM(version);
-        } catch (SemverException se) {
-            return version;
+        Optional<Requirement> versionRequirement = getVersionRequirement(version);
+
+        if (!versionRequirement.isPresent()) {
+            return ServiceKey.of(serviceName, version, environment);
         }
 
-        if (!version.contains("*") && !version.contains("x")) {
-            try {
-                new Semver(version, Semver.SemverType.NPM);
-                return version;
-            } catch (SemverException ignored) {
-            }
+        ServiceKey versionsKey = ServiceKey.of(serviceName, environment);
+        Etcd2ServiceRegistry.Versions versions = this.registry.getSnapshot().getVersionIndex(versionsKey);
+
+        if (versions == null || versions.isExpired(System.nanoTime())) {
+            getServiceVersions(serviceName, environment);
+            versions = this.registry.getSnapshot().getVersionIndex(versionsKey);
         }
 
-        Optional<List<String>> versionsOpt = getServiceVersions(serviceName, environment);
+        return resolveServiceKey(serviceName, version, environment, versions, versionRequirement.get());
+    }
 
-        if (versionsOpt.isPresent()) {
-            List<String> versions = versionsOpt.get();
-            List<Semver> versionsSemver = new LinkedList<>();
+    private CompletableFuture<ServiceKey> determineServiceKeyAsync(String serviceName, String version,
+                                                                   String environment) {
 
-            for (String versionString : versions) {
-                Semver listVersion;
-                try {
-                    listVersion = new Semver(versionString, Semver.SemverType.NPM);
-                } catch (SemverException se) {
-                    continue;
-                }
+        Optional<Requirement> versionRequirement = getVersionRequirement(version);
+
+        if (!versionRequirement.isPresent()) {
+            return CompletableFuture.completedFuture(ServiceKey.of(serviceName, version, environment));
+        }
+
+        ServiceKey versionsKey = ServiceKey.of(serviceName, environment);
+        Etcd2ServiceRegistry.Versions versions = this.registry.getSnapshot().getVersionIndex(versionsKey);
+
+        if (versions != null && !versions.isExpired(System.nanoTime())) {
+            return CompletableFuture.completedFuture(resolveServiceKey(serviceName, version, environment, versions,
+                    versionRequirement.get()));
+        }
+
+        return getServiceVersionsAsync(serviceName, environment).toCompletableFuture()
+                .thenApply(fetchedVersions -> resolveServiceKey(serviceName, version, environment,
+                        this.registry.getSnapshot().getVersionIndex(versionsKey), versionRequirement.get()));
+    }
 
-                versionsSemver.add(listVersion);
+    private ServiceKey resolveServiceKey(String serviceName, String version, String environment,
+                                         Etcd2ServiceRegistry.Versions versions, Requirement versionRequirement) {
+
+        if (versions != null) {
+            Optional<String> resolvedVersion = versions.resolve(version, versionRequirement);
+            if (resolvedVersion.isPresent()) {
+                return ServiceKey.of(serviceName, resolvedVersion.get(), environment);
             }
+        }
 
-            Collections.sort(versionsSemver);
+        return ServiceKey.of(serviceName, version, environment);
+    }
 
-            for (int i = versionsSemver.size() - 1; i >= 0; i--) {
-                if (versionsSemver.get(i).satisfies(versionRequirement)) {
-                    return versionsSemver.get(i).getOriginalValue();
-                }
+    /**
+     * Returns compiled NPM range for the given version, or empty if version is not a range. Results are cached.
+     */
+    private Optional<Requirement> getVersionRequirement(String version) {
+
+        Optional<Requirement> versionRequirement = this.versionRequirements.get(version);
+
+        if (versionRequirement == null) {
+            versionRequirement = compileVersionRequirement(version);
+            this.versionRequirements.putIfAbsent(version, versionRequirement);
+        }
+
+        return versionRequirement;
+    }
+
+    private Optional<Requirement> compileVersionRequirement(String version) {
+
+        Requirement versionRequirement;
+        try {
+            versionRequirement = Requirement.buildNPM(version);
+        } catch (SemverException se) {
+            return Optional.empty();
+        }
+
+        if (!version.contains("*") && !version.contains("x")) {
+            try {
+                new Semver(version, Semver.SemverType.NPM);
+                return Optional.empty();
+            } catch (SemverException ignored) {
             }
         }
 
-        return version;
+        return Optional.of(versionRequirement);
     }
 
     private void putEtcdKey(String key, String value) {
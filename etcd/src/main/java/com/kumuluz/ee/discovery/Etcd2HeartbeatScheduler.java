@@ -0,0 +1,231 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery;
+
+import com.kumuluz.ee.configuration.utils.ConfigurationUtil;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Sends heartbeats of all services, registered in this JVM. On each tick, heartbeats of all due services are sent
+ * concurrently without blocking, so a slow heartbeat does not delay the others. A service is skipped while its previous
+ * heartbeat is in progress.
+ * <p>
+ * The first heartbeat is sent immediately and each following one after the ping interval, randomised by the
+ * configured jitter, so instances, which start together, do not send heartbeats to etcd in synchronised bursts. Jitter
+ * never extends the interval beyond {@code ttl * max-ttl-fraction}. After a failed heartbeat, the next one is sent
+ * after the minimum interval.
+ * <p>
+ * If adaptive, the ping interval is adjusted from the smoothed round-trip time (RTT) of refreshes, estimated as in TCP
+ * retransmission timers (RFC 6298). The interval is {@code ttl * max-ttl-fraction - 4 * (srtt + 4 * rttvar)}, bounded
+ * by the minimum interval: while etcd responds quickly, heartbeats are sent rarely, and as latency rises, they are
+ * sent more often, so several attempts fit into the TTL.
+ */
+public class Etcd2HeartbeatScheduler {
+
+    private static final Logger log = Logger.getLogger(Etcd2HeartbeatScheduler.class.getName());
+
+    private final ScheduledExecutorService scheduler;
+    private final long tickMs;
+    private final double jitter;
+    private final boolean adaptive;
+    private final double maxTtlFraction;
+    private final long minIntervalNanos;
+
+    private final List<Heartbeat> heartbeats = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    public Etcd2HeartbeatScheduler(ScheduledExecutorService scheduler, ConfigurationUtil configurationUtil) {
+        this.scheduler = scheduler;
+        this.tickMs = Math.max(1, configurationUtil.getLong("kumuluzee.discovery.heartbeat.tick-ms").orElse(1000L));
+        this.jitter = Math.min(1, Math.max(0, configurationUtil.getDouble("kumuluzee.discovery.heartbeat.jitter")
+                .orElse(0.1)));
+        this.adaptive = configurationUtil.getBoolean("kumuluzee.discovery.heartbeat.adaptive").orElse(true);
+        this.maxTtlFraction = Math.min(1, Math.max(0, configurationUtil
+                .getDouble("kumuluzee.discovery.heartbeat.max-ttl-fraction").orElse(0.75)));
+        this.minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(configurationUtil
+                .getLong("kumuluzee.discovery.heartbeat.min-interval-ms").orElse(1000L));
+    }
+
+    /**
+     * Adds the service and sends its first heartbeat, which registers it.
+     *
+     * @param pingInterval interval between heartbeats in seconds
+     */
+    public void add(Etcd2Registrator registrator, long pingInterval) {
+
+        long ttlNanos = TimeUnit.SECONDS.toNanos(registrator.getServiceConfig().getTtl());
+        Heartbeat heartbeat = new Heartbeat(registrator, TimeUnit.SECONDS.toNanos(pingInterval),
+                (long) (ttlNanos * this.maxTtlFraction));
+        this.heartbeats.add(heartbeat);
+
+        this.scheduler.execute(() -> send(heartbeat, System.nanoTime()));
+
+        if (this.started.compareAndSet(false, true)) {
+            this.scheduler.scheduleAtFixedRate(this::tick, this.tickMs, this.tickMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+
+        for (Heartbeat heartbeat : this.heartbeats) {
+            if (now - heartbeat.nextHeartbeatNanos >= 0) {
+                send(heartbeat, now);
+            }
+        }
+    }
+
+    private void send(Heartbeat heartbeat, long now) {
+
+        if (!heartbeat.inProgress.compareAndSet(false, true)) {
+            return;
+        }
+
+        // jitter may shorten the interval, but not extend it beyond the TTL fraction
+        long intervalNanos = heartbeat.intervalNanos;
+        heartbeat.nextHeartbeatNanos = now + Math.min(jittered(intervalNanos),
+                Math.max(intervalNanos, heartbeat.maxIntervalNanos));
+
+        try {
+            heartbeat.registrator.heartbeat().whenComplete((rttNanos, t) -> {
+                if (rttNanos == null || rttNanos == Etcd2Registrator.FAILED) {
+                    retrySoon(heartbeat);
+                } else if (this.adaptive && rttNanos >= 0) {
+                    adapt(heartbeat, rttNanos);
+                }
+                heartbeat.inProgress.set(false);
+            });
+        } catch (RuntimeException e) {
+            log.severe("Cannot send heartbeat: " + e);
+            retrySoon(heartbeat);
+            heartbeat.inProgress.set(false);
+        }
+    }
+
+    /**
+     * Brings the next heartbeat forward to the minimum interval after a failure, so a transient error does not leave
+     * the registration unrefreshed for a whole ping interval. Registrations are still delayed by the recovery limiter.
+     */
+    private void retrySoon(Heartbeat heartbeat) {
+        long retryNanos = System.nanoTime() + this.minIntervalNanos;
+        if (retryNanos - heartbeat.nextHeartbeatNanos < 0) {
+            heartbeat.nextHeartbeatNanos = retryNanos;
+        }
+    }
+
+    /**
+     * Updates the RTT estimate of the heartbeat with a sample and adjusts its interval. Called by at most one thread
+     * at a time, since a heartbeat is not sent while the previous one is in progress.
+     */
+    private void adapt(Heartbeat heartbeat, long rttNanos) {
+
+        if (heartbeat.smoothedRttNanos < 0) {
+            heartbeat.smoothedRttNanos = rttNanos;
+            heartbeat.rttVariationNanos = rttNanos / 2;
+        } else {
+            heartbeat.rttVariationNanos = (3 * heartbeat.rttVariationNanos +
+                    Math.abs(heartbeat.smoothedRttNanos - rttNanos)) / 4;
+            heartbeat.smoothedRttNanos = (7 * heartbeat.smoothedRttNanos + rttNanos) / 8;
+        }
+
+        long retransmissionTimeoutNanos = heartbeat.smoothedRttNanos + 4 * heartbeat.rttVariationNanos;
+        long intervalNanos = Math.max(this.minIntervalNanos,
+                heartbeat.maxIntervalNanos - 4 * retransmissionTimeoutNanos);
+
+        if (intervalNanos != heartbeat.intervalNanos) {
+            log.fine("Heartbeat interval of " + heartbeat.registrator.getServiceConfig().getServiceInstanceKey() +
+                    " adjusted to " + TimeUnit.NANOSECONDS.toMillis(intervalNanos) + " ms.");
+            heartbeat.intervalNanos = intervalNanos;
+        }
+    }
+
+    /**
+     * @return shortest current heartbeat interval in milliseconds, or 0 if no service is registered
+     */
+    public long getMinIntervalMs() {
+        long minIntervalNanos = Long.MAX_VALUE;
+        for (Heartbeat heartbeat : this.heartbeats) {
+            minIntervalNanos = Math.min(minIntervalNanos, heartbeat.intervalNanos);
+        }
+
+        return (minIntervalNanos == Long.MAX_VALUE) ? 0 : TimeUnit.NANOSECONDS.toMillis(minIntervalNanos);
+    }
+
+    /**
+     * @return longest smoothed round-trip time of heartbeats in microseconds, or 0 if none was measured
+     */
+    public long getMaxRoundTripTimeMicros() {
+        long maxRttNanos = 0;
+        for (Heartbeat heartbeat : this.heartbeats) {
+            maxRttNanos = Math.max(maxRttNanos, heartbeat.smoothedRttNanos);
+        }
+
+        return TimeUnit.NANOSECONDS.toMicros(maxRttNanos);
+    }
+
+    /**
+     * @return number of services, which are currently not registered in etcd
+     */
+    public long getUnregisteredServices() {
+        return this.heartbeats.stream().filter(heartbeat -> !heartbeat.registrator.isRegistered()).count();
+    }
+
+    /**
+     * @return interval, randomly shortened or extended by up to the jitter fraction
+     */
+    private long jittered(long intervalNanos) {
+        if (this.jitter == 0) {
+            return intervalNanos;
+        }
+
+        double factor = 1 + this.jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+
+        return (long) (intervalNanos * factor);
+    }
+
+    private static final class Heartbeat {
+
+        private final Etcd2Registrator registrator;
+        // ttl * max-ttl-fraction
+        private final long maxIntervalNanos;
+        private final AtomicBoolean inProgress = new AtomicBoolean();
+
+        private volatile long intervalNanos;
+        private volatile long smoothedRttNanos = -1;
+        private volatile long rttVariationNanos;
+
+        // written by the scheduler thread before a heartbeat is sent, and on its failure, before the next one is sent
+        private volatile long nextHeartbeatNanos;
+
+        private Heartbeat(Etcd2Registrator registrator, long pingIntervalNanos, long maxIntervalNanos) {
+            this.registrator = registrator;
+            this.maxIntervalNanos = maxIntervalNanos;
+            this.intervalNanos = pingIntervalNanos;
+        }
+    }
+}
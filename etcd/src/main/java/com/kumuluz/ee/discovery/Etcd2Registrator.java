@@ -20,132 +20,430 @@
 */
 package com.kumuluz.ee.discovery;
 
+import com.kumuluz.ee.discovery.utils.Etcd2RecoveryLimiter;
 import com.kumuluz.ee.discovery.utils.Etcd2ServiceConfiguration;
 import com.kumuluz.ee.discovery.utils.Etcd2Utils;
+import mousio.client.promises.ResponsePromise;
 import mousio.etcd4j.EtcdClient;
+import mousio.etcd4j.promises.EtcdResponsePromise;
 import mousio.etcd4j.responses.EtcdAuthenticationException;
+import mousio.etcd4j.responses.EtcdErrorCode;
 import mousio.etcd4j.responses.EtcdException;
 import mousio.etcd4j.responses.EtcdKeysResponse;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
 /**
- * Runnable for service registration and heartbeats
+ * Runnable for service registration and heartbeats. Heartbeats are sent without blocking, so a batch of heartbeats
+ * of all registered services is sent concurrently by {@link Etcd2HeartbeatScheduler}.
+ * <p>
+ * An instance of a singleton service is only registered while it holds the singleton key of the service, which is
+ * created atomically and expires with the same TTL as the instance. Other instances watch the singleton key and take
+ * over once it is released.
  *
  * @author Jan Meznarič, Urban Malc
  */
 public class Etcd2Registrator implements Runnable {
     private static final Logger log = Logger.getLogger(Etcd2Registrator.class.getName());
 
+    /** Heartbeat result, if the service was registered or no request was sent. */
+    static final long NOT_REFRESHED = -1;
+    /** Heartbeat result, if the refresh or registration failed. */
+    static final long FAILED = -2;
+
     private EtcdClient etcd;
     private Etcd2ServiceConfiguration serviceConfig;
 
-    private boolean isRegistered;
+    private Etcd2RecoveryLimiter recoveryLimiter;
+
+    private volatile boolean isRegistered;
+    // singleton instance, which waits for the singleton key to be released
+    private volatile boolean standby;
+    private volatile boolean deregistered;
+    // consecutive failed registrations, accessed by one heartbeat at a time
+    private volatile int failedRegistrations;
 
     public Etcd2Registrator(EtcdClient etcd, Etcd2ServiceConfiguration serviceConfig) {
+        this(etcd, serviceConfig, null);
+    }
+
+    /**
+     * @param recoveryLimiter limits re-registrations after failures, or null to re-register immediately
+     */
+    public Etcd2Registrator(EtcdClient etcd, Etcd2ServiceConfiguration serviceConfig,
+                            Etcd2RecoveryLimiter recoveryLimiter) {
         this.etcd = etcd;
         this.serviceConfig = serviceConfig;
+        this.recoveryLimiter = recoveryLimiter;
+    }
+
+    public Etcd2ServiceConfiguration getServiceConfig() {
+        return serviceConfig;
+    }
+
+    public boolean isRegistered() {
+        return isRegistered;
     }
 
     public void run() {
+        heartbeat().join();
+    }
+
+    /**
+     * Registers the service, or refreshes TTL of the registered service.
+     *
+     * @return future, completed with the round-trip time of the refresh in nanoseconds, {@link #NOT_REFRESHED} if the
+     * service was registered or is waiting for the singleton key, or {@link #FAILED} if the refresh or registration
+     * failed; never completed exceptionally
+     */
+    public CompletableFuture<Long> heartbeat() {
         if (!this.isRegistered) {
-            this.registerToEtcd();
-        } else {
+            if (this.standby || this.deregistered) {
+                return CompletableFuture.completedFuture(NOT_REFRESHED);
+            }
+            return this.reregister().thenApply(v -> this.getRegistrationResult());
+        }
 
-            log.info("Sending heartbeat. " + this.serviceConfig.getServiceInstanceKey());
+        log.info("Sending heartbeat. " + this.serviceConfig.getServiceInstanceKey());
 
-            try {
-                this.etcd.putDir(this.serviceConfig.getServiceInstanceKey()).prevExist(true)
-                        .refresh(this.serviceConfig.getTtl()).send().get();
-            } catch (IOException | EtcdAuthenticationException | TimeoutException e) {
-                e.printStackTrace();
-            } catch (EtcdException e) {
-                if (e.isErrorCode(100)) {
-                    log.warning("Etcd key not present: " + this.serviceConfig.getServiceInstanceKey() +
-                            ". Reregistering service.");
+        long start = System.nanoTime();
 
-                    this.isRegistered = false;
-                    this.registerToEtcd();
-                } else {
-                    e.printStackTrace();
-                }
-            }
+        return Etcd2Utils.sendAsync(this.etcd.putDir(this.serviceConfig.getServiceInstanceKey()).prevExist(true)
+                .refresh(this.serviceConfig.getTtl()))
+                .handle((etcdKeysResponse, t) -> {
+                    if (t == null) {
+                        long rtt = System.nanoTime() - start;
+
+                        // singleton key is refreshed after the instance, so it never expires before the instance
+                        return this.serviceConfig.isSingleton() ?
+                                this.refreshSingletonKey().thenApply(v -> rtt) : CompletableFuture.completedFuture(rtt);
+                    }
+
+                    if (t instanceof EtcdException && ((EtcdException) t).isErrorCode(100)) {
+                        log.warning("Etcd key not present: " + this.serviceConfig.getServiceInstanceKey() +
+                                ". Reregistering service.");
+
+                        this.isRegistered = false;
+                        if (this.deregistered) {
+                            return CompletableFuture.completedFuture(NOT_REFRESHED);
+                        }
+
+                        // key expired, e.g. during an outage, so other instances are likely re-registering too
+                        this.failedRegistrations = 1;
+                        return this.reregister().thenApply(v -> this.getRegistrationResult());
+                    }
+
+                    log.severe("Cannot send heartbeat. " + this.serviceConfig.getServiceInstanceKey() + ": " + t);
+                    return CompletableFuture.completedFuture(FAILED);
+                })
+                .thenCompose(rtt -> rtt);
+    }
+
+    private long getRegistrationResult() {
+        return (this.isRegistered || this.standby || this.deregistered) ? NOT_REFRESHED : FAILED;
+    }
+
+    /**
+     * Registers the service. After failures, registration is delayed by the recovery limiter.
+     */
+    private CompletableFuture<Void> reregister() {
+        int attempt = this.failedRegistrations;
+        if (attempt == 0 || this.recoveryLimiter == null) {
+            return this.registerToEtcd();
         }
+
+        return this.recoveryLimiter.acquire(attempt - 1).thenCompose(v -> this.registerToEtcd());
     }
 
-    private void registerToEtcd() {
-        if (this.serviceConfig.isSingleton() && isRegistered()) {
+    private CompletableFuture<Void> registerToEtcd() {
 
-            log.warning("Instance was not registered. Trying to register a singleton microservice instance, but " +
-                    "another instance is already registered.");
+        if (this.etcd == null) {
+            log.severe("etcd not initialised.");
+            return CompletableFuture.completedFuture(null);
+        }
 
-        } else {
+        CompletableFuture<Boolean> singletonAcquired = this.serviceConfig.isSingleton() ? acquireSingletonKey() :
+                CompletableFuture.completedFuture(true);
 
-            if (this.etcd != null) {
-                log.info("Registering service with etcd. Service ID: " + this.serviceConfig.getServiceKeyUrl());
+        return singletonAcquired.thenCompose(acquired -> {
+            if (!acquired) {
+                log.warning("Instance was not registered. Trying to register a singleton microservice instance, " +
+                        "but another instance is already registered. Waiting for it to be deregistered.");
 
-                try {
-                    etcd.putDir(this.serviceConfig.getServiceInstanceKey()).ttl(this.serviceConfig.getTtl())
-                            .send().get();
-                    etcd.put(this.serviceConfig.getServiceKeyUrl(), this.serviceConfig.getBaseUrl()).send().get();
-                    if(this.serviceConfig.getContainerUrl() != null) {
-                        etcd.put(this.serviceConfig.getServiceInstanceKey() + "/containerUrl",
-                                this.serviceConfig.getContainerUrl()).send().get();
-                    }
-                    if(this.serviceConfig.getClusterId() != null) {
-                        etcd.put(this.serviceConfig.getServiceInstanceKey() + "/clusterId",
-                                this.serviceConfig.getClusterId()).send().get();
-                    }
+                return CompletableFuture.completedFuture(false);
+            }
 
+            log.info("Registering service with etcd. Service ID: " + this.serviceConfig.getServiceKeyUrl());
+
+            String instanceKey = this.serviceConfig.getServiceInstanceKey();
+
+            // metadata is written concurrently once the directory with TTL exists, url is written last, so
+            // watchers never see an instance with url, but without its metadata
+            return Etcd2Utils.sendAsync(etcd.putDir(instanceKey).ttl(this.serviceConfig.getTtl()))
+                    .thenCompose(dir -> {
+                        List<CompletableFuture<EtcdKeysResponse>> metadata = new ArrayList<>(2);
+                        if (this.serviceConfig.getContainerUrl() != null) {
+                            metadata.add(Etcd2Utils.sendAsync(etcd.put(instanceKey + "/containerUrl",
+                                    this.serviceConfig.getContainerUrl())));
+                        }
+                        if (this.serviceConfig.getClusterId() != null) {
+                            metadata.add(Etcd2Utils.sendAsync(etcd.put(instanceKey + "/clusterId",
+                                    this.serviceConfig.getClusterId())));
+                        }
+                        return CompletableFuture.allOf(metadata.toArray(new CompletableFuture[0]));
+                    })
+                    .thenCompose(metadata -> {
+                        if (this.deregistered) {
+                            return CompletableFuture.completedFuture(false);
+                        }
+                        return Etcd2Utils.sendAsync(etcd.put(this.serviceConfig.getServiceKeyUrl(),
+                                this.serviceConfig.getBaseUrl())).thenApply(etcdKeysResponse -> true);
+                    });
+        }).handle((registered, t) -> {
+            if (t == null) {
+                if (registered) {
                     this.isRegistered = true;
-                } catch (IOException e) {
-                    log.info("IO Exception. Cannot read given key: " + e);
-                } catch (EtcdException e) {
-                    log.info("Etcd exception. " + e);
-                } catch (EtcdAuthenticationException e) {
-                    log.severe("Etcd authentication exception. Cannot read given key: " + e);
-                } catch (TimeoutException e) {
-                    log.severe("Timeout exception. Cannot read given key time: " + e);
+                    this.failedRegistrations = 0;
                 }
             } else {
-                log.severe("etcd not initialised.");
+                this.failedRegistrations++;
+                logRegistrationException(t);
+            }
+            return null;
+        }).thenCompose(v -> {
+            // isRegistered is set before deregistered is checked, so either deregister() or this check sees the
+            // registration, which completed concurrently
+            if (!this.deregistered) {
+                return CompletableFuture.completedFuture(null);
             }
 
-        }
+            log.info("Service was deregistered while registering, removing instance " +
+                    this.serviceConfig.getServiceInstanceKey() + ".");
+
+            this.isRegistered = false;
+            return deleteInstance().thenCompose(deleted -> releaseSingleton());
+        });
     }
 
-    private boolean isRegistered() {
-        String serviceInstancesKey = Etcd2Utils.getServiceKeyInstances(this.serviceConfig.getEnvironment(),
-                this.serviceConfig.getServiceName(), this.serviceConfig.getServiceVersion());
+    /**
+     * Creates the singleton key with a single conditional write, unless it already exists. If the key is held by
+     * another instance, the key is watched and registration is retried once the key is released. If the key cannot be
+     * acquired or watched, e.g. on a timeout, the instance leaves standby, so registration is retried with heartbeats.
+     *
+     * @return future, completed with true, if this instance holds the singleton key
+     */
+    private CompletableFuture<Boolean> acquireSingletonKey() {
+        String singletonKey = this.serviceConfig.getSingletonKey();
+        String instanceKey = this.serviceConfig.getServiceInstanceKey();
 
-        EtcdKeysResponse etcdKeysResponse = Etcd2Utils.getEtcdDir(this.etcd, serviceInstancesKey);
+        return Etcd2Utils.sendAsync(etcd.put(singletonKey, instanceKey).prevExist(false)
+                .ttl(this.serviceConfig.getTtl()))
+                .handle((etcdKeysResponse, t) -> {
+                    if (t == null) {
+                        this.standby = false;
+                        return CompletableFuture.completedFuture(true);
+                    }
 
-        if (etcdKeysResponse != null) {
-            for (EtcdKeysResponse.EtcdNode node : etcdKeysResponse.getNode().getNodes()) {
+                    if (!(t instanceof EtcdException) || !((EtcdException) t).isErrorCode(EtcdErrorCode.NodeExist)) {
+                        CompletableFuture<Boolean> failed = new CompletableFuture<>();
+                        failed.completeExceptionally(t);
+                        return failed;
+                    }
 
-                String url = null;
-                boolean isActive = true;
-                for (EtcdKeysResponse.EtcdNode instanceNode : node.getNodes()) {
+                    // key may still be held by this instance, e.g. after a failed registration
+                    return Etcd2Utils.sendAsync(etcd.get(singletonKey)).thenApply(holder -> {
+                        if (instanceKey.equals(holder.getNode().getValue())) {
+                            this.standby = false;
+                            return true;
+                        }
 
-                    if ("url".equals(Etcd2Utils.getLastKeyLayer(instanceNode.getKey())) &&
-                            instanceNode.getValue() != null) {
-                        url = instanceNode.getValue();
+                        watchSingletonKey(holder.getNode().getModifiedIndex() + 1);
+                        return false;
+                    });
+                })
+                .thenCompose(acquired -> acquired)
+                .whenComplete((acquired, t) -> {
+                    if (t != null) {
+                        // e.g. the holder expired before it was read, registration is retried with heartbeats
+                        this.standby = false;
                     }
+                });
+    }
 
-                    if ("status".equals(Etcd2Utils.getLastKeyLayer(instanceNode.getKey())) &&
-                            "disabled".equals(instanceNode.getValue())) {
-                        isActive = false;
+    /**
+     * Refreshes TTL of the singleton key, if it is still held by this instance. Otherwise, the instance is removed,
+     * so only the holder of the singleton key is registered.
+     */
+    private CompletableFuture<Void> refreshSingletonKey() {
+        String singletonKey = this.serviceConfig.getSingletonKey();
+        String instanceKey = this.serviceConfig.getServiceInstanceKey();
+
+        return Etcd2Utils.sendAsync(etcd.refresh(singletonKey, this.serviceConfig.getTtl()).prevValue(instanceKey))
+                .handle((etcdKeysResponse, t) -> {
+                    if (t == null) {
+                        return CompletableFuture.<Void>completedFuture(null);
                     }
 
+                    if (t instanceof EtcdException && (((EtcdException) t).isErrorCode(EtcdErrorCode.KeyNotFound) ||
+                            ((EtcdException) t).isErrorCode(EtcdErrorCode.TestFailed))) {
+                        log.warning("Singleton key is no longer held by instance " + instanceKey +
+                                ". Deregistering instance.");
+
+                        this.isRegistered = false;
+                        return Etcd2Utils.sendAsync(etcd.deleteDir(instanceKey).recursive())
+                                .handle((deleted, e) -> {
+                                    if (e != null) {
+                                        log.severe("Cannot deregister instance " + instanceKey + ": " + e);
+                                    }
+                                    return (Void) null;
+                                });
+                    }
+
+                    log.severe("Cannot refresh singleton key " + singletonKey + ": " + t);
+                    return CompletableFuture.<Void>completedFuture(null);
+                })
+                .thenCompose(refreshed -> refreshed);
+    }
+
+    /**
+     * Waits for the singleton key, held by another instance, to be released, and then tries to register. Heartbeats
+     * do not retry registration while the key is watched.
+     *
+     * @param index etcd index, from which changes are watched
+     */
+    private void watchSingletonKey(long index) {
+
+        if (this.deregistered) {
+            return;
+        }
+
+        this.standby = true;
+
+        String singletonKey = this.serviceConfig.getSingletonKey();
+
+        EtcdResponsePromise<EtcdKeysResponse> responsePromise;
+        try {
+            responsePromise = etcd.get(singletonKey).waitForChange(index).send();
+        } catch (IOException e) {
+            log.severe("Cannot watch singleton key " + singletonKey + ": " + e);
+            this.standby = false;
+            return;
+        }
+
+        responsePromise.addListener((ResponsePromise<EtcdKeysResponse> promise) -> {
+            Throwable t = promise.getException();
+
+            if (t == null) {
+                EtcdKeysResponse.EtcdNode node = promise.getNow().getNode();
+                if (node != null && node.getValue() != null) {
+                    // key was taken over by another instance
+                    watchSingletonKey(node.getModifiedIndex() + 1);
+                } else if (!this.deregistered) {
+                    log.info("Singleton key " + singletonKey + " was released, registering service.");
+                    this.registerToEtcd();
                 }
-                if (isActive && url != null) {
-                    return true;
-                }
+            } else if (t instanceof EtcdException &&
+                    ((EtcdException) t).isErrorCode(EtcdErrorCode.EventIndexCleared) && !this.deregistered) {
+                this.registerToEtcd();
+            } else {
+                // registration is retried with heartbeats
+                log.severe("Exception while watching singleton key " + singletonKey + ": " + t);
+                this.standby = false;
             }
+        });
+    }
+
+    /**
+     * Marks the registered instance as draining, so clients stop selecting it, while it is still registered and
+     * refreshed by heartbeats. The service is not registered again afterwards.
+     *
+     * @return future, completed with true, if the instance was marked as draining; never completed exceptionally
+     */
+    public CompletableFuture<Boolean> drain() {
+        this.deregistered = true;
+
+        if (this.etcd == null || !this.isRegistered) {
+            return CompletableFuture.completedFuture(false);
+        }
+
+        String instanceKey = this.serviceConfig.getServiceInstanceKey();
+
+        return Etcd2Utils.sendAsync(etcd.put(instanceKey + "/status", "draining"))
+                .handle((etcdKeysResponse, t) -> {
+                    if (t != null) {
+                        log.severe("Cannot mark instance " + instanceKey + " as draining: " + t);
+                    }
+                    return t == null;
+                });
+    }
+
+    /**
+     * Deletes the instance directory and releases the singleton key, if it is held by this instance, so a standby
+     * instance can take over immediately. The service is not registered again afterwards.
+     *
+     * @return future, completed once the instance is deleted; never completed exceptionally
+     */
+    public CompletableFuture<Void> deregister() {
+        this.deregistered = true;
+
+        if (this.etcd == null) {
+            return CompletableFuture.completedFuture(null);
         }
 
-        return false;
+        boolean wasRegistered = this.isRegistered;
+        this.isRegistered = false;
+
+        CompletableFuture<Void> deleted = !wasRegistered ? CompletableFuture.completedFuture(null) : deleteInstance();
+
+        return deleted.thenCompose(v -> releaseSingleton());
+    }
+
+    private CompletableFuture<Void> deleteInstance() {
+        String instanceKey = this.serviceConfig.getServiceInstanceKey();
+
+        return Etcd2Utils.sendAsync(etcd.deleteDir(instanceKey).recursive())
+                .handle((etcdKeysResponse, t) -> {
+                    if (t != null && !(t instanceof EtcdException &&
+                            ((EtcdException) t).isErrorCode(EtcdErrorCode.KeyNotFound))) {
+                        log.severe("Cannot deregister instance " + instanceKey + ": " + t);
+                    }
+                    return null;
+                });
+    }
+
+    private CompletableFuture<Void> releaseSingleton() {
+        if (!this.serviceConfig.isSingleton() || this.standby) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        String singletonKey = this.serviceConfig.getSingletonKey();
+
+        return Etcd2Utils.sendAsync(etcd.delete(singletonKey).prevValue(this.serviceConfig.getServiceInstanceKey()))
+                .handle((etcdKeysResponse, t) -> {
+                    if (t != null && !(t instanceof EtcdException)) {
+                        log.severe("Cannot release singleton key " + singletonKey + ": " + t);
+                    }
+                    return null;
+                });
+    }
+
+    private void logRegistrationException(Throwable t) {
+        Throwable cause = (t instanceof CompletionException && t.getCause() != null) ? t.getCause() : t;
+
+        if (cause instanceof EtcdException) {
+            log.info("Etcd exception. " + cause);
+        } else if (cause instanceof EtcdAuthenticationException) {
+            log.severe("Etcd authentication exception. Cannot read given key: " + cause);
+        } else if (cause instanceof TimeoutException) {
+            log.severe("Timeout exception. Cannot read given key time: " + cause);
+        } else {
+            log.info("IO Exception. Cannot read given key: " + cause);
+        }
     }
 }
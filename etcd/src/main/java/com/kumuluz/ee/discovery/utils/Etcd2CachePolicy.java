@@ -0,0 +1,87 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import com.kumuluz.ee.configuration.utils.ConfigurationUtil;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Policy for caching of lookups, which are not backed by a watch: services not found in etcd (negative caching) and
+ * failed lookups. Such entries expire and are fetched again, optionally in the background while the expired entry
+ * is still served (stale-while-revalidate). Fetches from etcd are bounded by a timeout and a number of retries.
+ */
+public class Etcd2CachePolicy {
+
+    private final long negativeTtlNanos;
+    private final long errorTtlNanos;
+    private final boolean staleWhileRevalidate;
+    private final long fetchTimeoutMs;
+    private final int fetchRetries;
+    private final long fetchRetryDelayMs;
+
+    public Etcd2CachePolicy(ConfigurationUtil configurationUtil) {
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(configurationUtil
+                .getLong("kumuluzee.discovery.cache.negative-ttl-ms").orElse(5000L));
+        this.errorTtlNanos = TimeUnit.MILLISECONDS.toNanos(configurationUtil
+                .getLong("kumuluzee.discovery.cache.error-ttl-ms").orElse(1000L));
+        this.staleWhileRevalidate = configurationUtil.getBoolean("kumuluzee.discovery.cache.stale-while-revalidate")
+                .orElse(true);
+        this.fetchTimeoutMs = configurationUtil.getLong("kumuluzee.discovery.etcd.fetch-timeout-ms").orElse(5000L);
+        this.fetchRetries = configurationUtil.getInteger("kumuluzee.discovery.etcd.fetch-retries").orElse(2);
+        this.fetchRetryDelayMs = configurationUtil.getLong("kumuluzee.discovery.etcd.fetch-retry-delay-ms")
+                .orElse(100L);
+    }
+
+    /**
+     * @return expiry in {@link System#nanoTime()} of an entry for a service, not found in etcd
+     */
+    public long getNegativeExpiry() {
+        return System.nanoTime() + negativeTtlNanos;
+    }
+
+    /**
+     * @return expiry in {@link System#nanoTime()} of an entry for a failed lookup
+     */
+    public long getErrorExpiry() {
+        return System.nanoTime() + errorTtlNanos;
+    }
+
+    public boolean isStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    public long getFetchTimeoutMs() {
+        return fetchTimeoutMs;
+    }
+
+    public int getFetchRetries() {
+        return fetchRetries;
+    }
+
+    /**
+     * @param attempt number of the failed attempt, starting with 0
+     * @return delay before the next attempt, doubled with each attempt
+     */
+    public long getFetchRetryDelayMs(int attempt) {
+        return fetchRetryDelayMs << Math.min(attempt, 16);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Counters of the etcd discovery, exposed over JMX.
+ */
+public class Etcd2DiscoveryMetrics implements Etcd2DiscoveryMetricsMBean {
+
+    private static final Logger log = Logger.getLogger(Etcd2DiscoveryMetrics.class.getName());
+
+    private static final String OBJECT_NAME = "com.kumuluz.ee.discovery:type=Etcd2Discovery";
+
+    private final LongAdder cacheMissFetches = new LongAdder();
+    private final LongAdder coalescedRequests = new LongAdder();
+    private final LongAdder watchResyncs = new LongAdder();
+    private final LongAdder watchResyncChangedEntries = new LongAdder();
+
+    private volatile LongSupplier heartbeatIntervalMs = () -> 0;
+    private volatile LongSupplier heartbeatRoundTripTimeMicros = () -> 0;
+    private volatile LongSupplier pendingRecoveries = () -> 0;
+    private volatile LongSupplier recoveries = () -> 0;
+    private volatile LongSupplier unregisteredServices = () -> 0;
+
+    private volatile boolean registered;
+
+    /**
+     * Registers metrics with the platform MBean server. Failures are logged, discovery works without metrics.
+     */
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+            registered = true;
+        } catch (InstanceAlreadyExistsException e) {
+            log.info("Discovery metrics are already registered: " + e);
+        } catch (JMException e) {
+            log.warning("Cannot register discovery metrics: " + e);
+        }
+    }
+
+    /**
+     * Unregisters metrics, if they were registered by this instance.
+     */
+    public void unregister() {
+        if (!registered) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (InstanceNotFoundException ignored) {
+        } catch (JMException e) {
+            log.warning("Cannot unregister discovery metrics: " + e);
+        }
+        registered = false;
+    }
+
+    public void recordCacheMissFetch() {
+        cacheMissFetches.increment();
+    }
+
+    public void recordCoalescedRequest() {
+        coalescedRequests.increment();
+    }
+
+    public void recordWatchResync(int changedEntries) {
+        watchResyncs.increment();
+        watchResyncChangedEntries.add(changedEntries);
+    }
+
+    /**
+     * @param intervalMs           supplies the shortest current heartbeat interval
+     * @param roundTripTimeMicros supplies the longest smoothed round-trip time of heartbeats
+     */
+    public void setHeartbeatGauges(LongSupplier intervalMs, LongSupplier roundTripTimeMicros) {
+        this.heartbeatIntervalMs = intervalMs;
+        this.heartbeatRoundTripTimeMicros = roundTripTimeMicros;
+    }
+
+    /**
+     * @param pendingRecoveries    supplies the number of recovery requests, waiting for backoff or rate limit
+     * @param recoveries           supplies the number of sent recovery requests
+     * @param unregisteredServices supplies the number of services, which are currently not registered
+     */
+    public void setRecoveryGauges(LongSupplier pendingRecoveries, LongSupplier recoveries,
+                                  LongSupplier unregisteredServices) {
+        this.pendingRecoveries = pendingRecoveries;
+        this.recoveries = recoveries;
+        this.unregisteredServices = unregisteredServices;
+    }
+
+    @Override
+    public long getCacheMissFetches() {
+        return cacheMissFetches.sum();
+    }
+
+    @Override
+    public long getCoalescedRequests() {
+        return coalescedRequests.sum();
+    }
+
+    @Override
+    public long getWatchResyncs() {
+        return watchResyncs.sum();
+    }
+
+    @Override
+    public long getWatchResyncChangedEntries() {
+        return watchResyncChangedEntries.sum();
+    }
+
+    @Override
+    public long getHeartbeatIntervalMs() {
+        return heartbeatIntervalMs.getAsLong();
+    }
+
+    @Override
+    public long getHeartbeatRoundTripTimeMicros() {
+        return heartbeatRoundTripTimeMicros.getAsLong();
+    }
+
+    @Override
+    public long getPendingRecoveries() {
+        return pendingRecoveries.getAsLong();
+    }
+
+    @Override
+    public long getRecoveries() {
+        return recoveries.getAsLong();
+    }
+
+    @Override
+    public long getUnregisteredServices() {
+        return unregisteredServices.getAsLong();
+    }
+}
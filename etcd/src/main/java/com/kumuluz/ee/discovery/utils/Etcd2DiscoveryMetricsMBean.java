@@ -0,0 +1,72 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+/**
+ * Management interface of {@link Etcd2DiscoveryMetrics}.
+ */
+public interface Etcd2DiscoveryMetricsMBean {
+
+    /**
+     * @return number of reads from etcd, caused by cache misses
+     */
+    long getCacheMissFetches();
+
+    /**
+     * @return number of cache misses, which joined a fetch already in flight instead of reading from etcd
+     */
+    long getCoalescedRequests();
+
+    /**
+     * @return number of resynchronisations of watches, which missed events
+     */
+    long getWatchResyncs();
+
+    /**
+     * @return number of cached entries, changed by resynchronisations of watches
+     */
+    long getWatchResyncChangedEntries();
+
+    /**
+     * @return shortest current heartbeat interval of registered services in milliseconds
+     */
+    long getHeartbeatIntervalMs();
+
+    /**
+     * @return longest smoothed round-trip time of heartbeats of registered services in microseconds
+     */
+    long getHeartbeatRoundTripTimeMicros();
+
+    /**
+     * @return number of re-registrations and watch recoveries, which wait for backoff or rate limit
+     */
+    long getPendingRecoveries();
+
+    /**
+     * @return number of re-registrations and watch recoveries, sent to etcd
+     */
+    long getRecoveries();
+
+    /**
+     * @return number of registered services, which are currently not registered in etcd
+     */
+    long getUnregisteredServices();
+}
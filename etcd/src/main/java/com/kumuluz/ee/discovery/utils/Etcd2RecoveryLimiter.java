@@ -0,0 +1,143 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import com.kumuluz.ee.configuration.utils.ConfigurationUtil;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Limits recovery requests to etcd, i.e. re-registrations of services and resynchronisations of discovered services
+ * after failures. Each request is delayed by a randomised exponential backoff (full jitter) and then by a token bucket,
+ * shared by all requests of this JVM, so instances do not overload etcd in a burst once it becomes available again.
+ */
+public class Etcd2RecoveryLimiter {
+
+    private static final Logger log = Logger.getLogger(Etcd2RecoveryLimiter.class.getName());
+
+    private final ScheduledExecutorService scheduler;
+
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+
+    // token bucket, guarded by this
+    private final double tokensPerNano;
+    private final double burst;
+    private double tokens;
+    private long refilledAtNanos;
+
+    private final AtomicInteger pendingRecoveries = new AtomicInteger();
+    private final LongAdder recoveries = new LongAdder();
+
+    public Etcd2RecoveryLimiter(ScheduledExecutorService scheduler, ConfigurationUtil configurationUtil) {
+        this.scheduler = scheduler;
+        this.initialBackoffNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, configurationUtil
+                .getLong("kumuluzee.discovery.recovery.initial-backoff-ms").orElse(500L)));
+        this.maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(configurationUtil
+                .getLong("kumuluzee.discovery.recovery.max-backoff-ms").orElse(30000L));
+
+        double rate = configurationUtil.getDouble("kumuluzee.discovery.recovery.rate").orElse(5.0);
+        this.tokensPerNano = Math.max(rate, 0.001) / TimeUnit.SECONDS.toNanos(1);
+        this.burst = Math.max(1, configurationUtil.getInteger("kumuluzee.discovery.recovery.burst").orElse(5));
+        this.tokens = this.burst;
+        this.refilledAtNanos = System.nanoTime();
+    }
+
+    /**
+     * Runs the task on the scheduler after the backoff for the given attempt, once a token is available.
+     *
+     * @param attempt number of consecutive failed attempts before this one, starting with 0
+     */
+    public void schedule(Runnable task, int attempt) {
+
+        long delayNanos = backoffNanos(attempt) + reserveToken();
+
+        this.pendingRecoveries.incrementAndGet();
+        try {
+            this.scheduler.schedule(() -> {
+                this.pendingRecoveries.decrementAndGet();
+                this.recoveries.increment();
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.severe("Exception in recovery: " + e);
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // scheduler was shut down, recovery is dropped
+            this.pendingRecoveries.decrementAndGet();
+        }
+    }
+
+    /**
+     * @param attempt number of consecutive failed attempts before this one, starting with 0
+     * @return future, completed on the scheduler after the backoff, once a token is available; never completed, if
+     * the scheduler was shut down
+     */
+    public CompletableFuture<Void> acquire(int attempt) {
+        CompletableFuture<Void> acquired = new CompletableFuture<>();
+        schedule(() -> acquired.complete(null), attempt);
+
+        return acquired;
+    }
+
+    private long backoffNanos(int attempt) {
+        long maxDelayNanos = Math.min(this.maxBackoffNanos, this.initialBackoffNanos << Math.min(attempt, 20));
+
+        return (maxDelayNanos <= 0) ? 0 : ThreadLocalRandom.current().nextLong(maxDelayNanos);
+    }
+
+    /**
+     * Takes a token from the bucket. If the bucket is empty, the token is reserved in advance.
+     *
+     * @return delay until the reserved token is available
+     */
+    private synchronized long reserveToken() {
+        long now = System.nanoTime();
+        this.tokens = Math.min(this.burst, this.tokens + (now - this.refilledAtNanos) * this.tokensPerNano);
+        this.refilledAtNanos = now;
+
+        this.tokens -= 1;
+
+        return (this.tokens >= 0) ? 0 : (long) (-this.tokens / this.tokensPerNano);
+    }
+
+    /**
+     * @return number of recovery requests, which are waiting for backoff or a token
+     */
+    public int getPendingRecoveries() {
+        return pendingRecoveries.get();
+    }
+
+    /**
+     * @return number of recovery requests, which were sent
+     */
+    public long getRecoveries() {
+        return recoveries.sum();
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import java.io.*;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Binary file with a snapshot of the registry, used to warm up the cache on restarts.
+ * <p>
+ * The file starts with a magic number and format version, followed by instances and versions of services. Strings are
+ * stored as length-prefixed UTF-8, with length -1 for null. The file is written to a temporary file and atomically
+ * moved into place.
+ */
+public class Etcd2RegistrySnapshotFile {
+
+    private static final int MAGIC = 0x4b444953;
+    private static final int FORMAT_VERSION = 1;
+    // bound of string lengths, so corrupted lengths fail instead of allocating large arrays
+    private static final int MAX_STRING_LENGTH = 1 << 20;
+
+    private Etcd2RegistrySnapshotFile() {
+    }
+
+    /**
+     * Writes instances and versions of the snapshot to the file.
+     */
+    public static void write(Path path, Etcd2ServiceRegistry.Snapshot snapshot) throws IOException {
+
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+
+            // expiring entries of missing services and failed lookups are not persisted
+            Map<ServiceKey, Etcd2ServiceRegistry.Instances> allInstances = new HashMap<>();
+            snapshot.getAllInstances().forEach((key, instances) -> {
+                if (!instances.isExpiring()) {
+                    allInstances.put(key, instances);
+                }
+            });
+            out.writeInt(allInstances.size());
+            for (Map.Entry<ServiceKey, Etcd2ServiceRegistry.Instances> entry : allInstances.entrySet()) {
+                writeString(out, entry.getKey().getServiceName());
+                writeString(out, entry.getKey().getVersion());
+                writeString(out, entry.getKey().getEnvironment());
+
+                Map<String, Etcd2Service> services = entry.getValue().getServices();
+                out.writeInt(services.size());
+                for (Map.Entry<String, Etcd2Service> service : services.entrySet()) {
+                    writeString(out, service.getKey());
+                    writeString(out, toString(service.getValue().getBaseUrl()));
+                    writeString(out, toString(service.getValue().getRawContainerUrl()));
+                    writeString(out, service.getValue().getClusterId());
+                }
+            }
+
+            Map<ServiceKey, Etcd2ServiceRegistry.Versions> allVersions = new HashMap<>();
+            snapshot.getAllVersions().forEach((key, versions) -> {
+                if (!versions.isExpiring()) {
+                    allVersions.put(key, versions);
+                }
+            });
+            out.writeInt(allVersions.size());
+            for (Map.Entry<ServiceKey, Etcd2ServiceRegistry.Versions> entry : allVersions.entrySet()) {
+                writeString(out, entry.getKey().getServiceName());
+                writeString(out, entry.getKey().getEnvironment());
+
+                List<String> versions = entry.getValue().getVersions();
+                out.writeInt(versions.size());
+                for (String version : versions) {
+                    writeString(out, version);
+                }
+            }
+        }
+
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the file.
+     *
+     * @return contents of the file, or null if the file does not exist
+     * @throws IOException if the file cannot be read or is not a valid snapshot
+     */
+    public static Contents read(Path path) throws IOException {
+
+        if (!Files.exists(path)) {
+            return null;
+        }
+
+        // read through a stream, a mapped file cannot be replaced on Windows until the mapping is garbage collected
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Not a registry snapshot: " + path);
+            }
+
+            Map<ServiceKey, Map<String, Etcd2Service>> instances = new HashMap<>();
+            int instancesCount = in.readInt();
+            for (int i = 0; i < instancesCount; i++) {
+                ServiceKey key = ServiceKey.of(readString(in), readString(in), readString(in));
+
+                Map<String, Etcd2Service> services = new HashMap<>();
+                int servicesCount = in.readInt();
+                for (int j = 0; j < servicesCount; j++) {
+                    String instanceKey = readString(in);
+                    services.put(instanceKey, new Etcd2Service(toUrl(readString(in)), toUrl(readString(in)),
+                            readString(in)));
+                }
+                instances.put(key, services);
+            }
+
+            Map<ServiceKey, List<String>> versions = new HashMap<>();
+            int versionsCount = in.readInt();
+            for (int i = 0; i < versionsCount; i++) {
+                ServiceKey key = ServiceKey.of(readString(in), readString(in));
+
+                int count = in.readInt();
+                List<String> serviceVersions = new ArrayList<>();
+                for (int j = 0; j < count; j++) {
+                    serviceVersions.add(readString(in));
+                }
+                versions.put(key, serviceVersions);
+            }
+
+            return new Contents(instances, versions);
+        } catch (RuntimeException e) {
+            // truncated or corrupted file
+            throw new IOException("Cannot read registry snapshot " + path + ": " + e, e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_STRING_LENGTH) {
+            throw new IOException("Invalid string length: " + length);
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String toString(URL url) {
+        return (url == null) ? null : url.toString();
+    }
+
+    private static URL toUrl(String url) throws MalformedURLException {
+        return (url == null) ? null : new URL(url);
+    }
+
+    /**
+     * Instances and versions, read from the snapshot file.
+     */
+    public static final class Contents {
+
+        private final Map<ServiceKey, Map<String, Etcd2Service>> instances;
+        private final Map<ServiceKey, List<String>> versions;
+
+        private Contents(Map<ServiceKey, Map<String, Etcd2Service>> instances,
+                         Map<ServiceKey, List<String>> versions) {
+            this.instances = instances;
+            this.versions = versions;
+        }
+
+        public Map<ServiceKey, Map<String, Etcd2Service>> getInstances() {
+            return instances;
+        }
+
+        public Map<ServiceKey, List<String>> getVersions() {
+            return versions;
+        }
+
+        /**
+         * Adds contents to the registry snapshot. Entries, already cached, are kept.
+         */
+        public Etcd2ServiceRegistry.Snapshot applyTo(Etcd2ServiceRegistry.Snapshot snapshot) {
+
+            Etcd2ServiceRegistry.Snapshot updated = snapshot;
+            for (Map.Entry<ServiceKey, Map<String, Etcd2Service>> entry : instances.entrySet()) {
+                if (!updated.hasInstances(entry.getKey())) {
+                    updated = updated.withInstances(entry.getKey(), entry.getValue());
+                }
+            }
+            for (Map.Entry<ServiceKey, List<String>> entry : versions.entrySet()) {
+                if (!updated.hasVersions(entry.getKey())) {
+                    updated = updated.withVersions(entry.getKey(), entry.getValue());
+                }
+            }
+
+            return updated;
+        }
+    }
+}
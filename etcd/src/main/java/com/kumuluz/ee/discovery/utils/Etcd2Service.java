@@ -21,6 +21,7 @@
 package com.kumuluz.ee.discovery.utils;
 
 import java.net.URL;
+import java.util.Objects;
 
 /**
  * Runnable for service registration and heartbeats
@@ -29,9 +30,9 @@ import java.net.URL;
  */
 public class Etcd2Service {
 
-    private URL baseUrl;
-    private URL containerUrl;
-    private String clusterId;
+    private final URL baseUrl;
+    private final URL containerUrl;
+    private final String clusterId;
 
     public Etcd2Service(URL baseUrl, URL containerUrl, String clusterId) {
         this.baseUrl = baseUrl;
@@ -51,19 +52,52 @@ public class Etcd2Service {
         }
     }
 
+    /**
+     * @return container URL, as registered, or null if the instance has none
+     */
+    public URL getRawContainerUrl() {
+        return this.containerUrl;
+    }
+
     public String getClusterId() {
         return this.clusterId;
     }
 
-    public void setBaseUrl(URL baseUrl) {
-        this.baseUrl = baseUrl;
+    public Etcd2Service withBaseUrl(URL baseUrl) {
+        return new Etcd2Service(baseUrl, this.containerUrl, this.clusterId);
     }
 
-    public void setContainerUrl(URL containerUrl) {
-        this.containerUrl = containerUrl;
+    public Etcd2Service withContainerUrl(URL containerUrl) {
+        return new Etcd2Service(this.baseUrl, containerUrl, this.clusterId);
     }
 
-    public void setClusterId(String clusterId) {
-        this.clusterId = clusterId;
+    public Etcd2Service withClusterId(String clusterId) {
+        return new Etcd2Service(this.baseUrl, this.containerUrl, clusterId);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        Etcd2Service that = (Etcd2Service) o;
+
+        // URLs are compared as strings, URL.equals resolves host names
+        return Objects.equals(toString(baseUrl), toString(that.baseUrl)) &&
+                Objects.equals(toString(containerUrl), toString(that.containerUrl)) &&
+                Objects.equals(clusterId, that.clusterId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(toString(baseUrl), toString(containerUrl), clusterId);
+    }
+
+    private static String toString(URL url) {
+        return (url == null) ? null : url.toString();
     }
 }
@@ -39,6 +39,7 @@ public class Etcd2ServiceConfiguration {
 
     private String serviceInstanceKey;
     private String serviceKeyUrl;
+    private String singletonKey;
 
     public Etcd2ServiceConfiguration(String serviceName, String serviceVersion, String environment, int ttl,
                                      boolean singleton, String baseUrl, String containerUrl, String clusterId) {
@@ -55,6 +56,7 @@ public class Etcd2ServiceConfiguration {
                 this.serviceVersion, String.valueOf(new Date().getTime()));
 
         this.serviceKeyUrl = serviceInstanceKey + "/url/";
+        this.singletonKey = Etcd2Utils.getSingletonKey(this.environment, this.serviceName, this.serviceVersion);
     }
 
     public String getServiceName() {
@@ -96,4 +98,8 @@ public class Etcd2ServiceConfiguration {
     public String getServiceKeyUrl() {
         return serviceKeyUrl;
     }
+
+    public String getSingletonKey() {
+        return singletonKey;
+    }
 }
@@ -0,0 +1,398 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import com.kumuluz.ee.discovery.loadbalancing.ConsistentHashRing;
+import com.vdurmont.semver4j.Requirement;
+import com.vdurmont.semver4j.Semver;
+import com.vdurmont.semver4j.SemverException;
+
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/**
+ * Registry of discovered service instances and service versions.
+ * <p>
+ * State is held in an immutable {@link Snapshot}. Writers (etcd watch listeners and cache misses) publish a new
+ * snapshot atomically, readers only dereference the current one and never lock. Instance URLs are resolved once per
+ * change, so lookups do not allocate.
+ */
+public class Etcd2ServiceRegistry {
+
+    private final AtomicReference<Snapshot> snapshot;
+
+    /**
+     * @param clusterId cluster id of this instance, used to resolve container URLs of instances in the same cluster
+     */
+    public Etcd2ServiceRegistry(String clusterId) {
+        this.snapshot = new AtomicReference<>(new Snapshot(clusterId, Collections.emptyMap(),
+                Collections.emptyMap()));
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    /**
+     * Atomically replaces the current snapshot with the result of the given function. The function may be invoked
+     * more than once under contention, so it must be free of side effects.
+     *
+     * @param update function, producing new snapshot from the current one
+     * @return published snapshot
+     */
+    public Snapshot update(UnaryOperator<Snapshot> update) {
+        return snapshot.updateAndGet(update);
+    }
+
+    /**
+     * Immutable view of the registry.
+     */
+    public static final class Snapshot {
+
+        private final String clusterId;
+        private final Map<ServiceKey, Instances> serviceInstances;
+        private final Map<ServiceKey, Versions> serviceVersions;
+
+        private Snapshot(String clusterId, Map<ServiceKey, Instances> serviceInstances,
+                         Map<ServiceKey, Versions> serviceVersions) {
+            this.clusterId = clusterId;
+            this.serviceInstances = serviceInstances;
+            this.serviceVersions = serviceVersions;
+        }
+
+        public boolean hasInstances(ServiceKey key) {
+            return serviceInstances.containsKey(key);
+        }
+
+        /**
+         * @param key service key
+         * @return instances of the service, or null if service is not cached
+         */
+        public Instances getInstances(ServiceKey key) {
+            return serviceInstances.get(key);
+        }
+
+        public Etcd2Service getInstance(ServiceKey key, String instanceKey) {
+            Instances instances = serviceInstances.get(key);
+
+            return (instances == null) ? null : instances.getServices().get(instanceKey);
+        }
+
+        /**
+         * @return unmodifiable map of all cached instances
+         */
+        public Map<ServiceKey, Instances> getAllInstances() {
+            return serviceInstances;
+        }
+
+        /**
+         * @return unmodifiable map of all cached versions
+         */
+        public Map<ServiceKey, Versions> getAllVersions() {
+            return serviceVersions;
+        }
+
+        /**
+         * @param key key of all versions of the service
+         * @return true, if versions are cached and watched
+         */
+        public boolean hasVersions(ServiceKey key) {
+            Versions versions = serviceVersions.get(key);
+
+            return versions != null && !versions.isExpiring();
+        }
+
+        /**
+         * @param key key of all versions of the service
+         * @return unmodifiable list of versions, or null if versions are not cached
+         */
+        public List<String> getVersions(ServiceKey key) {
+            Versions versions = serviceVersions.get(key);
+
+            return (versions == null) ? null : versions.getVersions();
+        }
+
+        /**
+         * @param key key of all versions of the service
+         * @return semver index of versions, or null if versions are not cached
+         */
+        public Versions getVersionIndex(ServiceKey key) {
+            return serviceVersions.get(key);
+        }
+
+        public Snapshot withInstances(ServiceKey key, Map<String, Etcd2Service> instances) {
+            Map<ServiceKey, Instances> newInstances = new HashMap<>(serviceInstances);
+            newInstances.put(key, new Instances(clusterId, instances, serviceInstances.get(key), false, 0));
+
+            return new Snapshot(clusterId, Collections.unmodifiableMap(newInstances), serviceVersions);
+        }
+
+        /**
+         * Caches instances, which are not watched, until the given expiry.
+         *
+         * @param expiresAtNanos expiry in {@link System#nanoTime()}
+         */
+        public Snapshot withExpiringInstances(ServiceKey key, Map<String, Etcd2Service> instances,
+                                              long expiresAtNanos) {
+            Map<ServiceKey, Instances> newInstances = new HashMap<>(serviceInstances);
+            newInstances.put(key, new Instances(clusterId, instances, serviceInstances.get(key), true,
+                    expiresAtNanos));
+
+            return new Snapshot(clusterId, Collections.unmodifiableMap(newInstances), serviceVersions);
+        }
+
+        public Snapshot withInstance(ServiceKey key, String instanceKey, Etcd2Service instance) {
+            Instances instances = serviceInstances.get(key);
+            Map<String, Etcd2Service> newInstances = (instances == null) ? new HashMap<>() :
+                    new HashMap<>(instances.getServices());
+            newInstances.put(instanceKey, instance);
+
+            return withInstances(key, newInstances);
+        }
+
+        public Snapshot withoutInstance(ServiceKey key, String instanceKey) {
+            Instances instances = serviceInstances.get(key);
+            if (instances == null || !instances.getServices().containsKey(instanceKey)) {
+                return this;
+            }
+
+            Map<String, Etcd2Service> newInstances = new HashMap<>(instances.getServices());
+            newInstances.remove(instanceKey);
+
+            return withInstances(key, newInstances);
+        }
+
+        public Snapshot withVersions(ServiceKey key, List<String> versions) {
+            Map<ServiceKey, Versions> newVersions = new HashMap<>(serviceVersions);
+            newVersions.put(key, new Versions(versions, false, 0));
+
+            return new Snapshot(clusterId, serviceInstances, Collections.unmodifiableMap(newVersions));
+        }
+
+        /**
+         * Caches versions, which are not watched, until the given expiry.
+         *
+         * @param versions       versions, or null if the service does not exist
+         * @param expiresAtNanos expiry in {@link System#nanoTime()}
+         */
+        public Snapshot withExpiringVersions(ServiceKey key, List<String> versions, long expiresAtNanos) {
+            Map<ServiceKey, Versions> newVersions = new HashMap<>(serviceVersions);
+            newVersions.put(key, new Versions(versions, true, expiresAtNanos));
+
+            return new Snapshot(clusterId, serviceInstances, Collections.unmodifiableMap(newVersions));
+        }
+    }
+
+    /**
+     * Instances of a single service version in an environment, together with their URLs resolved for this instance.
+     * Rebuilt only when the instances change. Consistent hash ring is built on first use and afterwards rebuilt
+     * incrementally from the ring of the previous instances.
+     */
+    public static final class Instances {
+
+        private final Map<String, Etcd2Service> services;
+        private final List<URL> urls;
+        private final Optional<List<URL>> optionalUrls;
+        private final Optional<URL>[] optionalUrlArray;
+
+        private final boolean expiring;
+        private final long expiresAtNanos;
+
+        private volatile ConsistentHashRing ring;
+
+        @SuppressWarnings("unchecked")
+        private Instances(String clusterId, Map<String, Etcd2Service> services, Instances previous, boolean expiring,
+                          long expiresAtNanos) {
+            this.services = Collections.unmodifiableMap(new HashMap<>(services));
+            this.expiring = expiring;
+            this.expiresAtNanos = expiresAtNanos;
+
+            List<URL> resolvedUrls = new ArrayList<>(services.size());
+            for (Etcd2Service service : services.values()) {
+                if (service.getBaseUrl() == null) {
+                    // url key not written yet, instance is not published
+                    continue;
+                }
+
+                if (clusterId != null && clusterId.equals(service.getClusterId())) {
+                    resolvedUrls.add(service.getContainerUrl());
+                } else {
+                    resolvedUrls.add(service.getBaseUrl());
+                }
+            }
+
+            this.urls = Collections.unmodifiableList(resolvedUrls);
+            this.optionalUrls = Optional.of(this.urls);
+            this.optionalUrlArray = new Optional[resolvedUrls.size()];
+            for (int i = 0; i < optionalUrlArray.length; i++) {
+                optionalUrlArray[i] = Optional.of(resolvedUrls.get(i));
+            }
+
+            if (previous != null && previous.ring != null) {
+                this.ring = previous.ring.rebuild(this.urls);
+            }
+        }
+
+        /**
+         * @return unmodifiable map of instance keys to instances
+         */
+        public Map<String, Etcd2Service> getServices() {
+            return services;
+        }
+
+        /**
+         * @return true, if no instance is published, i.e. instances without url key are not counted
+         */
+        public boolean isEmpty() {
+            return optionalUrlArray.length == 0;
+        }
+
+        /**
+         * @return true, if instances are not watched and expire, e.g. for services not found in etcd
+         */
+        public boolean isExpiring() {
+            return expiring;
+        }
+
+        public boolean isExpired(long nanoTime) {
+            return expiring && nanoTime - expiresAtNanos >= 0;
+        }
+
+        /**
+         * @return unmodifiable list of resolved instance URLs
+         */
+        public List<URL> getUrls() {
+            return urls;
+        }
+
+        public Optional<List<URL>> getOptionalUrls() {
+            return optionalUrls;
+        }
+
+        public int size() {
+            return optionalUrlArray.length;
+        }
+
+        public Optional<URL> getUrl(int index) {
+            return optionalUrlArray[index];
+        }
+
+        /**
+         * @return consistent hash ring of resolved instance URLs
+         */
+        public ConsistentHashRing getRing() {
+            ConsistentHashRing currentRing = ring;
+            if (currentRing == null) {
+                // concurrent first lookups may build the ring more than once, the result is the same
+                currentRing = ConsistentHashRing.build(urls);
+                ring = currentRing;
+            }
+
+            return currentRing;
+        }
+    }
+
+    /**
+     * Versions of a service in an environment with a semver index, sorted from the latest version. Results of range
+     * resolutions are cached until the versions change.
+     */
+    public static final class Versions {
+
+        private final List<String> versions;
+        private final Optional<List<String>> optionalVersions;
+        private final List<Semver> sortedSemvers;
+        private final ConcurrentMap<String, Optional<String>> resolvedRanges = new ConcurrentHashMap<>();
+        private final boolean expiring;
+        private final long expiresAtNanos;
+
+        private Versions(List<String> versions, boolean expiring, long expiresAtNanos) {
+            this.versions = (versions == null) ? Collections.emptyList() :
+                    Collections.unmodifiableList(new ArrayList<>(versions));
+            this.optionalVersions = (versions == null) ? Optional.empty() : Optional.of(this.versions);
+            this.expiring = expiring;
+            this.expiresAtNanos = expiresAtNanos;
+
+            List<Semver> semvers = new ArrayList<>(this.versions.size());
+            for (String version : this.versions) {
+                try {
+                    semvers.add(new Semver(version, Semver.SemverType.NPM));
+                } catch (SemverException ignored) {
+                }
+            }
+            semvers.sort(Collections.reverseOrder());
+
+            this.sortedSemvers = Collections.unmodifiableList(semvers);
+        }
+
+        /**
+         * @return unmodifiable list of versions
+         */
+        public List<String> getVersions() {
+            return versions;
+        }
+
+        /**
+         * @return versions, or empty if the service does not exist
+         */
+        public Optional<List<String>> getOptionalVersions() {
+            return optionalVersions;
+        }
+
+        /**
+         * @return true, if versions are not watched and expire, e.g. for services not found in etcd
+         */
+        public boolean isExpiring() {
+            return expiring;
+        }
+
+        public boolean isExpired(long nanoTime) {
+            return expiring && nanoTime - expiresAtNanos >= 0;
+        }
+
+        /**
+         * Resolves version range to the latest satisfying version.
+         *
+         * @param range       version range
+         * @param requirement compiled version range
+         * @return latest version, satisfying the range, or empty if none does
+         */
+        public Optional<String> resolve(String range, Requirement requirement) {
+
+            Optional<String> resolved = resolvedRanges.get(range);
+            if (resolved == null) {
+                resolved = Optional.empty();
+                for (Semver semver : sortedSemvers) {
+                    if (semver.satisfies(requirement)) {
+                        resolved = Optional.of(semver.getOriginalValue());
+                        break;
+                    }
+                }
+                resolvedRanges.putIfAbsent(range, resolved);
+            }
+
+            return resolved;
+        }
+    }
+}
@@ -20,12 +20,18 @@
 */
 package com.kumuluz.ee.discovery.utils;
 
+import mousio.client.promises.ResponsePromise;
 import mousio.etcd4j.EtcdClient;
+import mousio.etcd4j.requests.EtcdKeyGetRequest;
+import mousio.etcd4j.requests.EtcdKeyRequest;
 import mousio.etcd4j.responses.EtcdAuthenticationException;
+import mousio.etcd4j.responses.EtcdErrorCode;
 import mousio.etcd4j.responses.EtcdException;
 import mousio.etcd4j.responses.EtcdKeysResponse;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
@@ -62,6 +68,95 @@ public class Etcd2Utils {
         return etcdKeysResponse;
     }
 
+    /**
+     * Recursively reads the given directory without blocking.
+     *
+     * @param timeoutMs timeout of the request in milliseconds, no timeout if not positive
+     * @return future, completed with the response, with null if the directory does not exist, or exceptionally if
+     * the directory cannot be read
+     */
+    public static CompletableFuture<EtcdKeysResponse> getEtcdDirAsync(EtcdClient etcd, String key, long timeoutMs) {
+
+        CompletableFuture<EtcdKeysResponse> etcdKeysResponse = new CompletableFuture<>();
+
+        if (etcd != null) {
+
+            try {
+                EtcdKeyGetRequest request = etcd.getDir(key).recursive();
+                if (timeoutMs > 0) {
+                    request.timeout(timeoutMs, TimeUnit.MILLISECONDS);
+                }
+
+                request.send().addListener((ResponsePromise<EtcdKeysResponse> promise) -> {
+                    Throwable t = promise.getException();
+
+                    if (t == null) {
+                        etcdKeysResponse.complete(promise.getNow());
+                        return;
+                    }
+
+                    if (t instanceof EtcdException && ((EtcdException) t).isErrorCode(EtcdErrorCode.KeyNotFound)) {
+                        etcdKeysResponse.complete(null);
+                        return;
+                    }
+
+                    if (t instanceof EtcdException) {
+                        log.info("Etcd exception. " + t);
+                    } else if (t instanceof EtcdAuthenticationException) {
+                        log.severe("Etcd authentication exception. Cannot read given key: " + t);
+                    } else if (t instanceof TimeoutException) {
+                        log.severe("Timeout exception. Cannot read given key time: " + t);
+                    } else {
+                        log.info("IO Exception. Cannot read given key: " + t);
+                    }
+                    etcdKeysResponse.completeExceptionally(t);
+                });
+            } catch (IOException e) {
+                log.info("IO Exception. Cannot read given key: " + e);
+                etcdKeysResponse.completeExceptionally(e);
+            }
+
+        } else {
+            log.severe("etcd not initialised.");
+            etcdKeysResponse.completeExceptionally(new IllegalStateException("etcd not initialised."));
+        }
+
+        return etcdKeysResponse;
+    }
+
+    /**
+     * Sends the request without blocking.
+     *
+     * @return future, completed with the response, or exceptionally if the request fails
+     */
+    public static CompletableFuture<EtcdKeysResponse> sendAsync(EtcdKeyRequest request) {
+
+        CompletableFuture<EtcdKeysResponse> etcdKeysResponse = new CompletableFuture<>();
+
+        try {
+            request.send().addListener((ResponsePromise<EtcdKeysResponse> promise) -> {
+                Throwable t = promise.getException();
+
+                if (t == null) {
+                    etcdKeysResponse.complete(promise.getNow());
+                } else {
+                    etcdKeysResponse.completeExceptionally(t);
+                }
+            });
+        } catch (IOException e) {
+            etcdKeysResponse.completeExceptionally(e);
+        }
+
+        return etcdKeysResponse;
+    }
+
+    /**
+     * @return true, if instances with the given status are not selected by clients, i.e. disabled or draining
+     */
+    public static boolean isInactiveStatus(String status) {
+        return "disabled".equals(status) || "draining".equals(status);
+    }
+
     public static String getLastKeyLayer(String key) {
         String[] splittedKey = key.split("/");
         return splittedKey[splittedKey.length - 1];
@@ -73,6 +168,13 @@ public class Etcd2Utils {
                 serviceId;
     }
 
+    /**
+     * @return key, held by the registered instance of a singleton service
+     */
+    public static String getSingletonKey(String environment, String serviceName, String serviceVersion) {
+        return "/environments/" + environment + "/singletons/" + serviceName + "/" + serviceVersion;
+    }
+
     public static String getServiceKeyInstances(String environment, String serviceName, String serviceVersion) {
         return "/environments/" + environment + "/services/" + serviceName + "/" + serviceVersion + "/instances/";
     }
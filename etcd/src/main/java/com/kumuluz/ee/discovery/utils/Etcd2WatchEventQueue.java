@@ -0,0 +1,171 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import com.kumuluz.ee.configuration.utils.ConfigurationUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Dedicated executor for handling of watch responses, which keeps etcd client I/O threads free. Events, received
+ * within the batch window, are collected and handed to the publisher as one batch, so a burst of changes results in a
+ * single registry update.
+ * <p>
+ * Responses are handled by {@code kumuluzee.discovery.watch.threads} threads (default 1). Each watched key is always
+ * handled by the same thread, which preserves the order of its events, and each thread collects its own batches, so
+ * the publisher must be thread-safe when more threads are configured. The number of pending events is bounded by the
+ * number of active watches, since each watch is only re-armed after its response is handled, and by the maximum batch
+ * size, at which the batch is published without waiting for the window to close.
+ *
+ * @param <E> type of events
+ */
+public class Etcd2WatchEventQueue<E> {
+
+    private static final Logger log = Logger.getLogger(Etcd2WatchEventQueue.class.getName());
+
+    private final Consumer<List<E>> publisher;
+    private final long batchWindowMs;
+    private final int maxBatchSize;
+    private final List<Worker> workers;
+
+    private final ThreadLocal<Worker> currentWorker = new ThreadLocal<>();
+
+    public Etcd2WatchEventQueue(ConfigurationUtil configurationUtil, Consumer<List<E>> publisher) {
+        this.publisher = publisher;
+        this.batchWindowMs = configurationUtil.getLong("kumuluzee.discovery.watch.batch-window-ms").orElse(10L);
+        this.maxBatchSize = Math.max(1, configurationUtil.getInteger("kumuluzee.discovery.watch.max-batch-size")
+                .orElse(256));
+
+        int threads = Math.max(1, configurationUtil.getInteger("kumuluzee.discovery.watch.threads").orElse(1));
+        this.workers = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            workers.add(new Worker((threads == 1) ? "kumuluzee-discovery-watch" : "kumuluzee-discovery-watch-" + i));
+        }
+    }
+
+    /**
+     * Runs the task on the watch thread of the key.
+     */
+    public void execute(String key, Runnable task) {
+        Worker worker = getWorker(key);
+        worker.executor.execute(() -> worker.run(task));
+    }
+
+    /**
+     * @return executor, which runs tasks on the watch thread of the key
+     */
+    public Executor executor(String key) {
+        return task -> execute(key, task);
+    }
+
+    /**
+     * Adds the event to the current batch of the watch thread. Must be called on a watch thread.
+     */
+    public void add(E event) {
+        getCurrentWorker().add(event);
+    }
+
+    /**
+     * Publishes pending events of the watch thread immediately. Must be called on a watch thread, e.g. before state is
+     * replaced by a fresh read from etcd.
+     */
+    public void publish() {
+        getCurrentWorker().publish();
+    }
+
+    public void shutdown() {
+        for (Worker worker : workers) {
+            worker.executor.shutdown();
+        }
+    }
+
+    private Worker getWorker(String key) {
+        return workers.get((key.hashCode() & Integer.MAX_VALUE) % workers.size());
+    }
+
+    private Worker getCurrentWorker() {
+        Worker worker = currentWorker.get();
+        if (worker == null) {
+            throw new IllegalStateException("Not called on a watch thread");
+        }
+
+        return worker;
+    }
+
+    /**
+     * Watch thread with its batch of events.
+     */
+    private final class Worker {
+
+        private final ScheduledExecutorService executor;
+
+        // accessed only by the executor thread
+        private List<E> pending = new ArrayList<>();
+        private boolean publishScheduled;
+
+        private Worker(String threadName) {
+            this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        private void add(E event) {
+            pending.add(event);
+
+            if (pending.size() >= maxBatchSize || batchWindowMs <= 0) {
+                publish();
+            } else if (!publishScheduled) {
+                publishScheduled = true;
+                executor.schedule(() -> run(this::publish), batchWindowMs, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void publish() {
+            publishScheduled = false;
+
+            if (pending.isEmpty()) {
+                return;
+            }
+
+            List<E> batch = pending;
+            pending = new ArrayList<>();
+            publisher.accept(batch);
+        }
+
+        private void run(Runnable task) {
+            currentWorker.set(this);
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.severe("Exception while handling watch response: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery;
+
+import com.kumuluz.ee.configuration.utils.ConfigurationUtil;
+import com.kumuluz.ee.discovery.utils.Etcd2ServiceConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link Etcd2HeartbeatScheduler}.
+ */
+public class Etcd2HeartbeatSchedulerTest {
+
+    private static final String TICK = "kumuluzee.discovery.heartbeat.tick-ms";
+    private static final String MIN_INTERVAL = "kumuluzee.discovery.heartbeat.min-interval-ms";
+
+    private ScheduledExecutorService executor;
+
+    @Before
+    public void setUp() {
+        System.setProperty(TICK, "10");
+        System.setProperty(MIN_INTERVAL, "50");
+        executor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        System.clearProperty(TICK);
+        System.clearProperty(MIN_INTERVAL);
+    }
+
+    @Test
+    public void retriesSoonAfterFailedHeartbeat() throws InterruptedException {
+
+        Etcd2HeartbeatScheduler scheduler = new Etcd2HeartbeatScheduler(executor, ConfigurationUtil.getInstance());
+        FixedRegistrator registrator = new FixedRegistrator(90, Etcd2Registrator.FAILED);
+
+        scheduler.add(registrator, 60);
+        Thread.sleep(1000);
+
+        assertTrue(registrator.heartbeats.get() >= 3);
+    }
+
+    @Test
+    public void sendsHeartbeatsEveryPingIntervalAfterSuccessfulRefresh() throws InterruptedException {
+
+        Etcd2HeartbeatScheduler scheduler = new Etcd2HeartbeatScheduler(executor, ConfigurationUtil.getInstance());
+        FixedRegistrator registrator = new FixedRegistrator(90, TimeUnit.MILLISECONDS.toNanos(1));
+
+        scheduler.add(registrator, 60);
+        Thread.sleep(500);
+
+        assertEquals(1, registrator.heartbeats.get());
+    }
+
+    @Test
+    public void lengthensIntervalBeyondPingIntervalWhileRoundTripTimeIsLow() throws InterruptedException {
+
+        Etcd2HeartbeatScheduler scheduler = new Etcd2HeartbeatScheduler(executor, ConfigurationUtil.getInstance());
+        FixedRegistrator registrator = new FixedRegistrator(60, TimeUnit.MILLISECONDS.toNanos(1));
+
+        scheduler.add(registrator, 1);
+        Thread.sleep(200);
+
+        // 60 s * 0.75 - 4 * (1 ms + 4 * 0.5 ms)
+        assertEquals(1, registrator.heartbeats.get());
+        assertEquals(44988, scheduler.getMinIntervalMs());
+    }
+
+    @Test
+    public void shortensIntervalBelowPingIntervalWhileRoundTripTimeIsHigh() throws InterruptedException {
+
+        Etcd2HeartbeatScheduler scheduler = new Etcd2HeartbeatScheduler(executor, ConfigurationUtil.getInstance());
+        FixedRegistrator registrator = new FixedRegistrator(30, TimeUnit.MILLISECONDS.toNanos(500));
+
+        scheduler.add(registrator, 20);
+        Thread.sleep(200);
+
+        // 30 s * 0.75 - 4 * (500 ms + 4 * 250 ms)
+        assertEquals(1, registrator.heartbeats.get());
+        assertEquals(16500, scheduler.getMinIntervalMs());
+    }
+
+    /**
+     * Registrator, which completes every heartbeat with the same result, without sending requests.
+     */
+    private static final class FixedRegistrator extends Etcd2Registrator {
+
+        private final long result;
+        private final AtomicInteger heartbeats = new AtomicInteger();
+
+        private FixedRegistrator(int ttl, long result) {
+            super(null, new Etcd2ServiceConfiguration("test-service", "1.0.0", "dev", ttl, false,
+                    "http://localhost:8080", null, null));
+            this.result = result;
+        }
+
+        @Override
+        public CompletableFuture<Long> heartbeat() {
+            heartbeats.incrementAndGet();
+            return CompletableFuture.completedFuture(result);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery;
+
+import com.kumuluz.ee.discovery.utils.Etcd2ServiceConfiguration;
+import mousio.etcd4j.EtcdClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link Etcd2Registrator} against {@link FakeEtcd2Server}.
+ */
+public class Etcd2RegistratorTest {
+
+    private static final long TIMEOUT_MS = 10000;
+
+    private FakeEtcd2Server server;
+    private EtcdClient etcd;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeEtcd2Server();
+        etcd = new EtcdClient(server.getEndpoint());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        etcd.close();
+        server.shutdown();
+    }
+
+    @Test
+    public void registersServiceAndRefreshesIt() throws Exception {
+
+        Etcd2ServiceConfiguration serviceConfig = newServiceConfig(false);
+        Etcd2Registrator registrator = new Etcd2Registrator(etcd, serviceConfig);
+
+        assertEquals(Etcd2Registrator.NOT_REFRESHED, (long) registrator.heartbeat().get(10, TimeUnit.SECONDS));
+        assertTrue(registrator.isRegistered());
+        assertEquals("http://localhost:8080",
+                server.getKeys(serviceConfig.getServiceInstanceKey()).get(serviceConfig.getServiceKeyUrl()));
+
+        assertTrue(registrator.heartbeat().get(10, TimeUnit.SECONDS) >= 0);
+
+        registrator.deregister().get(10, TimeUnit.SECONDS);
+        assertTrue(server.getKeys(serviceConfig.getServiceInstanceKey()).isEmpty());
+    }
+
+    @Test
+    public void removesInstanceDeregisteredWhileRegistering() throws Exception {
+
+        Etcd2ServiceConfiguration serviceConfig = newServiceConfig(false);
+        Etcd2Registrator registrator = new Etcd2Registrator(etcd, serviceConfig);
+
+        server.holdDirectoryPut();
+        CompletableFuture<Long> heartbeat = registrator.heartbeat();
+        assertTrue(server.awaitDirectoryPut());
+
+        registrator.deregister().get(10, TimeUnit.SECONDS);
+        server.releaseDirectoryPut();
+        heartbeat.get(10, TimeUnit.SECONDS);
+
+        assertFalse(registrator.isRegistered());
+        assertTrue(server.getKeys(serviceConfig.getServiceInstanceKey()).isEmpty());
+    }
+
+    @Test
+    public void releasesSingletonKeyDeregisteredWhileRegistering() throws Exception {
+
+        Etcd2ServiceConfiguration serviceConfig = newServiceConfig(true);
+        Etcd2Registrator registrator = new Etcd2Registrator(etcd, serviceConfig);
+
+        server.holdDirectoryPut();
+        CompletableFuture<Long> heartbeat = registrator.heartbeat();
+        assertTrue(server.awaitDirectoryPut());
+
+        registrator.deregister().get(10, TimeUnit.SECONDS);
+        server.releaseDirectoryPut();
+        heartbeat.get(10, TimeUnit.SECONDS);
+
+        assertFalse(registrator.isRegistered());
+        assertTrue(server.getKeys(serviceConfig.getServiceInstanceKey()).isEmpty());
+        assertTrue(server.getKeys(serviceConfig.getSingletonKey()).isEmpty());
+    }
+
+    @Test
+    public void registersOneOfConcurrentSingletonInstances() throws Exception {
+
+        Etcd2Registrator first = new Etcd2Registrator(etcd, newServiceConfig(true));
+        Etcd2Registrator second = new Etcd2Registrator(etcd, newServiceConfig(true));
+
+        CompletableFuture<Long> firstHeartbeat = first.heartbeat();
+        CompletableFuture<Long> secondHeartbeat = second.heartbeat();
+        firstHeartbeat.get(10, TimeUnit.SECONDS);
+        secondHeartbeat.get(10, TimeUnit.SECONDS);
+
+        assertTrue(first.isRegistered() ^ second.isRegistered());
+
+        Etcd2Registrator standby = first.isRegistered() ? second : first;
+        assertEquals(Etcd2Registrator.NOT_REFRESHED, (long) standby.heartbeat().get(10, TimeUnit.SECONDS));
+        assertFalse(standby.isRegistered());
+        assertTrue(server.getKeys(standby.getServiceConfig().getServiceInstanceKey()).isEmpty());
+    }
+
+    @Test
+    public void takesOverSingletonKeyAfterHolderIsDeregistered() throws Exception {
+
+        Etcd2Registrator holder = new Etcd2Registrator(etcd, newServiceConfig(true));
+        Etcd2Registrator standby = new Etcd2Registrator(etcd, newServiceConfig(true));
+        String singletonKey = holder.getServiceConfig().getSingletonKey();
+
+        holder.heartbeat().get(10, TimeUnit.SECONDS);
+        standby.heartbeat().get(10, TimeUnit.SECONDS);
+        assertTrue(holder.isRegistered());
+        assertFalse(standby.isRegistered());
+
+        holder.deregister().get(10, TimeUnit.SECONDS);
+
+        await(standby::isRegistered);
+        assertEquals(standby.getServiceConfig().getServiceInstanceKey(),
+                server.getKeys(singletonKey).get(singletonKey));
+        assertTrue(server.getKeys(holder.getServiceConfig().getServiceInstanceKey()).isEmpty());
+    }
+
+    @Test
+    public void retriesRegistrationWithHeartbeatsAfterFailedTakeover() throws Exception {
+
+        Etcd2Registrator holder = new Etcd2Registrator(etcd, newServiceConfig(true));
+        Etcd2Registrator standby = new Etcd2Registrator(etcd, newServiceConfig(true));
+        String singletonKey = holder.getServiceConfig().getSingletonKey();
+
+        holder.heartbeat().get(10, TimeUnit.SECONDS);
+        standby.heartbeat().get(10, TimeUnit.SECONDS);
+
+        server.failNextPut(singletonKey);
+        holder.deregister().get(10, TimeUnit.SECONDS);
+        await(() -> !server.isPutFailurePending(singletonKey));
+
+        await(() -> standby.heartbeat().join() == Etcd2Registrator.NOT_REFRESHED && standby.isRegistered());
+        assertEquals(standby.getServiceConfig().getServiceInstanceKey(),
+                server.getKeys(singletonKey).get(singletonKey));
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Condition not met in " + TIMEOUT_MS + " ms.");
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    private static Etcd2ServiceConfiguration newServiceConfig(boolean singleton) throws InterruptedException {
+        // instance keys are derived from the current time in milliseconds
+        Thread.sleep(2);
+
+        return new Etcd2ServiceConfiguration("test-service", "1.0.0", "dev", 30, singleton,
+                "http://localhost:8080", null, null);
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory etcd v2 keys API, which supports the requests sent by {@link Etcd2Registrator}, including watches of
+ * single keys. TTLs are not expired. Responses to directory writes can be held back and writes of keys can be failed
+ * to let tests interleave requests and inject errors.
+ */
+class FakeEtcd2Server {
+
+    private static final String KEYS_PATH = "/v2/keys";
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    // key to value, null for directories, guarded by this
+    private final TreeMap<String, String> keys = new TreeMap<>();
+    private long index;
+    private final List<Event> events = new ArrayList<>();
+    private final Set<String> failedPuts = new HashSet<>();
+    private boolean closed;
+
+    private volatile CountDownLatch heldDirectoryPut;
+    private final CountDownLatch directoryPutReceived = new CountDownLatch(1);
+
+    FakeEtcd2Server() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext(KEYS_PATH, this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    URI getEndpoint() {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    void shutdown() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        CountDownLatch held = heldDirectoryPut;
+        if (held != null) {
+            held.countDown();
+        }
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Holds back the response to the next directory write until {@link #releaseDirectoryPut()} is called.
+     */
+    void holdDirectoryPut() {
+        heldDirectoryPut = new CountDownLatch(1);
+    }
+
+    boolean awaitDirectoryPut() throws InterruptedException {
+        return directoryPutReceived.await(10, TimeUnit.SECONDS);
+    }
+
+    void releaseDirectoryPut() {
+        heldDirectoryPut.countDown();
+    }
+
+    /**
+     * Fails the next write of the key with an internal error.
+     */
+    synchronized void failNextPut(String key) {
+        failedPuts.add(key);
+    }
+
+    synchronized boolean isPutFailurePending(String key) {
+        return failedPuts.contains(key);
+    }
+
+    synchronized Map<String, String> getKeys(String prefix) {
+        return new TreeMap<>(keys.subMap(prefix, prefix + Character.MAX_VALUE));
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String key = exchange.getRequestURI().getPath().substring(KEYS_PATH.length());
+            Map<String, String> parameters = parse(exchange.getRequestURI().getRawQuery());
+            parameters.putAll(parse(read(exchange.getRequestBody())));
+
+            boolean directoryPut = "PUT".equals(exchange.getRequestMethod()) &&
+                    "true".equals(parameters.get("dir")) && !parameters.containsKey("refresh");
+
+            String response;
+            if ("GET".equals(exchange.getRequestMethod()) && "true".equals(parameters.get("wait"))) {
+                response = awaitChange(key, Long.parseLong(parameters.getOrDefault("waitIndex", "0")));
+            } else {
+                synchronized (this) {
+                    response = apply(exchange.getRequestMethod(), key, parameters);
+                }
+            }
+
+            CountDownLatch held = heldDirectoryPut;
+            if (directoryPut && held != null) {
+                directoryPutReceived.countDown();
+                held.await();
+            }
+
+            int status = response.contains("\"errorCode\"") ? 412 : 200;
+            if (response.contains("\"errorCode\":100")) {
+                status = 404;
+            } else if (response.contains("\"errorCode\":300")) {
+                status = 500;
+            }
+            byte[] body = response.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.getResponseHeaders().add("X-Etcd-Index", String.valueOf(index));
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private String apply(String method, String key, Map<String, String> parameters) {
+        boolean exists = keys.containsKey(key);
+
+        switch (method) {
+            case "GET":
+                return exists ? response("get", key, keys.get(key)) : error(100, key);
+            case "PUT":
+                if (failedPuts.remove(key)) {
+                    return error(300, key);
+                }
+                if ("false".equals(parameters.get("prevExist")) && exists) {
+                    return error(105, key);
+                }
+                if (("true".equals(parameters.get("prevExist")) || parameters.containsKey("refresh")) && !exists) {
+                    return error(100, key);
+                }
+                if (parameters.containsKey("prevValue") && !parameters.get("prevValue").equals(keys.get(key))) {
+                    return exists ? error(101, key) : error(100, key);
+                }
+                index++;
+                if (!parameters.containsKey("refresh")) {
+                    keys.put(key, "true".equals(parameters.get("dir")) ? null : parameters.get("value"));
+                    addEvent("set", key, keys.get(key));
+                }
+                return response("set", key, keys.get(key));
+            case "DELETE":
+                if (!exists) {
+                    return error(100, key);
+                }
+                if (parameters.containsKey("prevValue") && !parameters.get("prevValue").equals(keys.get(key))) {
+                    return error(101, key);
+                }
+                keys.subMap(key, key + "/" + Character.MAX_VALUE).clear();
+                keys.remove(key);
+                index++;
+                addEvent("delete", key, null);
+                return response("delete", key, null);
+            default:
+                return error(400, key);
+        }
+    }
+
+    private void addEvent(String action, String key, String value) {
+        events.add(new Event(index, action, key, value));
+        notifyAll();
+    }
+
+    /**
+     * Waits for the first change of the key at or after the index, like a watch with {@code waitIndex}.
+     */
+    private synchronized String awaitChange(String key, long waitIndex) throws InterruptedException {
+        while (!closed) {
+            for (Event event : events) {
+                if (event.index >= waitIndex && event.key.equals(key)) {
+                    return "{\"action\":\"" + event.action + "\",\"node\":{\"key\":\"" + key + "\"," +
+                            (event.value == null ? "" : "\"value\":\"" + event.value + "\",") +
+                            "\"modifiedIndex\":" + event.index + ",\"createdIndex\":" + event.index + "}}";
+                }
+            }
+            wait();
+        }
+
+        return error(300, key);
+    }
+
+    private String response(String action, String key, String value) {
+        return "{\"action\":\"" + action + "\",\"node\":{\"key\":\"" + key + "\"," +
+                (value == null ? "\"dir\":true" : "\"value\":\"" + value + "\"") +
+                ",\"modifiedIndex\":" + index + ",\"createdIndex\":" + index + "}}";
+    }
+
+    private String error(int errorCode, String key) {
+        return "{\"errorCode\":" + errorCode + ",\"message\":\"error\",\"cause\":\"" + key + "\",\"index\":" +
+                index + "}";
+    }
+
+    private static Map<String, String> parse(String encoded) throws IOException {
+        Map<String, String> parameters = new HashMap<>();
+        if (encoded == null || encoded.isEmpty()) {
+            return parameters;
+        }
+
+        for (String parameter : encoded.split("&")) {
+            int separator = parameter.indexOf('=');
+            String name = separator < 0 ? parameter : parameter.substring(0, separator);
+            String value = separator < 0 ? "" : parameter.substring(separator + 1);
+            parameters.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+
+        return parameters;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static final class Event {
+
+        private final long index;
+        private final String action;
+        private final String key;
+        private final String value;
+
+        private Event(long index, String action, String key, String value) {
+            this.index = index;
+            this.action = action;
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
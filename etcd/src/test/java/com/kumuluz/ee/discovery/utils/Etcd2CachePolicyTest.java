@@ -0,0 +1,109 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import com.kumuluz.ee.configuration.utils.ConfigurationUtil;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link Etcd2CachePolicy}.
+ */
+public class Etcd2CachePolicyTest {
+
+    private static final String NEGATIVE_TTL = "kumuluzee.discovery.cache.negative-ttl-ms";
+    private static final String RETRY_DELAY = "kumuluzee.discovery.etcd.fetch-retry-delay-ms";
+
+    @After
+    public void clearConfiguration() {
+        System.clearProperty(NEGATIVE_TTL);
+        System.clearProperty(RETRY_DELAY);
+    }
+
+    @Test
+    public void expiresNegativeEntriesAfterTtl() {
+
+        System.setProperty(NEGATIVE_TTL, "2000");
+        Etcd2CachePolicy cachePolicy = new Etcd2CachePolicy(ConfigurationUtil.getInstance());
+
+        long now = System.nanoTime();
+        long expiry = cachePolicy.getNegativeExpiry();
+
+        assertTrue(expiry - now >= TimeUnit.MILLISECONDS.toNanos(2000));
+        assertTrue(expiry - now < TimeUnit.MILLISECONDS.toNanos(3000));
+        assertTrue(cachePolicy.getErrorExpiry() - now < expiry - now);
+    }
+
+    @Test
+    public void doublesRetryDelay() {
+
+        System.setProperty(RETRY_DELAY, "100");
+        Etcd2CachePolicy cachePolicy = new Etcd2CachePolicy(ConfigurationUtil.getInstance());
+
+        assertEquals(100, cachePolicy.getFetchRetryDelayMs(0));
+        assertEquals(200, cachePolicy.getFetchRetryDelayMs(1));
+        assertEquals(400, cachePolicy.getFetchRetryDelayMs(2));
+        assertEquals(cachePolicy.getFetchRetryDelayMs(16), cachePolicy.getFetchRetryDelayMs(100));
+    }
+
+    @Test
+    public void negativelyCachedInstancesExpire() {
+
+        ServiceKey key = ServiceKey.of("missing-service", "1.0.0", "dev");
+        long now = System.nanoTime();
+        long expiry = now + TimeUnit.SECONDS.toNanos(5);
+
+        Etcd2ServiceRegistry.Snapshot snapshot = new Etcd2ServiceRegistry(null).update(s ->
+                s.withExpiringInstances(key, Collections.emptyMap(), expiry));
+        Etcd2ServiceRegistry.Instances instances = snapshot.getInstances(key);
+
+        assertTrue(snapshot.hasInstances(key));
+        assertTrue(instances.isExpiring());
+        assertEquals(0, instances.size());
+        assertFalse(instances.isExpired(now));
+        assertTrue(instances.isExpired(expiry));
+
+        // a watched fetch replaces the negative entry
+        assertFalse(snapshot.withInstances(key, Collections.emptyMap()).getInstances(key)
+                .isExpired(expiry));
+    }
+
+    @Test
+    public void negativelyCachedVersionsAreNotReportedAsWatched() {
+
+        ServiceKey key = ServiceKey.of("missing-service", "dev");
+        long now = System.nanoTime();
+        long expiry = now + TimeUnit.SECONDS.toNanos(5);
+
+        Etcd2ServiceRegistry.Snapshot snapshot = new Etcd2ServiceRegistry(null).update(s ->
+                s.withExpiringVersions(key, null, expiry));
+
+        assertFalse(snapshot.hasVersions(key));
+        assertFalse(snapshot.getVersionIndex(key).getOptionalVersions().isPresent());
+        assertFalse(snapshot.getVersionIndex(key).isExpired(now));
+        assertTrue(snapshot.getVersionIndex(key).isExpired(expiry));
+    }
+}
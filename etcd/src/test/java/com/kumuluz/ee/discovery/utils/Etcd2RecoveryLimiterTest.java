@@ -0,0 +1,162 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import com.kumuluz.ee.configuration.utils.ConfigurationUtil;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link Etcd2RecoveryLimiter}.
+ */
+public class Etcd2RecoveryLimiterTest {
+
+    private static final String INITIAL_BACKOFF = "kumuluzee.discovery.recovery.initial-backoff-ms";
+    private static final String MAX_BACKOFF = "kumuluzee.discovery.recovery.max-backoff-ms";
+    private static final String RATE = "kumuluzee.discovery.recovery.rate";
+    private static final String BURST = "kumuluzee.discovery.recovery.burst";
+
+    private final RecordingScheduler scheduler = new RecordingScheduler();
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+        System.clearProperty(INITIAL_BACKOFF);
+        System.clearProperty(MAX_BACKOFF);
+        System.clearProperty(RATE);
+        System.clearProperty(BURST);
+    }
+
+    @Test
+    public void delaysRecoveriesWithinExponentialBackoff() {
+
+        System.setProperty(INITIAL_BACKOFF, "100");
+        System.setProperty(MAX_BACKOFF, "400");
+        System.setProperty(RATE, "1000000");
+        System.setProperty(BURST, "10000");
+        Etcd2RecoveryLimiter limiter = new Etcd2RecoveryLimiter(scheduler, ConfigurationUtil.getInstance());
+
+        for (int attempt = 0; attempt < 40; attempt++) {
+            long maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.min(400, 100L << Math.min(attempt, 20)));
+
+            for (int i = 0; i < 100; i++) {
+                limiter.schedule(() -> {
+                }, attempt);
+
+                long delayNanos = scheduler.delays.get(scheduler.delays.size() - 1);
+                assertTrue(delayNanos >= 0);
+                assertTrue(delayNanos < maxDelayNanos);
+            }
+        }
+    }
+
+    @Test
+    public void limitsRateOfRecoveriesAfterBurst() {
+
+        System.setProperty(INITIAL_BACKOFF, "1");
+        System.setProperty(MAX_BACKOFF, "1");
+        System.setProperty(RATE, "10");
+        System.setProperty(BURST, "2");
+        Etcd2RecoveryLimiter limiter = new Etcd2RecoveryLimiter(scheduler, ConfigurationUtil.getInstance());
+
+        for (int i = 0; i < 5; i++) {
+            limiter.schedule(() -> {
+            }, 0);
+        }
+
+        List<Long> delays = scheduler.delays;
+        long oneMs = TimeUnit.MILLISECONDS.toNanos(1);
+
+        // burst is sent after the backoff only
+        assertTrue(delays.get(0) < oneMs);
+        assertTrue(delays.get(1) < oneMs);
+
+        // following recoveries get a token every 100 ms
+        for (int i = 2; i < 5; i++) {
+            long expectedNanos = TimeUnit.MILLISECONDS.toNanos(100 * (i - 1));
+            assertTrue(delays.get(i) > expectedNanos - TimeUnit.MILLISECONDS.toNanos(20));
+            assertTrue(delays.get(i) < expectedNanos + oneMs);
+        }
+    }
+
+    @Test
+    public void countsPendingAndSentRecoveries() throws InterruptedException {
+
+        System.setProperty(INITIAL_BACKOFF, "200");
+        System.setProperty(MAX_BACKOFF, "200");
+        Etcd2RecoveryLimiter limiter = new Etcd2RecoveryLimiter(scheduler, ConfigurationUtil.getInstance());
+
+        CountDownLatch sent = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            limiter.schedule(sent::countDown, 0);
+        }
+        CompletableFuture<Void> acquired = limiter.acquire(0);
+
+        assertEquals(4, limiter.getPendingRecoveries());
+        assertEquals(0, limiter.getRecoveries());
+
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        acquired.join();
+
+        assertEquals(0, limiter.getPendingRecoveries());
+        assertEquals(4, limiter.getRecoveries());
+    }
+
+    @Test
+    public void dropsRecoveriesAfterShutdown() {
+
+        Etcd2RecoveryLimiter limiter = new Etcd2RecoveryLimiter(scheduler, ConfigurationUtil.getInstance());
+        scheduler.shutdown();
+
+        limiter.schedule(() -> fail("Recovery was run after shutdown."), 0);
+
+        assertEquals(0, limiter.getPendingRecoveries());
+        assertEquals(0, limiter.getRecoveries());
+    }
+
+    /**
+     * Scheduler, which records delays of scheduled tasks.
+     */
+    private static final class RecordingScheduler extends ScheduledThreadPoolExecutor {
+
+        private final List<Long> delays = new CopyOnWriteArrayList<>();
+
+        private RecordingScheduler() {
+            super(1);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            delays.add(unit.toNanos(delay));
+            return super.schedule(command, delay, unit);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link Etcd2RegistrySnapshotFile}.
+ */
+public class Etcd2RegistrySnapshotFileTest {
+
+    private static final ServiceKey KEY = ServiceKey.of("snapshot-service", "1.0.0", "dev");
+    private static final ServiceKey VERSIONS_KEY = ServiceKey.of("snapshot-service", "dev");
+
+    private Path directory;
+    private Path path;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("registry-snapshot");
+        path = directory.resolve("snapshot.bin");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void roundTripsInstancesAndVersions() throws Exception {
+
+        Map<String, Etcd2Service> services = new HashMap<>();
+        services.put("a", new Etcd2Service(new URL("http://a:8080"), new URL("http://10.0.0.1:8080"), "cluster-1"));
+        services.put("b", new Etcd2Service(new URL("http://b:8080"), null, null));
+        services.put("c", new Etcd2Service(null, new URL("http://10.0.0.3:8080"), "cluster-1"));
+
+        Etcd2ServiceRegistry.Snapshot snapshot = new Etcd2ServiceRegistry("cluster-1").update(s -> s
+                .withInstances(KEY, services)
+                .withVersions(VERSIONS_KEY, Arrays.asList("1.0.0", "1.1.0")));
+
+        Etcd2RegistrySnapshotFile.write(path, snapshot);
+        Etcd2RegistrySnapshotFile.Contents contents = Etcd2RegistrySnapshotFile.read(path);
+
+        assertEquals(Collections.singletonMap(KEY, services), contents.getInstances());
+        assertNull(contents.getInstances().get(KEY).get("b").getRawContainerUrl());
+        assertEquals(Collections.singletonMap(VERSIONS_KEY, Arrays.asList("1.0.0", "1.1.0")), contents.getVersions());
+
+        Etcd2ServiceRegistry.Snapshot restored = contents.applyTo(new Etcd2ServiceRegistry("cluster-1").getSnapshot());
+        assertEquals(snapshot.getInstances(KEY).getUrls().toString(), restored.getInstances(KEY).getUrls().toString());
+    }
+
+    @Test
+    public void doesNotPersistExpiringEntries() throws Exception {
+
+        Etcd2ServiceRegistry.Snapshot snapshot = new Etcd2ServiceRegistry(null).update(s -> s
+                .withExpiringInstances(KEY, Collections.emptyMap(), System.nanoTime())
+                .withExpiringVersions(VERSIONS_KEY, null, System.nanoTime()));
+
+        Etcd2RegistrySnapshotFile.write(path, snapshot);
+        Etcd2RegistrySnapshotFile.Contents contents = Etcd2RegistrySnapshotFile.read(path);
+
+        assertTrue(contents.getInstances().isEmpty());
+        assertTrue(contents.getVersions().isEmpty());
+    }
+
+    @Test
+    public void replacesExistingFile() throws Exception {
+
+        Etcd2ServiceRegistry registry = new Etcd2ServiceRegistry(null);
+        Etcd2RegistrySnapshotFile.write(path, registry.getSnapshot());
+        Etcd2RegistrySnapshotFile.read(path);
+
+        Etcd2RegistrySnapshotFile.write(path, registry.update(s -> s.withVersions(VERSIONS_KEY,
+                Collections.singletonList("2.0.0"))));
+
+        assertEquals(Collections.singletonList("2.0.0"),
+                Etcd2RegistrySnapshotFile.read(path).getVersions().get(VERSIONS_KEY));
+    }
+
+    @Test
+    public void returnsNullWithoutFile() throws Exception {
+        assertNull(Etcd2RegistrySnapshotFile.read(path));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws Exception {
+
+        try (OutputStream out = Files.newOutputStream(path)) {
+            out.write("not a snapshot".getBytes("UTF-8"));
+        }
+
+        Etcd2RegistrySnapshotFile.read(path);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedFiles() throws Exception {
+
+        Etcd2RegistrySnapshotFile.write(path, new Etcd2ServiceRegistry(null).update(s -> s.withVersions(VERSIONS_KEY,
+                Collections.singletonList("1.0.0"))));
+        byte[] bytes = Files.readAllBytes(path);
+        Files.write(path, Arrays.copyOf(bytes, bytes.length - 3));
+
+        Etcd2RegistrySnapshotFile.read(path);
+    }
+}
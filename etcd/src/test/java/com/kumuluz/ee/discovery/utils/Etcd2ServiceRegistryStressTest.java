@@ -0,0 +1,163 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Concurrency stress test of {@link Etcd2ServiceRegistry}: readers look up instances while writers apply updates in
+ * the same way watch events do.
+ */
+public class Etcd2ServiceRegistryStressTest {
+
+    private static final int WRITERS = 4;
+    private static final int READERS = 8;
+    private static final int UPDATES_PER_WRITER = 1000;
+
+    private static final ServiceKey KEY = ServiceKey.of("stress-service", "1.0.0", "dev");
+
+    @Test(timeout = 60000)
+    public void readersSeeConsistentSnapshotsWhileWatchEventsAreApplied() throws Exception {
+
+        Etcd2ServiceRegistry registry = new Etcd2ServiceRegistry("cluster-1");
+        registry.update(snapshot -> snapshot.withInstances(KEY, Collections.emptyMap()));
+
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS + READERS);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicReference<String> readerFailure = new AtomicReference<>();
+
+        List<Future<?>> writers = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            int writer = w;
+            writers.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < UPDATES_PER_WRITER; i++) {
+                    String instanceKey = instanceKey(writer, i);
+                    Etcd2Service service = new Etcd2Service(new URL("http://" + instanceKey + ":8080"),
+                            new URL("http://10.0.0.1:" + (10000 + i)), (i % 2 == 0) ? "cluster-1" : "cluster-2");
+
+                    // url, then containerUrl/clusterId events, as published by a registrator
+                    registry.update(snapshot -> snapshot.withInstance(KEY, instanceKey,
+                            new Etcd2Service(service.getBaseUrl(), null, null)));
+                    registry.update(snapshot -> snapshot.withInstance(KEY, instanceKey, service));
+
+                    if (i % 10 != 0) {
+                        // expire event
+                        registry.update(snapshot -> snapshot.withoutInstance(KEY, instanceKey));
+                    }
+                }
+                return null;
+            }));
+        }
+
+        List<Future<Long>> readers = new ArrayList<>();
+        for (int r = 0; r < READERS; r++) {
+            readers.add(executor.submit(() -> {
+                start.await();
+                long lookups = 0;
+                while (writing.get() || lookups == 0) {
+                    Etcd2ServiceRegistry.Instances instances = registry.getSnapshot().getInstances(KEY);
+                    String failure = checkConsistent(instances);
+                    if (failure != null) {
+                        readerFailure.compareAndSet(null, failure);
+                        break;
+                    }
+
+                    if (instances.size() > 0) {
+                        int index = (int) (lookups % instances.size());
+                        assertTrue(instances.getUrl(index).isPresent());
+                        assertTrue(instances.getRing().getIndex("request-" + lookups) >= 0);
+                    }
+                    lookups++;
+                }
+                return lookups;
+            }));
+        }
+
+        start.countDown();
+        for (Future<?> writer : writers) {
+            writer.get();
+        }
+        writing.set(false);
+
+        long lookups = 0;
+        for (Future<Long> reader : readers) {
+            lookups += reader.get();
+        }
+        executor.shutdown();
+
+        assertNull(readerFailure.get(), readerFailure.get());
+        assertTrue(lookups > 0);
+
+        // no update may be lost
+        Etcd2ServiceRegistry.Instances instances = registry.getSnapshot().getInstances(KEY);
+        Set<String> expected = new HashSet<>();
+        for (int w = 0; w < WRITERS; w++) {
+            for (int i = 0; i < UPDATES_PER_WRITER; i += 10) {
+                expected.add(instanceKey(w, i));
+            }
+        }
+        assertEquals(expected, instances.getServices().keySet());
+        assertEquals(expected.size(), instances.size());
+        assertNull(checkConsistent(instances));
+
+        for (Map.Entry<String, Etcd2Service> entry : instances.getServices().entrySet()) {
+            URL resolved = "cluster-1".equals(entry.getValue().getClusterId()) ?
+                    entry.getValue().getContainerUrl() : entry.getValue().getBaseUrl();
+            assertTrue(instances.getUrls().contains(resolved));
+        }
+    }
+
+    private static String checkConsistent(Etcd2ServiceRegistry.Instances instances) {
+
+        if (instances == null) {
+            return "instances missing from snapshot";
+        }
+
+        List<URL> urls = instances.getUrls();
+        if (urls.size() != instances.size()) {
+            return "urls: " + urls.size() + ", size: " + instances.size();
+        }
+        if (urls.size() > instances.getServices().size()) {
+            return "more urls than instances";
+        }
+        for (int i = 0; i < urls.size(); i++) {
+            if (!urls.get(i).toString().equals(instances.getUrl(i).get().toString())) {
+                return "url array differs from url list at " + i;
+            }
+        }
+
+        return null;
+    }
+
+    private static String instanceKey(int writer, int update) {
+        return "instance-" + writer + "-" + update;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import org.junit.Test;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link Etcd2ServiceRegistry}.
+ */
+public class Etcd2ServiceRegistryTest {
+
+    private static final ServiceKey KEY = ServiceKey.of("test-service", "1.0.0", "dev");
+
+    @Test
+    public void resolvesContainerUrlsOfInstancesInTheSameCluster() {
+
+        Map<String, Etcd2Service> services = new HashMap<>();
+        services.put("a", service("http://a:8080", "http://10.0.0.1:8080", "cluster-1"));
+        services.put("b", service("http://b:8080", "http://10.0.0.2:8080", "cluster-2"));
+        services.put("c", service("http://c:8080", null, "cluster-1"));
+
+        Etcd2ServiceRegistry.Instances instances = new Etcd2ServiceRegistry("cluster-1").update(snapshot ->
+                snapshot.withInstances(KEY, services)).getInstances(KEY);
+
+        assertEquals(3, instances.size());
+        assertEquals(new HashSet<>(Arrays.asList("http://10.0.0.1:8080", "http://b:8080", "http://c:8080")),
+                urlStrings(instances));
+    }
+
+    @Test
+    public void resolvesBaseUrlsWithoutClusterId() {
+
+        Map<String, Etcd2Service> services = new HashMap<>();
+        services.put("a", service("http://a:8080", "http://10.0.0.1:8080", "cluster-1"));
+
+        Etcd2ServiceRegistry.Instances instances = new Etcd2ServiceRegistry(null).update(snapshot ->
+                snapshot.withInstances(KEY, services)).getInstances(KEY);
+
+        assertEquals(new HashSet<>(Arrays.asList("http://a:8080")), urlStrings(instances));
+    }
+
+    @Test
+    public void skipsInstancesWithoutUrl() {
+
+        Map<String, Etcd2Service> services = new HashMap<>();
+        services.put("a", service("http://a:8080", null, null));
+        services.put("b", service(null, "http://10.0.0.2:8080", "cluster-1"));
+
+        Etcd2ServiceRegistry.Instances instances = new Etcd2ServiceRegistry("cluster-1").update(snapshot ->
+                snapshot.withInstances(KEY, services)).getInstances(KEY);
+
+        assertEquals(2, instances.getServices().size());
+        assertEquals(1, instances.size());
+        assertEquals("http://a:8080", instances.getUrl(0).get().toString());
+        assertSame(instances.getUrls(), instances.getOptionalUrls().get());
+    }
+
+    @Test
+    public void isEmptyUntilUrlOfAnInstanceIsWritten() {
+
+        Etcd2ServiceRegistry registry = new Etcd2ServiceRegistry("cluster-1");
+        registry.update(snapshot -> snapshot.withInstance(KEY, "a",
+                service(null, "http://10.0.0.1:8080", "cluster-1")));
+
+        assertTrue(registry.getSnapshot().getInstances(KEY).isEmpty());
+
+        registry.update(snapshot -> snapshot.withInstance(KEY, "a",
+                service("http://a:8080", "http://10.0.0.1:8080", "cluster-1")));
+
+        assertFalse(registry.getSnapshot().getInstances(KEY).isEmpty());
+    }
+
+    @Test
+    public void keepsUnchangedInstancesOnUpdatesOfOtherServices() {
+
+        ServiceKey otherKey = ServiceKey.of("other-service", "1.0.0", "dev");
+
+        Etcd2ServiceRegistry registry = new Etcd2ServiceRegistry(null);
+        Etcd2ServiceRegistry.Instances instances = registry.update(snapshot -> snapshot.withInstance(KEY, "a",
+                service("http://a:8080", null, null))).getInstances(KEY);
+        registry.update(snapshot -> snapshot.withInstance(otherKey, "b",
+                service("http://b:8080", null, null)));
+
+        assertSame(instances, registry.getSnapshot().getInstances(KEY));
+        assertNull(registry.getSnapshot().getInstances(ServiceKey.of("missing", "1.0.0", "dev")));
+    }
+
+    @Test
+    public void removesInstances() {
+
+        Etcd2ServiceRegistry registry = new Etcd2ServiceRegistry(null);
+        registry.update(snapshot -> snapshot.withInstance(KEY, "a",
+                service("http://a:8080", null, null)));
+        Etcd2ServiceRegistry.Snapshot snapshot = registry.getSnapshot();
+
+        assertSame(snapshot, snapshot.withoutInstance(KEY, "missing"));
+        assertEquals(0, snapshot.withoutInstance(KEY, "a").getInstances(KEY).size());
+    }
+
+    private static Etcd2Service service(String baseUrl, String containerUrl, String clusterId) {
+        try {
+            return new Etcd2Service((baseUrl == null) ? null : new URL(baseUrl),
+                    (containerUrl == null) ? null : new URL(containerUrl), clusterId);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static Set<String> urlStrings(Etcd2ServiceRegistry.Instances instances) {
+
+        Set<String> urls = new HashSet<>();
+        for (int i = 0; i < instances.size(); i++) {
+            urls.add(instances.getUrl(i).get().toString());
+        }
+
+        return urls;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import com.kumuluz.ee.configuration.utils.ConfigurationUtil;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link Etcd2WatchEventQueue}.
+ */
+public class Etcd2WatchEventQueueTest {
+
+    private static final String THREADS = "kumuluzee.discovery.watch.threads";
+    private static final String BATCH_WINDOW = "kumuluzee.discovery.watch.batch-window-ms";
+
+    private Etcd2WatchEventQueue<String> queue;
+
+    @After
+    public void shutdown() {
+        System.clearProperty(THREADS);
+        System.clearProperty(BATCH_WINDOW);
+
+        if (queue != null) {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void publishesEventsOfTheWindowAsOneBatch() throws Exception {
+
+        System.setProperty(BATCH_WINDOW, "50");
+
+        List<List<String>> batches = new CopyOnWriteArrayList<>();
+        CountDownLatch published = new CountDownLatch(1);
+        queue = new Etcd2WatchEventQueue<>(ConfigurationUtil.getInstance(), batch -> {
+            batches.add(batch);
+            published.countDown();
+        });
+
+        for (int i = 0; i < 3; i++) {
+            String event = "event-" + i;
+            queue.execute("/key", () -> queue.add(event));
+        }
+
+        assertTrue(published.await(5, TimeUnit.SECONDS));
+        assertEquals(1, batches.size());
+        assertEquals(3, batches.get(0).size());
+    }
+
+    @Test
+    public void keepsOrderOfEventsOfEachKeyOnMoreThreads() throws Exception {
+
+        System.setProperty(THREADS, "4");
+        System.setProperty(BATCH_WINDOW, "0");
+
+        int keys = 16;
+        int eventsPerKey = 500;
+
+        Map<String, List<Integer>> received = new ConcurrentHashMap<>();
+        Map<String, Thread> threads = new ConcurrentHashMap<>();
+        CountDownLatch published = new CountDownLatch(keys * eventsPerKey);
+        queue = new Etcd2WatchEventQueue<>(ConfigurationUtil.getInstance(), batch -> {
+            for (String event : batch) {
+                String key = event.substring(0, event.indexOf('#'));
+                assertSame(threads.computeIfAbsent(key, k -> Thread.currentThread()), Thread.currentThread());
+                received.computeIfAbsent(key, k -> new ArrayList<>())
+                        .add(Integer.parseInt(event.substring(event.indexOf('#') + 1)));
+                published.countDown();
+            }
+        });
+
+        for (int i = 0; i < eventsPerKey; i++) {
+            for (int k = 0; k < keys; k++) {
+                String key = "/key-" + k;
+                String event = key + "#" + i;
+                queue.execute(key, () -> queue.add(event));
+            }
+        }
+
+        assertTrue(published.await(10, TimeUnit.SECONDS));
+        for (List<Integer> events : received.values()) {
+            for (int i = 0; i < eventsPerKey; i++) {
+                assertEquals(i, (int) events.get(i));
+            }
+        }
+        assertTrue(threads.values().stream().distinct().count() > 1);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsEventsFromOtherThreads() {
+
+        queue = new Etcd2WatchEventQueue<>(ConfigurationUtil.getInstance(), batch -> {
+        });
+
+        queue.add("event");
+    }
+}
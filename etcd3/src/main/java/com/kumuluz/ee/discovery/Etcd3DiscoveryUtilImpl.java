@@ -0,0 +1,696 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery;
+
+import com.coreos.jetcd.Client;
+import com.coreos.jetcd.ClientBuilder;
+import com.coreos.jetcd.Watch;
+import com.coreos.jetcd.common.exception.CompactedException;
+import com.coreos.jetcd.data.ByteSequence;
+import com.coreos.jetcd.data.KeyValue;
+import com.coreos.jetcd.kv.GetResponse;
+import com.coreos.jetcd.options.GetOption;
+import com.coreos.jetcd.options.PutOption;
+import com.coreos.jetcd.options.WatchOption;
+import com.coreos.jetcd.watch.WatchEvent;
+import com.coreos.jetcd.watch.WatchResponse;
+import com.kumuluz.ee.configuration.utils.ConfigurationUtil;
+import com.kumuluz.ee.discovery.loadbalancing.LoadBalancer;
+import com.kumuluz.ee.discovery.loadbalancing.LoadBalancers;
+import com.kumuluz.ee.discovery.utils.*;
+import com.vdurmont.semver4j.Requirement;
+import com.vdurmont.semver4j.Semver;
+import com.vdurmont.semver4j.SemverException;
+import io.netty.handler.ssl.SslContextBuilder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.net.ssl.SSLException;
+import java.io.ByteArrayInputStream;
+import java.net.*;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * Service discovery, based on etcd v3 API. Services are registered with a single shared lease. Discovered services are
+ * cached and kept up to date with a single watch per environment; jetcd multiplexes all watches over one HTTP/2
+ * connection.
+ */
+@ApplicationScoped
+public class Etcd3DiscoveryUtilImpl implements DiscoveryUtil {
+
+    private static final Logger log = Logger.getLogger(Etcd3DiscoveryUtilImpl.class.getName());
+
+    private static final long WATCH_RETRY_DELAY_S = 5;
+
+    private final ConfigurationUtil configurationUtil = ConfigurationUtil.getInstance();
+
+    private Client etcd;
+    private Etcd3Registrator registrator;
+
+    private String clusterId;
+
+    private LoadBalancer defaultLoadBalancer;
+
+    private final ConcurrentMap<String, Optional<Requirement>> versionRequirements = new ConcurrentHashMap<>();
+
+    // keyed by keys of all versions of services
+    private final ConcurrentMap<ServiceKey, Etcd3Service> services = new ConcurrentHashMap<>();
+    private final ConcurrentMap<ServiceKey, CompletableFuture<Etcd3Service>> serviceFetches =
+            new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, EnvironmentWatch> environmentWatches = new ConcurrentHashMap<>();
+    private final ExecutorService watchExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "kumuluzee-discovery-etcd3-watch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile boolean closed;
+
+    @PostConstruct
+    public void init() {
+
+        this.defaultLoadBalancer = LoadBalancers.get(configurationUtil.get("kumuluzee.discovery.load-balancer")
+                .orElse(null));
+        this.clusterId = configurationUtil.get("kumuluzee.discovery.cluster").orElse(null);
+
+        String etcdUrls = configurationUtil.get("kumuluzee.discovery.etcd.hosts").orElse(null);
+        if (etcdUrls == null || etcdUrls.isEmpty()) {
+            log.severe("No etcd server hosts provided. Specify hosts with configuration key" +
+                    "kumuluzee.discovery.etcd.hosts in format " +
+                    "http://192.168.99.100:2379,http://192.168.99.101:2379,http://192.168.99.102:2379");
+            return;
+        }
+
+        String[] etcdHosts = etcdUrls.split(",");
+        if (etcdHosts.length % 2 == 0) {
+            log.warning("Using an odd number of etcd hosts is recommended. See etcd documentation.");
+        }
+
+        ClientBuilder clientBuilder = Client.builder().endpoints(etcdHosts);
+
+        // get user credentials
+        String etcdUsername = configurationUtil.get("kumuluzee.discovery.etcd.username").orElse(null);
+        String etcdPassword = configurationUtil.get("kumuluzee.discovery.etcd.password").orElse(null);
+        if (etcdUsername != null && !etcdUsername.isEmpty() && etcdPassword != null && !etcdPassword.isEmpty()) {
+            clientBuilder.user(Etcd3Utils.toByteSequence(etcdUsername))
+                    .password(Etcd3Utils.toByteSequence(etcdPassword));
+        }
+
+        // get CA certificate
+        String cert = configurationUtil.get("kumuluzee.discovery.etcd.ca").orElse(null);
+        if (cert != null) {
+
+            cert = cert.replaceAll("\\s+", "").replace("-----BEGINCERTIFICATE-----", "")
+                    .replace("-----ENDCERTIFICATE-----", "");
+
+            byte[] decoded = Base64.getDecoder().decode(cert);
+
+            try {
+                X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509")
+                        .generateCertificate(new ByteArrayInputStream(decoded));
+
+                clientBuilder.sslContext(SslContextBuilder.forClient().trustManager(certificate).build());
+
+            } catch (CertificateException e) {
+                log.severe("Certificate exception: " + e.toString());
+            } catch (SSLException e) {
+                log.severe("SSL exception: " + e.toString());
+            }
+        }
+
+        this.etcd = clientBuilder.build();
+        this.registrator = new Etcd3Registrator(this.etcd, configurationUtil
+                .getLong("kumuluzee.discovery.etcd.start-retry-delay-ms").orElse(500L));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        this.closed = true;
+        this.watchExecutor.shutdownNow();
+
+        if (this.etcd != null) {
+            this.registrator.deregister();
+            this.etcd.close();
+        }
+    }
+
+    @Override
+    public void register(String serviceName, String version, String environment, long ttl,
+                         long pingInterval, boolean singleton) {
+
+        // get service URL
+        String baseUrl = configurationUtil.get("kumuluzee.base-url").orElse(null);
+        if(baseUrl != null) {
+            try {
+                baseUrl = new URL(baseUrl).toString();
+            } catch (MalformedURLException e) {
+                log.severe("Cannot parse kumuluzee.base-url. Exception: " + e.toString());
+                baseUrl = null;
+            }
+        }
+        if(baseUrl == null) {
+            baseUrl = configurationUtil.get("kumuluzee.baseurl").orElse(null);
+            if(baseUrl != null) {
+                try {
+                    baseUrl = new URL(baseUrl).toString();
+                } catch (MalformedURLException e) {
+                    log.severe("Cannot parse kumuluzee.baseurl. Exception: " + e.toString());
+                    baseUrl = null;
+                }
+            }
+        }
+        String containerUrl = configurationUtil.get("kumuluzee.containerurl").orElse(null);
+        if(containerUrl != null) {
+            try {
+                containerUrl = new URL(containerUrl).toString();
+            } catch (MalformedURLException e) {
+                log.severe("Cannot parse kumuluzee.containerurl. Exception: " + e.toString());
+                containerUrl = null;
+            }
+        }
+        if (this.clusterId != null || baseUrl == null || baseUrl.isEmpty()) {
+            // try to find my ip address
+            List<InetAddress> interfaceAddresses = new ArrayList<>();
+            try {
+                Enumeration<NetworkInterface> niEnum = NetworkInterface.getNetworkInterfaces();
+                while(niEnum.hasMoreElements()) {
+                    NetworkInterface ni = niEnum.nextElement();
+                    Enumeration<InetAddress> inetEnum = ni.getInetAddresses();
+                    while(inetEnum.hasMoreElements()) {
+                        interfaceAddresses.add(inetEnum.nextElement());
+                    }
+                }
+            } catch (SocketException e) {
+                e.printStackTrace();
+            }
+            interfaceAddresses.sort(new HostAddressComparator());
+            URL ipUrl = null;
+            String servicePort = configurationUtil.get("port").orElse("8080");
+            for(int i = 0; i < interfaceAddresses.size() && ipUrl == null; i++) {
+                InetAddress addr = interfaceAddresses.get(i);
+                try {
+                    if (addr instanceof Inet4Address) {
+                        ipUrl = new URL("http://" + addr.getHostAddress() + ":" + servicePort);
+                    } else {
+                        ipUrl = new URL("http://[" + addr.getHostAddress().split("%")[0] + "]:" + servicePort);
+                    }
+                } catch (MalformedURLException e) {
+                    log.severe("Cannot parse URL. Exception: " + e.toString());
+                }
+            }
+            if(this.clusterId != null) {
+                if(containerUrl == null && ipUrl != null) {
+                    containerUrl = ipUrl.toString();
+                } else if(containerUrl == null) {
+                    log.severe("No container URL found, but running in container. All services will use service" +
+                            "URL. You can set container URL with configuration key kumuluzee.containerurl");
+                }
+            }
+            if(baseUrl == null || baseUrl.isEmpty()) {
+                if (ipUrl != null) {
+                    log.warning("No service URL provided, using ULR " + ipUrl.toString() +
+                            ". You should probably set service URL with configuration key kumuluzee.base-url or " +
+                            "kumuluzee.baseurl");
+                    baseUrl = ipUrl.toString();
+                } else {
+                    log.severe("No service URL provided or found." +
+                            "Set service URL with configuration key kumuluzee.base-url or kumuluzee.baseurl");
+                    return;
+                }
+            }
+        }
+
+        if (this.etcd == null) {
+            log.severe("etcd not initialised.");
+            return;
+        }
+
+        // keep-alive interval of the shared lease is managed by jetcd, ping interval is not used
+        this.registrator.register(new Etcd3ServiceConfiguration(serviceName, version, environment, ttl, singleton,
+                baseUrl, containerUrl, this.clusterId));
+
+    }
+
+    @Override
+    public void deregister() {
+
+        if (this.etcd != null) {
+            this.registrator.deregister();
+        }
+    }
+
+    @Override
+    public Optional<List<URL>> getServiceInstances(String serviceName, String version, String environment) {
+
+        Etcd3Service service = getService(ServiceKey.of(serviceName, environment));
+
+        return Optional.of(service.getUrls(resolveVersion(service, version)));
+    }
+
+    @Override
+    public CompletionStage<Optional<List<URL>>> getServiceInstancesAsync(String serviceName, String version,
+                                                                         String environment) {
+
+        return getServiceAsync(ServiceKey.of(serviceName, environment))
+                .thenApply(service -> Optional.of(service.getUrls(resolveVersion(service, version))));
+    }
+
+    @Override
+    public Optional<URL> getServiceInstance(String serviceName, String version, String environment) {
+
+        ServiceKey versionsKey = ServiceKey.of(serviceName, environment);
+        Etcd3Service service = getService(versionsKey);
+        ServiceKey serviceKey = ServiceKey.of(serviceName, resolveVersion(service, version), environment);
+
+        return selectInstance(serviceKey, service, this.defaultLoadBalancer);
+    }
+
+    @Override
+    public CompletionStage<Optional<URL>> getServiceInstanceAsync(String serviceName, String version,
+                                                                  String environment) {
+
+        return getServiceAsync(ServiceKey.of(serviceName, environment)).thenApply(service -> {
+            ServiceKey serviceKey = ServiceKey.of(serviceName, resolveVersion(service, version), environment);
+
+            return selectInstance(serviceKey, service, this.defaultLoadBalancer);
+        });
+    }
+
+    @Override
+    public Optional<URL> getServiceInstance(String serviceName, String version, String environment,
+                                            LoadBalancer loadBalancer) {
+
+        Etcd3Service service = getService(ServiceKey.of(serviceName, environment));
+        ServiceKey serviceKey = ServiceKey.of(serviceName, resolveVersion(service, version), environment);
+
+        return selectInstance(serviceKey, service, loadBalancer);
+    }
+
+    @Override
+    public Optional<URL> getServiceInstanceByKey(String serviceName, String version, String environment,
+                                                 String hashKey) {
+
+        if (hashKey == null) {
+            return getServiceInstance(serviceName, version, environment);
+        }
+
+        Etcd3Service service = getService(ServiceKey.of(serviceName, environment));
+        String resolvedVersion = resolveVersion(service, version);
+        List<URL> urls = service.getUrls(resolvedVersion);
+
+        if (!urls.isEmpty()) {
+            return Optional.of(urls.get(service.getRing(resolvedVersion).getIndex(hashKey)));
+        }
+
+        return Optional.empty();
+    }
+
+    private Optional<URL> selectInstance(ServiceKey serviceKey, Etcd3Service service, LoadBalancer loadBalancer) {
+
+        List<URL> urls = service.getUrls(serviceKey.getVersion());
+
+        if (!urls.isEmpty()) {
+            return Optional.of(urls.get(loadBalancer.select(serviceKey, urls)));
+        }
+
+        return Optional.empty();
+    }
+
+    @Override
+    public void releaseServiceInstance(String serviceName, String version, String environment, URL url) {
+
+        releaseServiceInstance(serviceName, version, environment, url, this.defaultLoadBalancer);
+    }
+
+    @Override
+    public void releaseServiceInstance(String serviceName, String version, String environment, URL url,
+                                       long latency, TimeUnit unit, boolean success) {
+
+        releaseServiceInstance(serviceName, version, environment, url, this.defaultLoadBalancer, latency, unit,
+                success);
+    }
+
+    @Override
+    public void releaseServiceInstance(String serviceName, String version, String environment, URL url,
+                                       LoadBalancer loadBalancer) {
+
+        loadBalancer.release(getServiceKey(serviceName, version, environment), url);
+    }
+
+    @Override
+    public void releaseServiceInstance(String serviceName, String version, String environment, URL url,
+                                       LoadBalancer loadBalancer, long latency, TimeUnit unit, boolean success) {
+
+        loadBalancer.release(getServiceKey(serviceName, version, environment), url, unit.toNanos(latency),
+                success);
+    }
+
+    @Override
+    public Optional<List<String>> getServiceVersions(String serviceName, String environment) {
+
+        return Optional.of(getService(ServiceKey.of(serviceName, environment)).getVersions());
+    }
+
+    @Override
+    public CompletionStage<Optional<List<String>>> getServiceVersionsAsync(String serviceName, String environment) {
+
+        return getServiceAsync(ServiceKey.of(serviceName, environment))
+                .thenApply(service -> Optional.of(service.getVersions()));
+    }
+
+    @Override
+    public void disableServiceInstance(String serviceName, String version, String environment, URL url) {
+
+        Etcd3Service service = getService(ServiceKey.of(serviceName, environment));
+        String instanceKey = service.getInstanceKey(version, url);
+
+        if (instanceKey != null) {
+            log.info("Disabling service instance: " + instanceKey);
+
+            // status is attached to the lease of the instance, so it is removed together with the instance
+            this.etcd.getKVClient().put(Etcd3Utils.toByteSequence(instanceKey + "/status"),
+                    Etcd3Utils.toByteSequence("disabled"), PutOption.newBuilder()
+                            .withLeaseId(service.getInstanceLease(instanceKey)).build())
+                    .whenComplete((putResponse, t) -> {
+                        if (t != null) {
+                            log.severe("Cannot disable service instance " + instanceKey + ": " + t);
+                        }
+                    });
+        }
+    }
+
+    private ServiceKey getServiceKey(String serviceName, String version, String environment) {
+
+        Etcd3Service service = this.services.get(ServiceKey.of(serviceName, environment));
+
+        return ServiceKey.of(serviceName, (service == null) ? version : resolveVersion(service, version),
+                environment);
+    }
+
+    /**
+     * Resolves version range to the latest version of the service, which satisfies it.
+     */
+    private String resolveVersion(Etcd3Service service, String version) {
+
+        Optional<Requirement> versionRequirement = getVersionRequirement(version);
+
+        if (versionRequirement.isPresent()) {
+            return service.resolve(versionRequirement.get()).orElse(version);
+        }
+
+        return version;
+    }
+
+    /**
+     * Returns compiled NPM range for the given version, or empty if version is not a range. Results are cached.
+     */
+    private Optional<Requirement> getVersionRequirement(String version) {
+
+        Optional<Requirement> versionRequirement = this.versionRequirements.get(version);
+
+        if (versionRequirement == null) {
+            versionRequirement = compileVersionRequirement(version);
+            this.versionRequirements.putIfAbsent(version, versionRequirement);
+        }
+
+        return versionRequirement;
+    }
+
+    private Optional<Requirement> compileVersionRequirement(String version) {
+
+        Requirement versionRequirement;
+        try {
+            versionRequirement = Requirement.buildNPM(version);
+        } catch (SemverException se) {
+            return Optional.empty();
+        }
+
+        if (!version.contains("*") && !version.contains("x")) {
+            try {
+                new Semver(version, Semver.SemverType.NPM);
+                return Optional.empty();
+            } catch (SemverException ignored) {
+            }
+        }
+
+        return Optional.of(versionRequirement);
+    }
+
+    private Etcd3Service getService(ServiceKey versionsKey) {
+
+        Etcd3Service service = this.services.get(versionsKey);
+
+        return (service != null) ? service : getServiceAsync(versionsKey).join();
+    }
+
+    /**
+     * Returns cached service, or reads it from etcd on a cache miss. Concurrent misses of the same service share a
+     * single read. If the read fails, an empty service is returned and not cached.
+     */
+    private CompletableFuture<Etcd3Service> getServiceAsync(ServiceKey versionsKey) {
+
+        Etcd3Service service = this.services.get(versionsKey);
+        if (service != null) {
+            return CompletableFuture.completedFuture(service);
+        }
+
+        if (this.etcd == null) {
+            log.severe("etcd not initialised.");
+            return CompletableFuture.completedFuture(Etcd3Service.empty());
+        }
+
+        CompletableFuture<Etcd3Service> created = new CompletableFuture<>();
+        CompletableFuture<Etcd3Service> existing = this.serviceFetches.putIfAbsent(versionsKey, created);
+        if (existing != null) {
+            return existing;
+        }
+
+        ByteSequence prefix = Etcd3Utils.toByteSequence(Etcd3Utils.getServiceKey(versionsKey.getEnvironment(),
+                versionsKey.getServiceName()));
+
+        this.etcd.getKVClient().get(prefix, GetOption.newBuilder().withPrefix(prefix).build())
+                .whenComplete((getResponse, t) -> {
+                    Etcd3Service fetched;
+                    if (t != null) {
+                        log.severe("Cannot read service " + versionsKey + ": " + t);
+                        fetched = Etcd3Service.empty();
+                    } else {
+                        fetched = cacheService(versionsKey, getResponse);
+                    }
+
+                    this.serviceFetches.remove(versionsKey, created);
+                    created.complete(fetched);
+                });
+
+        return created;
+    }
+
+    /**
+     * Caches the read service. The watch skips changes of services, which are not cached, so if it already applied
+     * changes after the revision of the read, the read is returned without caching it and the service is read again
+     * on the next lookup.
+     */
+    private Etcd3Service cacheService(ServiceKey versionsKey, GetResponse getResponse) {
+
+        long revision = getResponse.getHeader().getRevision();
+        Etcd3Service fetched = Etcd3Service.of(getResponse.getKvs(), revision, this.clusterId);
+
+        EnvironmentWatch environmentWatch = watchEnvironment(versionsKey.getEnvironment(), revision + 1);
+
+        synchronized (environmentWatch) {
+            if (environmentWatch.revision > revision + 1 && !this.services.containsKey(versionsKey)) {
+                log.fine("Watch of environment " + versionsKey.getEnvironment() + " passed revision " + revision +
+                        " of service " + versionsKey + ", not caching the read.");
+                return fetched;
+            }
+
+            // keep the newer state, if the service was already updated by the watch
+            return this.services.merge(versionsKey, fetched,
+                    (current, candidate) -> (current.getRevision() >= candidate.getRevision()) ? current : candidate);
+        }
+    }
+
+    /**
+     * Starts the watch of the environment, if it is not running yet.
+     *
+     * @param revision revision, from which changes are watched
+     * @return watch of the environment
+     */
+    private EnvironmentWatch watchEnvironment(String environment, long revision) {
+
+        EnvironmentWatch created = new EnvironmentWatch(revision);
+        EnvironmentWatch environmentWatch = this.environmentWatches.putIfAbsent(environment, created);
+        if (environmentWatch != null) {
+            return environmentWatch;
+        }
+
+        this.watchExecutor.execute(() -> runEnvironmentWatch(environment, created, revision));
+
+        return created;
+    }
+
+    /**
+     * Watches all services in the environment and applies the changes to cached services. Events of services, which
+     * were not looked up, are ignored. If the watch fails, the cached services are read again and the watch is resumed
+     * from the revision of the read. A compacted revision is resynchronised at once, other failures after a delay.
+     */
+    private void runEnvironmentWatch(String environment, EnvironmentWatch environmentWatch, long revision) {
+
+        ByteSequence prefix = Etcd3Utils.toByteSequence(Etcd3Utils.getEnvironmentServicesKey(environment));
+        long nextRevision = revision;
+
+        while (!this.closed) {
+
+            log.info("Initialising watch for environment: " + environment);
+
+            Watch.Watcher watcher = this.etcd.getWatchClient().watch(prefix, WatchOption.newBuilder()
+                    .withPrefix(prefix).withRevision(nextRevision).build());
+            boolean compacted = false;
+            try {
+                while (!this.closed) {
+                    WatchResponse watchResponse = watcher.listen();
+                    nextRevision = Math.max(nextRevision, applyWatchEvents(environment, environmentWatch,
+                            watchResponse.getEvents()));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (CompactedException e) {
+                log.warning("Revision " + nextRevision + " of environment " + environment + " was compacted, " +
+                        "resynchronising.");
+                compacted = true;
+            } catch (RuntimeException e) {
+                if (this.closed) {
+                    return;
+                }
+                log.warning("Watch of environment " + environment + " failed, resynchronising: " + e);
+            } finally {
+                watcher.close();
+            }
+
+            try {
+                if (!compacted) {
+                    TimeUnit.SECONDS.sleep(WATCH_RETRY_DELAY_S);
+                }
+                nextRevision = resyncEnvironment(environment, environmentWatch, prefix, nextRevision);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Applies events of a single watch response, with a single update of each affected service.
+     *
+     * @return revision, from which the watch continues
+     */
+    private long applyWatchEvents(String environment, EnvironmentWatch environmentWatch, List<WatchEvent> events) {
+
+        long nextRevision = 0;
+        Map<ServiceKey, List<WatchEvent>> serviceEvents = new HashMap<>();
+        for (WatchEvent event : events) {
+            KeyValue keyValue = event.getKeyValue();
+            nextRevision = Math.max(nextRevision, keyValue.getModRevision() + 1);
+
+            // /environments/{env}/services/{name}/...
+            String[] layers = keyValue.getKey().toStringUtf8().split("/");
+            if (layers.length > 4) {
+                serviceEvents.computeIfAbsent(ServiceKey.of(layers[4], environment), k -> new ArrayList<>())
+                        .add(event);
+            }
+        }
+
+        synchronized (environmentWatch) {
+            for (Map.Entry<ServiceKey, List<WatchEvent>> entry : serviceEvents.entrySet()) {
+                this.services.computeIfPresent(entry.getKey(), (k, service) -> service.withEvents(entry.getValue()));
+            }
+            environmentWatch.revision = Math.max(environmentWatch.revision, nextRevision);
+        }
+
+        return nextRevision;
+    }
+
+    /**
+     * Reads all services in the environment once and replaces cached services with newer states.
+     *
+     * @return revision, from which the watch continues
+     */
+    private long resyncEnvironment(String environment, EnvironmentWatch environmentWatch, ByteSequence prefix,
+                                   long revision) throws InterruptedException {
+
+        GetResponse getResponse;
+        try {
+            getResponse = this.etcd.getKVClient().get(prefix, GetOption.newBuilder().withPrefix(prefix).build())
+                    .get();
+        } catch (ExecutionException e) {
+            log.warning("Cannot resynchronise environment " + environment + ": " + e);
+            return revision;
+        }
+
+        long readRevision = getResponse.getHeader().getRevision();
+
+        Map<ServiceKey, List<KeyValue>> serviceKeyValues = new HashMap<>();
+        for (KeyValue keyValue : getResponse.getKvs()) {
+            String[] layers = keyValue.getKey().toStringUtf8().split("/");
+            if (layers.length > 4) {
+                serviceKeyValues.computeIfAbsent(ServiceKey.of(layers[4], environment), k -> new ArrayList<>())
+                        .add(keyValue);
+            }
+        }
+
+        synchronized (environmentWatch) {
+            for (ServiceKey versionsKey : this.services.keySet()) {
+                if (environment.equals(versionsKey.getEnvironment())) {
+                    Etcd3Service fetched = Etcd3Service.of(serviceKeyValues.getOrDefault(versionsKey,
+                            Collections.emptyList()), readRevision, this.clusterId);
+                    this.services.merge(versionsKey, fetched, (current, candidate) ->
+                            (current.getRevision() >= candidate.getRevision()) ? current : candidate);
+                }
+            }
+            environmentWatch.revision = Math.max(environmentWatch.revision, readRevision + 1);
+        }
+
+        log.info("Resynchronised environment " + environment + " at revision " + readRevision + ".");
+
+        return readRevision + 1;
+    }
+
+    /**
+     * State of the watch of an environment, guarded by itself.
+     */
+    private static final class EnvironmentWatch {
+
+        // revision, from which the watch continues, all earlier changes were applied to cached services
+        private long revision;
+
+        private EnvironmentWatch(long revision) {
+            this.revision = revision;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery;
+
+import com.coreos.jetcd.Client;
+import com.coreos.jetcd.KV;
+import com.coreos.jetcd.Lease;
+import com.coreos.jetcd.data.ByteSequence;
+import com.coreos.jetcd.kv.TxnResponse;
+import com.coreos.jetcd.lease.LeaseKeepAliveResponse;
+import com.coreos.jetcd.op.Cmp;
+import com.coreos.jetcd.op.CmpTarget;
+import com.coreos.jetcd.op.Op;
+import com.coreos.jetcd.options.PutOption;
+import com.kumuluz.ee.discovery.utils.Etcd3ServiceConfiguration;
+import com.kumuluz.ee.discovery.utils.Etcd3Utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * Registers services with etcd. All services, registered in this JVM, are attached to a single lease, which is kept
+ * alive by a single keep-alive stream. When the lease is lost, e.g. after etcd was unavailable for longer than its TTL,
+ * a new lease is granted and all services are registered again. The lease is granted with the shortest TTL of the
+ * registered services; when a service with a shorter TTL is registered later, the lease is replaced.
+ */
+public class Etcd3Registrator {
+
+    private static final Logger log = Logger.getLogger(Etcd3Registrator.class.getName());
+
+    private static final long DEREGISTER_TIMEOUT_S = 5;
+
+    private final Client etcd;
+    private final long retryDelayMs;
+
+    private final List<Etcd3ServiceConfiguration> services = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "kumuluzee-discovery-etcd3-registrator");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // guarded by this
+    private long leaseId;
+    private long leaseTtl;
+    private long replacedLeaseId;
+    private Lease.KeepAliveListener keepAliveListener;
+    private Thread keepAliveThread;
+
+    private volatile boolean closed;
+
+    /**
+     * @param retryDelayMs delay before granting a new lease or retrying a failed registration
+     */
+    public Etcd3Registrator(Client etcd, long retryDelayMs) {
+        this.etcd = etcd;
+        this.retryDelayMs = retryDelayMs;
+    }
+
+    public synchronized void register(Etcd3ServiceConfiguration serviceConfig) {
+
+        this.services.add(serviceConfig);
+
+        if (this.leaseId != 0 && serviceConfig.getTtl() < this.leaseTtl) {
+            log.info("TTL of service " + serviceConfig.getServiceKeyUrl() + " (" + serviceConfig.getTtl() +
+                    "s) is shorter than TTL of lease " + this.leaseId + " (" + this.leaseTtl +
+                    "s), granting a new lease.");
+
+            // the keep-alive thread grants a new lease, registers all services with it and revokes the current one
+            this.replacedLeaseId = this.leaseId;
+            this.leaseId = 0;
+            this.keepAliveListener.close();
+        } else if (this.leaseId != 0) {
+            registerService(serviceConfig, this.leaseId);
+        } else if (this.keepAliveThread == null) {
+            // services are registered once the lease is granted
+            this.keepAliveThread = new Thread(this::keepAlive, "kumuluzee-discovery-etcd3-keep-alive");
+            this.keepAliveThread.setDaemon(true);
+            this.keepAliveThread.start();
+        }
+    }
+
+    /**
+     * Grants the lease, registers all services and keeps the lease alive, until the registrator is closed.
+     */
+    private void keepAlive() {
+
+        while (!this.closed) {
+
+            long ttl = getMinTtl();
+
+            long grantedLeaseId = 0;
+            boolean replaced = false;
+            Lease.KeepAliveListener listener = null;
+            try {
+                grantedLeaseId = this.etcd.getLeaseClient().grant(ttl).get().getID();
+                log.info("Granted lease " + grantedLeaseId + " with TTL " + ttl + "s.");
+
+                synchronized (this) {
+                    if (this.closed) {
+                        return;
+                    }
+
+                    if (getMinTtl() < ttl) {
+                        log.info("Service with a shorter TTL was registered, granting a new lease.");
+                        revokeLease(grantedLeaseId);
+                        replaced = true;
+                        continue;
+                    }
+
+                    this.leaseId = grantedLeaseId;
+                    this.leaseTtl = ttl;
+
+                    List<CompletableFuture<Void>> registrations = new ArrayList<>();
+                    for (Etcd3ServiceConfiguration serviceConfig : this.services) {
+                        registrations.add(registerService(serviceConfig, grantedLeaseId));
+                    }
+
+                    if (this.replacedLeaseId != 0) {
+                        // keys are attached to the new lease, once they are registered again
+                        long revokedLeaseId = this.replacedLeaseId;
+                        CompletableFuture.allOf(registrations.toArray(new CompletableFuture[registrations.size()]))
+                                .whenComplete((result, t) -> revokeLease(revokedLeaseId));
+                        this.replacedLeaseId = 0;
+                    }
+
+                    listener = this.etcd.getLeaseClient().keepAlive(grantedLeaseId);
+                    this.keepAliveListener = listener;
+                }
+
+                while (!this.closed) {
+                    LeaseKeepAliveResponse response = listener.listen();
+                    if (response.getTTL() <= 0) {
+                        log.warning("Lease " + grantedLeaseId + " expired, registering services again.");
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException | RuntimeException e) {
+                synchronized (this) {
+                    replaced = grantedLeaseId != 0 && this.replacedLeaseId == grantedLeaseId;
+                }
+                if (!this.closed && !replaced) {
+                    log.warning("Cannot keep lease alive, registering services again: " + e);
+                }
+            } finally {
+                synchronized (this) {
+                    if (listener != null) {
+                        listener.close();
+                    }
+                    this.keepAliveListener = null;
+                    this.leaseId = 0;
+                }
+            }
+
+            if (replaced) {
+                continue;
+            }
+
+            try {
+                Thread.sleep(this.retryDelayMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private long getMinTtl() {
+
+        long ttl = Long.MAX_VALUE;
+        for (Etcd3ServiceConfiguration serviceConfig : this.services) {
+            ttl = Math.min(ttl, serviceConfig.getTtl());
+        }
+
+        return ttl;
+    }
+
+    private void revokeLease(long revokedLeaseId) {
+
+        this.etcd.getLeaseClient().revoke(revokedLeaseId).whenComplete((revokeResponse, t) -> {
+            if (t != null) {
+                log.warning("Cannot revoke lease " + revokedLeaseId + ", it expires after its TTL: " + t);
+            }
+        });
+    }
+
+    /**
+     * Writes all keys of the instance in a single transaction, so watchers never see a partially registered
+     * instance. Singleton services are only registered, if no other instance holds the singleton key.
+     *
+     * @return future, which completes after the first attempt of the registration
+     */
+    private CompletableFuture<Void> registerService(Etcd3ServiceConfiguration serviceConfig, long serviceLeaseId) {
+
+        log.info("Registering service with etcd. Service ID: " + serviceConfig.getServiceKeyUrl());
+
+        PutOption putOption = PutOption.newBuilder().withLeaseId(serviceLeaseId).build();
+        String instanceKey = serviceConfig.getServiceInstanceKey();
+
+        List<Op> ops = new ArrayList<>();
+        if (serviceConfig.getContainerUrl() != null) {
+            ops.add(Op.put(Etcd3Utils.toByteSequence(instanceKey + "/containerUrl"),
+                    Etcd3Utils.toByteSequence(serviceConfig.getContainerUrl()), putOption));
+        }
+        if (serviceConfig.getClusterId() != null) {
+            ops.add(Op.put(Etcd3Utils.toByteSequence(instanceKey + "/clusterId"),
+                    Etcd3Utils.toByteSequence(serviceConfig.getClusterId()), putOption));
+        }
+        ops.add(Op.put(Etcd3Utils.toByteSequence(serviceConfig.getServiceKeyUrl()),
+                Etcd3Utils.toByteSequence(serviceConfig.getBaseUrl()), putOption));
+
+        KV kvClient = this.etcd.getKVClient();
+        CompletableFuture<TxnResponse> commit;
+        if (serviceConfig.isSingleton()) {
+            ByteSequence singletonKey = Etcd3Utils.toByteSequence(Etcd3Utils.getSingletonKey(
+                    serviceConfig.getEnvironment(), serviceConfig.getServiceName(), serviceConfig.getServiceVersion()));
+            ByteSequence instanceKeyValue = Etcd3Utils.toByteSequence(instanceKey);
+
+            ops.add(Op.put(singletonKey, instanceKeyValue, putOption));
+            Op[] txnOps = ops.toArray(new Op[ops.size()]);
+
+            // when services are registered with a new lease, the singleton key may still be held by this instance
+            commit = kvClient.txn().If(new Cmp(singletonKey, Cmp.Op.EQUAL, CmpTarget.version(0))).Then(txnOps)
+                    .commit().thenCompose(txnResponse -> txnResponse.isSucceeded() ?
+                            CompletableFuture.completedFuture(txnResponse) :
+                            kvClient.txn().If(new Cmp(singletonKey, Cmp.Op.EQUAL, CmpTarget.value(instanceKeyValue)))
+                                    .Then(txnOps).commit());
+        } else {
+            commit = kvClient.txn().Then(ops.toArray(new Op[ops.size()])).commit();
+        }
+
+        return commit.handle((txnResponse, t) -> {
+            if (t != null) {
+                log.severe("Cannot register service " + serviceConfig.getServiceKeyUrl() + ": " + t);
+                retryRegisterService(serviceConfig, serviceLeaseId, TimeUnit.MILLISECONDS.toSeconds(
+                        this.retryDelayMs));
+            } else if (!txnResponse.isSucceeded()) {
+                log.warning("Instance was not registered. Trying to register a singleton microservice instance, " +
+                        "but another instance is already registered.");
+                // singleton key is released at the latest when the lease of the registered instance expires
+                retryRegisterService(serviceConfig, serviceLeaseId, serviceConfig.getTtl());
+            }
+            return null;
+        });
+    }
+
+    private void retryRegisterService(Etcd3ServiceConfiguration serviceConfig, long serviceLeaseId, long delayS) {
+        this.scheduler.schedule(() -> {
+            synchronized (this) {
+                // services are registered again with a new lease, once the current one is lost
+                if (!this.closed && this.leaseId == serviceLeaseId) {
+                    registerService(serviceConfig, serviceLeaseId);
+                }
+            }
+        }, Math.max(1, delayS), TimeUnit.SECONDS);
+    }
+
+    /**
+     * Revokes the lease, which removes all registered services from etcd at once.
+     */
+    public void deregister() {
+
+        List<Long> revokedLeaseIds = new ArrayList<>();
+        synchronized (this) {
+            this.closed = true;
+            // services are attached to the replaced lease, until they are registered with the new one
+            for (long revokedLeaseId : new long[]{this.leaseId, this.replacedLeaseId}) {
+                if (revokedLeaseId != 0) {
+                    revokedLeaseIds.add(revokedLeaseId);
+                }
+            }
+            this.leaseId = 0;
+            this.replacedLeaseId = 0;
+
+            if (this.keepAliveListener != null) {
+                this.keepAliveListener.close();
+            }
+            if (this.keepAliveThread != null) {
+                this.keepAliveThread.interrupt();
+            }
+        }
+        this.scheduler.shutdown();
+
+        for (long revokedLeaseId : revokedLeaseIds) {
+            log.info("Deregistering services with etcd. Revoking lease " + revokedLeaseId + ".");
+
+            try {
+                this.etcd.getLeaseClient().revoke(revokedLeaseId).get(DEREGISTER_TIMEOUT_S, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                log.severe("Cannot deregister services. Error: " + e.toString());
+            }
+        }
+    }
+}
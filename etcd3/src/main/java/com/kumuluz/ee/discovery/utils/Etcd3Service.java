@@ -0,0 +1,260 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import com.coreos.jetcd.data.KeyValue;
+import com.coreos.jetcd.watch.WatchEvent;
+import com.kumuluz.ee.discovery.loadbalancing.ConsistentHashRing;
+import com.vdurmont.semver4j.Requirement;
+import com.vdurmont.semver4j.Semver;
+import com.vdurmont.semver4j.SemverException;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * Immutable state of all versions of a service in an environment, as read from etcd at a revision. Instance URLs
+ * and versions are resolved once per change, so lookups do not allocate.
+ */
+public final class Etcd3Service {
+
+    private static final Logger log = Logger.getLogger(Etcd3Service.class.getName());
+
+    // /environments/{env}/services/{name}/{version}/instances/{id}/{field}
+    private static final int INSTANCE_KEY_LAYERS = 8;
+    private static final int VERSION_LAYER = 5;
+
+    private final String clusterId;
+    private final long revision;
+    private final Map<String, Map<String, String>> instanceFields;
+    private final Map<String, Long> instanceLeases;
+
+    private final Map<String, List<URL>> urls;
+    private final Map<String, Map<String, String>> instanceKeys;
+    private final List<String> versions;
+    private final List<Semver> sortedSemvers;
+    private final ConcurrentMap<String, ConsistentHashRing> rings = new ConcurrentHashMap<>();
+
+    private Etcd3Service(String clusterId, long revision, Map<String, Map<String, String>> instanceFields,
+                         Map<String, Long> instanceLeases) {
+        this.clusterId = clusterId;
+        this.revision = revision;
+        this.instanceFields = instanceFields;
+        this.instanceLeases = instanceLeases;
+
+        Map<String, List<URL>> resolvedUrls = new HashMap<>();
+        // keyed by URL strings, URL.hashCode resolves host names
+        Map<String, Map<String, String>> resolvedInstanceKeys = new HashMap<>();
+        for (Map.Entry<String, Map<String, String>> instance : instanceFields.entrySet()) {
+            Map<String, String> fields = instance.getValue();
+            String url = fields.get("url");
+            if (url == null || Etcd3Utils.isInactiveStatus(fields.get("status"))) {
+                continue;
+            }
+
+            String containerUrl = fields.get("containerUrl");
+            boolean inCluster = clusterId != null && clusterId.equals(fields.get("clusterId")) &&
+                    containerUrl != null && !containerUrl.isEmpty();
+            try {
+                URL resolvedUrl = new URL(inCluster ? containerUrl : url);
+                String version = instance.getKey().split("/")[VERSION_LAYER];
+
+                resolvedUrls.computeIfAbsent(version, v -> new ArrayList<>()).add(resolvedUrl);
+                resolvedInstanceKeys.computeIfAbsent(version, v -> new HashMap<>()).put(
+                        resolvedUrl.toString(), instance.getKey());
+            } catch (MalformedURLException e) {
+                log.severe("Malformed URL exception: " + e.toString());
+            }
+        }
+        resolvedUrls.replaceAll((version, versionUrls) -> Collections.unmodifiableList(versionUrls));
+
+        this.urls = resolvedUrls;
+        this.instanceKeys = resolvedInstanceKeys;
+        this.versions = Collections.unmodifiableList(new ArrayList<>(resolvedUrls.keySet()));
+
+        List<Semver> semvers = new ArrayList<>(this.versions.size());
+        for (String version : this.versions) {
+            try {
+                semvers.add(new Semver(version, Semver.SemverType.NPM));
+            } catch (SemverException ignored) {
+            }
+        }
+        semvers.sort(Collections.reverseOrder());
+        this.sortedSemvers = semvers;
+    }
+
+    /**
+     * @param keyValues keys of the service, read with a prefix read
+     * @param revision  revision of the read
+     * @param clusterId cluster id of this instance, used to resolve container URLs of instances in the same cluster
+     */
+    public static Etcd3Service of(List<KeyValue> keyValues, long revision, String clusterId) {
+
+        Map<String, Map<String, String>> instanceFields = new HashMap<>();
+        Map<String, Long> instanceLeases = new HashMap<>();
+        for (KeyValue keyValue : keyValues) {
+            put(instanceFields, instanceLeases, keyValue);
+        }
+
+        return new Etcd3Service(clusterId, revision, instanceFields, instanceLeases);
+    }
+
+    /**
+     * @return empty service, which is not cached
+     */
+    public static Etcd3Service empty() {
+        return new Etcd3Service(null, 0, Collections.emptyMap(), Collections.emptyMap());
+    }
+
+    /**
+     * Applies watch events of this service. Events, which are already included in this state, are skipped.
+     *
+     * @return new state, or this state if no event was applied
+     */
+    public Etcd3Service withEvents(List<WatchEvent> events) {
+
+        Map<String, Map<String, String>> newInstanceFields = null;
+        Map<String, Long> newInstanceLeases = null;
+        long newRevision = revision;
+
+        for (WatchEvent event : events) {
+            KeyValue keyValue = event.getKeyValue();
+            if (keyValue.getModRevision() <= revision) {
+                continue;
+            }
+
+            if (newInstanceFields == null) {
+                newInstanceFields = new HashMap<>();
+                for (Map.Entry<String, Map<String, String>> instance : instanceFields.entrySet()) {
+                    newInstanceFields.put(instance.getKey(), new HashMap<>(instance.getValue()));
+                }
+                newInstanceLeases = new HashMap<>(instanceLeases);
+            }
+
+            if (event.getEventType() == WatchEvent.EventType.PUT) {
+                put(newInstanceFields, newInstanceLeases, keyValue);
+            } else if (event.getEventType() == WatchEvent.EventType.DELETE) {
+                remove(newInstanceFields, newInstanceLeases, keyValue);
+            }
+
+            newRevision = Math.max(newRevision, keyValue.getModRevision());
+        }
+
+        if (newInstanceFields == null) {
+            return this;
+        }
+
+        return new Etcd3Service(clusterId, newRevision, newInstanceFields, newInstanceLeases);
+    }
+
+    private static void put(Map<String, Map<String, String>> instanceFields, Map<String, Long> instanceLeases,
+                            KeyValue keyValue) {
+        String[] layers = keyValue.getKey().toStringUtf8().split("/");
+        if (layers.length != INSTANCE_KEY_LAYERS + 1) {
+            return;
+        }
+
+        String instanceKey = String.join("/", Arrays.copyOf(layers, INSTANCE_KEY_LAYERS));
+        instanceFields.computeIfAbsent(instanceKey, k -> new HashMap<>()).put(layers[INSTANCE_KEY_LAYERS],
+                keyValue.getValue().toStringUtf8());
+        if ("url".equals(layers[INSTANCE_KEY_LAYERS])) {
+            instanceLeases.put(instanceKey, keyValue.getLease());
+        }
+    }
+
+    private static void remove(Map<String, Map<String, String>> instanceFields, Map<String, Long> instanceLeases,
+                               KeyValue keyValue) {
+        String[] layers = keyValue.getKey().toStringUtf8().split("/");
+        if (layers.length != INSTANCE_KEY_LAYERS + 1) {
+            return;
+        }
+
+        String instanceKey = String.join("/", Arrays.copyOf(layers, INSTANCE_KEY_LAYERS));
+        Map<String, String> fields = instanceFields.get(instanceKey);
+        if (fields != null) {
+            fields.remove(layers[INSTANCE_KEY_LAYERS]);
+            if (fields.isEmpty()) {
+                instanceFields.remove(instanceKey);
+                instanceLeases.remove(instanceKey);
+            }
+        }
+    }
+
+    public long getRevision() {
+        return revision;
+    }
+
+    /**
+     * @return unmodifiable list of resolved URLs of active instances of the version
+     */
+    public List<URL> getUrls(String version) {
+        return urls.getOrDefault(version, Collections.emptyList());
+    }
+
+    /**
+     * @return unmodifiable list of versions with active instances
+     */
+    public List<String> getVersions() {
+        return versions;
+    }
+
+    /**
+     * @return key of the active instance of the version with the given resolved URL, or null if there is none
+     */
+    public String getInstanceKey(String version, URL url) {
+        Map<String, String> versionInstanceKeys = instanceKeys.get(version);
+
+        return (versionInstanceKeys == null) ? null : versionInstanceKeys.get(url.toString());
+    }
+
+    /**
+     * @return lease of the instance, or 0 if the instance is not attached to a lease
+     */
+    public long getInstanceLease(String instanceKey) {
+        return instanceLeases.getOrDefault(instanceKey, 0L);
+    }
+
+    /**
+     * @return consistent hash ring of resolved instance URLs of the version
+     */
+    public ConsistentHashRing getRing(String version) {
+        return rings.computeIfAbsent(version, v -> ConsistentHashRing.build(getUrls(v)));
+    }
+
+    /**
+     * Resolves version range to the latest satisfying version.
+     *
+     * @return latest version, satisfying the range, or empty if none does
+     */
+    public Optional<String> resolve(Requirement requirement) {
+        for (Semver semver : sortedSemvers) {
+            if (semver.satisfies(requirement)) {
+                return Optional.of(semver.getOriginalValue());
+            }
+        }
+
+        return Optional.empty();
+    }
+}
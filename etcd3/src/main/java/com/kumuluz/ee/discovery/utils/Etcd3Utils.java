@@ -0,0 +1,63 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery.utils;
+
+import com.coreos.jetcd.data.ByteSequence;
+
+/**
+ * etcd v3 key utils. Keys follow the layout of the etcd v2 extension, with instance fields stored as separate keys.
+ */
+public class Etcd3Utils {
+
+    public static ByteSequence toByteSequence(String value) {
+        return ByteSequence.fromString(value);
+    }
+
+    public static String getLastKeyLayer(String key) {
+        String[] splittedKey = key.split("/");
+        return splittedKey[splittedKey.length - 1];
+    }
+
+    public static String getEnvironmentServicesKey(String environment) {
+        return "/environments/" + environment + "/services/";
+    }
+
+    public static String getServiceKey(String environment, String serviceName) {
+        return "/environments/" + environment + "/services/" + serviceName + "/";
+    }
+
+    public static String getServiceKeyInstance(String environment, String serviceName, String serviceVersion, String
+            serviceId) {
+        return "/environments/" + environment + "/services/" + serviceName + "/" + serviceVersion + "/instances/" +
+                serviceId;
+    }
+
+    /**
+     * @return true, if instances with the given status are not selected by clients, i.e. disabled or draining
+     */
+    public static boolean isInactiveStatus(String status) {
+        return "disabled".equals(status) || "draining".equals(status);
+    }
+
+    public static String getSingletonKey(String environment, String serviceName, String serviceVersion) {
+        return "/environments/" + environment + "/singletons/" + serviceName + "/" + serviceVersion;
+    }
+}
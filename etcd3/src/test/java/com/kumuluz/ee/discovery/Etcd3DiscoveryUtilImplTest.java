@@ -0,0 +1,219 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery;
+
+import com.kumuluz.ee.discovery.loadbalancing.LoadBalancer;
+import com.kumuluz.ee.discovery.utils.ServiceHandle;
+import com.kumuluz.ee.discovery.utils.ServiceKey;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link Etcd3DiscoveryUtilImpl} against {@link FakeEtcdServer}.
+ */
+public class Etcd3DiscoveryUtilImplTest {
+
+    private static final String HOSTS = "kumuluzee.discovery.etcd.hosts";
+    private static final String INSTANCES = "/environments/dev/services/customer-service/1.0.0/instances/";
+    private static final String ORDER_INSTANCES = "/environments/dev/services/order-service/1.0.0/instances/";
+    private static final long TIMEOUT_MS = 10000;
+
+    private FakeEtcdServer server;
+    private Etcd3DiscoveryUtilImpl discoveryUtil;
+
+    @Before
+    public void start() throws Exception {
+        server = new FakeEtcdServer();
+        System.setProperty(HOSTS, server.getEndpoint());
+
+        discoveryUtil = new Etcd3DiscoveryUtilImpl();
+        discoveryUtil.init();
+    }
+
+    @After
+    public void stop() {
+        System.clearProperty(HOSTS);
+
+        discoveryUtil.destroy();
+        server.shutdown();
+    }
+
+    @Test
+    public void resumesWatchAfterCompaction() {
+
+        server.put(INSTANCES + "a/url", "http://localhost:8081", 0, true);
+
+        assertEquals(urls("http://localhost:8081"), getInstances());
+        await(() -> server.getWatchStartRevisions().size() == 1 ? true : null);
+        assertEquals(server.getRevision() + 1, (long) server.getWatchStartRevisions().get(0));
+
+        // the watch misses the change, which is compacted before the watch reads it
+        server.put(INSTANCES + "b/url", "http://localhost:8082", 0, false);
+        server.compact();
+
+        await(() -> server.getWatchStartRevisions().size() == 2 ? true : null);
+        assertEquals(server.getRevision() + 1, (long) server.getWatchStartRevisions().get(1));
+        assertEquals(urls("http://localhost:8081", "http://localhost:8082"), getInstances());
+
+        server.put(INSTANCES + "c/url", "http://localhost:8083", 0, true);
+
+        await(() -> getInstances().size() == 3 ? true : null);
+        assertEquals(2, server.getRanges());
+    }
+
+    @Test
+    public void readsServiceAgainIfWatchPassedItsRevisionBeforeItWasCached() throws InterruptedException {
+
+        server.put(INSTANCES + "a/url", "http://localhost:8081", 0, true);
+        assertEquals(urls("http://localhost:8081"), getInstances());
+        await(() -> server.getWatchStartRevisions().size() == 1 ? true : null);
+
+        // the watch applies a change of order-service, while its read is in progress
+        server.holdNextRange();
+        CompletableFuture<Optional<List<URL>>> orderInstances = discoveryUtil
+                .getServiceInstancesAsync("order-service", "1.0.0", "dev").toCompletableFuture();
+        assertTrue(server.awaitHeldRange());
+
+        server.put(ORDER_INSTANCES + "b/url", "http://localhost:8092", 0, true);
+        server.put(INSTANCES + "c/url", "http://localhost:8083", 0, true);
+        await(() -> getInstances().size() == 2 ? true : null);
+
+        server.releaseRange();
+        assertTrue(orderInstances.join().orElseThrow(AssertionError::new).isEmpty());
+
+        assertEquals(urls("http://localhost:8092"), getInstances("order-service"));
+    }
+
+    @Test
+    public void keepsLoadBalancersOfTheSameServiceSeparate() {
+
+        server.put(INSTANCES + "a/url", "http://localhost:8081", 0, true);
+        server.put(INSTANCES + "b/url", "http://localhost:8082", 0, true);
+        assertEquals(urls("http://localhost:8081", "http://localhost:8082"), getInstances());
+
+        RecordingLoadBalancer loadBalancer = new RecordingLoadBalancer();
+        ServiceHandle serviceHandle = new ServiceHandle(discoveryUtil, "customer-service", "1.0.0", "dev",
+                loadBalancer);
+
+        URL selected = serviceHandle.next().orElseThrow(AssertionError::new);
+        assertEquals(1, loadBalancer.selections.get());
+
+        // lookups without a load balancer keep using the configured round-robin strategy
+        Set<String> defaultSelections = new HashSet<>();
+        for (int i = 0; i < 2; i++) {
+            URL url = discoveryUtil.getServiceInstance("customer-service", "1.0.0", "dev")
+                    .orElseThrow(AssertionError::new);
+            defaultSelections.add(url.toString());
+            discoveryUtil.releaseServiceInstance("customer-service", "1.0.0", "dev", url);
+        }
+        assertEquals(urls("http://localhost:8081", "http://localhost:8082"), defaultSelections);
+        assertEquals(1, loadBalancer.selections.get());
+        assertEquals(0, loadBalancer.releases.get());
+
+        serviceHandle.release(selected);
+        serviceHandle.release(selected, 10, TimeUnit.MILLISECONDS, true);
+        assertEquals(2, loadBalancer.releases.get());
+    }
+
+    private Set<String> getInstances() {
+        return getInstances("customer-service");
+    }
+
+    private Set<String> getInstances(String serviceName) {
+
+        List<URL> instances = discoveryUtil.getServiceInstances(serviceName, "1.0.0", "dev")
+                .orElseThrow(AssertionError::new);
+
+        Set<String> urls = new HashSet<>();
+        for (URL instance : instances) {
+            urls.add(instance.toString());
+        }
+
+        return urls;
+    }
+
+    private static Set<String> urls(String... urls) {
+
+        Set<String> urlSet = new HashSet<>();
+        for (String url : urls) {
+            urlSet.add(url);
+        }
+
+        return urlSet;
+    }
+
+    private static <T> T await(Supplier<T> condition) {
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            T result = condition.get();
+            if (result != null) {
+                return result;
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        throw new AssertionError("Condition not met in " + TIMEOUT_MS + " ms.");
+    }
+
+    /**
+     * Load balancer, which selects the first instance and counts selections and releases.
+     */
+    private static final class RecordingLoadBalancer implements LoadBalancer {
+
+        private final AtomicInteger selections = new AtomicInteger();
+        private final AtomicInteger releases = new AtomicInteger();
+
+        @Override
+        public String getName() {
+            return "recording";
+        }
+
+        @Override
+        public int select(ServiceKey serviceKey, List<URL> instances) {
+            selections.incrementAndGet();
+            return 0;
+        }
+
+        @Override
+        public void release(ServiceKey serviceKey, URL instance) {
+            releases.incrementAndGet();
+        }
+    }
+}
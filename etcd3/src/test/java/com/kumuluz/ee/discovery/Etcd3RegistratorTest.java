@@ -0,0 +1,142 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery;
+
+import com.coreos.jetcd.Client;
+import com.coreos.jetcd.api.KeyValue;
+import com.kumuluz.ee.discovery.utils.Etcd3ServiceConfiguration;
+import com.kumuluz.ee.discovery.utils.Etcd3Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link Etcd3Registrator} against {@link FakeEtcdServer}.
+ */
+public class Etcd3RegistratorTest {
+
+    private static final long TIMEOUT_MS = 10000;
+
+    private FakeEtcdServer server;
+    private Client etcd;
+    private Etcd3Registrator registrator;
+
+    @Before
+    public void start() throws Exception {
+        server = new FakeEtcdServer();
+        etcd = Client.builder().endpoints(server.getEndpoint()).build();
+        registrator = new Etcd3Registrator(etcd, 100);
+    }
+
+    @After
+    public void stop() {
+        registrator.deregister();
+        etcd.close();
+        server.shutdown();
+    }
+
+    @Test
+    public void registersServicesAgainAfterLeaseIsLost() {
+
+        Etcd3ServiceConfiguration service = service("customer-service", 3, false);
+        registrator.register(service);
+
+        long lostLeaseId = await(() -> server.get(service.getServiceKeyUrl())).getLease();
+        server.expire(lostLeaseId);
+
+        KeyValue url = await(() -> {
+            KeyValue keyValue = server.get(service.getServiceKeyUrl());
+            return (keyValue != null && keyValue.getLease() != lostLeaseId) ? keyValue : null;
+        });
+        assertTrue(server.hasLease(url.getLease()));
+        assertEquals("http://localhost:8080", url.getValue().toStringUtf8());
+    }
+
+    @Test
+    public void retriesSingletonRegistrationUntilSingletonKeyIsReleased() {
+
+        String singletonKey = Etcd3Utils.getSingletonKey("dev", "singleton-service", "1.0.0");
+        long otherLeaseId = server.grant(60);
+        server.put(singletonKey, "/environments/dev/services/singleton-service/1.0.0/instances/other", otherLeaseId,
+                true);
+
+        Etcd3ServiceConfiguration service = service("singleton-service", 1, true);
+        registrator.register(service);
+
+        // compared with an absent key and with the own instance key
+        await(() -> server.getTxns() >= 2 ? true : null);
+        assertNull(server.get(service.getServiceKeyUrl()));
+
+        server.expire(otherLeaseId);
+
+        await(() -> server.get(service.getServiceKeyUrl()));
+        assertEquals(service.getServiceInstanceKey(), server.get(singletonKey).getValue().toStringUtf8());
+    }
+
+    @Test
+    public void grantsNewLeaseForServiceWithShorterTtl() {
+
+        Etcd3ServiceConfiguration singleton = service("singleton-service", 30, true);
+        registrator.register(singleton);
+        long replacedLeaseId = await(() -> server.get(singleton.getServiceKeyUrl())).getLease();
+
+        Etcd3ServiceConfiguration service = service("customer-service", 2, false);
+        registrator.register(service);
+
+        long leaseId = await(() -> server.get(service.getServiceKeyUrl())).getLease();
+        assertEquals(Arrays.asList(30L, 2L), server.getGrantedTtls());
+
+        // the singleton keeps its key, and the replaced lease is revoked once services are moved to the new lease
+        await(() -> server.hasLease(replacedLeaseId) ? null : true);
+        assertEquals(leaseId, server.get(singleton.getServiceKeyUrl()).getLease());
+        assertEquals(singleton.getServiceInstanceKey(), server.get(Etcd3Utils.getSingletonKey("dev",
+                "singleton-service", "1.0.0")).getValue().toStringUtf8());
+    }
+
+    private static Etcd3ServiceConfiguration service(String serviceName, long ttl, boolean singleton) {
+        return new Etcd3ServiceConfiguration(serviceName, "1.0.0", "dev", ttl, singleton, "http://localhost:8080",
+                null, null);
+    }
+
+    private static <T> T await(Supplier<T> condition) {
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            T result = condition.get();
+            if (result != null) {
+                return result;
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        throw new AssertionError("Condition not met in " + TIMEOUT_MS + " ms.");
+    }
+}
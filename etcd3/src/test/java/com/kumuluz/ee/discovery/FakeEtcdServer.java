@@ -0,0 +1,444 @@
+/*
+ *  Copyright (c) 2014-2017 Kumuluz and/or its affiliates
+ *  and other contributors as indicated by the @author tags and
+ *  the contributor list.
+ *
+ *  Licensed under the MIT License (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  https://opensource.org/licenses/MIT
+ *
+ *  The software is provided "AS IS", WITHOUT WARRANTY OF ANY KIND, express or
+ *  implied, including but not limited to the warranties of merchantability,
+ *  fitness for a particular purpose and noninfringement. in no event shall the
+ *  authors or copyright holders be liable for any claim, damages or other
+ *  liability, whether in an action of contract, tort or otherwise, arising from,
+ *  out of or in connection with the software or the use or other dealings in the
+ *  software. See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+package com.kumuluz.ee.discovery;
+
+import com.coreos.jetcd.api.*;
+import com.google.protobuf.ByteString;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.netty.NettyServerBuilder;
+import io.grpc.stub.StreamObserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory etcd v3 server for tests. Serves the KV, lease and watch gRPC services of a single member on a local
+ * port. Watches receive events of changes after they are created; history is not kept. The response to a range
+ * can be held back to let tests interleave changes with reads.
+ */
+class FakeEtcdServer {
+
+    private final Server server;
+
+    // guarded by this
+    private final TreeMap<String, KeyValue> keyValues = new TreeMap<>();
+    private final Map<Long, Long> leases = new HashMap<>();
+    private final Map<Long, Watch> watches = new HashMap<>();
+    private final List<Long> grantedTtls = new ArrayList<>();
+    private final List<Long> watchStartRevisions = new ArrayList<>();
+    private long revision = 1;
+    private long nextLeaseId = 1;
+    private long nextWatchId = 1;
+    private int txns;
+    private int ranges;
+
+    private volatile CountDownLatch heldRange;
+    private final CountDownLatch rangeReceived = new CountDownLatch(1);
+
+    FakeEtcdServer() throws IOException {
+        this.server = NettyServerBuilder.forAddress(new InetSocketAddress("127.0.0.1", 0))
+                .addService(new KVService())
+                .addService(new LeaseService())
+                .addService(new WatchService())
+                .build()
+                .start();
+    }
+
+    String getEndpoint() {
+        return "http://127.0.0.1:" + this.server.getPort();
+    }
+
+    void shutdown() {
+        CountDownLatch held = this.heldRange;
+        if (held != null) {
+            held.countDown();
+        }
+        this.server.shutdownNow();
+    }
+
+    /**
+     * Holds back the response to the next range, read at the current revision, until {@link #releaseRange()} is
+     * called.
+     */
+    void holdNextRange() {
+        this.heldRange = new CountDownLatch(1);
+    }
+
+    boolean awaitHeldRange() throws InterruptedException {
+        return this.rangeReceived.await(10, TimeUnit.SECONDS);
+    }
+
+    void releaseRange() {
+        this.heldRange.countDown();
+    }
+
+    synchronized long getRevision() {
+        return this.revision;
+    }
+
+    synchronized KeyValue get(String key) {
+        return this.keyValues.get(key);
+    }
+
+    synchronized List<Long> getGrantedTtls() {
+        return new ArrayList<>(this.grantedTtls);
+    }
+
+    synchronized List<Long> getWatchStartRevisions() {
+        return new ArrayList<>(this.watchStartRevisions);
+    }
+
+    synchronized boolean hasLease(long leaseId) {
+        return this.leases.containsKey(leaseId);
+    }
+
+    synchronized int getTxns() {
+        return this.txns;
+    }
+
+    synchronized int getRanges() {
+        return this.ranges;
+    }
+
+    synchronized long grant(long ttl) {
+        long leaseId = this.nextLeaseId++;
+        this.leases.put(leaseId, ttl);
+        this.grantedTtls.add(ttl);
+
+        return leaseId;
+    }
+
+    /**
+     * Removes the lease and its keys, as if it expired. Keep-alives of the lease are answered with TTL 0.
+     */
+    synchronized void expire(long leaseId) {
+        this.leases.remove(leaseId);
+
+        List<String> attachedKeys = new ArrayList<>();
+        for (KeyValue keyValue : this.keyValues.values()) {
+            if (keyValue.getLease() == leaseId) {
+                attachedKeys.add(keyValue.getKey().toStringUtf8());
+            }
+        }
+        for (String key : attachedKeys) {
+            delete(key);
+        }
+    }
+
+    /**
+     * Writes the key. If notify is false, watches miss the change, as if it was compacted before they read it.
+     */
+    synchronized void put(String key, String value, long leaseId, boolean notify) {
+
+        KeyValue current = this.keyValues.get(key);
+        this.revision++;
+        KeyValue keyValue = KeyValue.newBuilder()
+                .setKey(ByteString.copyFromUtf8(key))
+                .setValue(ByteString.copyFromUtf8(value))
+                .setLease(leaseId)
+                .setCreateRevision(current == null ? this.revision : current.getCreateRevision())
+                .setModRevision(this.revision)
+                .setVersion(current == null ? 1 : current.getVersion() + 1)
+                .build();
+        this.keyValues.put(key, keyValue);
+
+        if (notify) {
+            notifyWatches(Event.newBuilder().setType(Event.EventType.PUT).setKv(keyValue).build());
+        }
+    }
+
+    /**
+     * Compacts the history up to the current revision, which ends all watches with the compacted revision.
+     */
+    synchronized void compact() {
+        for (Map.Entry<Long, Watch> watch : this.watches.entrySet()) {
+            watch.getValue().observer.onNext(WatchResponse.newBuilder()
+                    .setHeader(header())
+                    .setWatchId(watch.getKey())
+                    .setCompactRevision(this.revision)
+                    .build());
+        }
+        this.watches.clear();
+    }
+
+    private void delete(String key) {
+        this.revision++;
+        this.keyValues.remove(key);
+
+        notifyWatches(Event.newBuilder().setType(Event.EventType.DELETE).setKv(KeyValue.newBuilder()
+                .setKey(ByteString.copyFromUtf8(key)).setModRevision(this.revision)).build());
+    }
+
+    private void notifyWatches(Event event) {
+        String key = event.getKv().getKey().toStringUtf8();
+        for (Map.Entry<Long, Watch> watch : this.watches.entrySet()) {
+            if (watch.getValue().matches(key)) {
+                watch.getValue().observer.onNext(WatchResponse.newBuilder()
+                        .setHeader(header())
+                        .setWatchId(watch.getKey())
+                        .addEvents(event)
+                        .build());
+            }
+        }
+    }
+
+    private ResponseHeader header() {
+        return ResponseHeader.newBuilder().setRevision(this.revision).build();
+    }
+
+    private static boolean inRange(String key, ByteString start, ByteString end) {
+        String startKey = start.toStringUtf8();
+        if (end.isEmpty()) {
+            return key.equals(startKey);
+        }
+        return key.compareTo(startKey) >= 0 && key.compareTo(end.toStringUtf8()) < 0;
+    }
+
+    private boolean compare(Compare compare) {
+
+        KeyValue keyValue = this.keyValues.get(compare.getKey().toStringUtf8());
+
+        int result;
+        switch (compare.getTarget()) {
+            case VERSION:
+                result = Long.compare(keyValue == null ? 0 : keyValue.getVersion(), compare.getVersion());
+                break;
+            case VALUE:
+                if (keyValue == null) {
+                    return false;
+                }
+                result = keyValue.getValue().toStringUtf8().compareTo(compare.getValue().toStringUtf8());
+                break;
+            default:
+                throw new UnsupportedOperationException(compare.getTarget().toString());
+        }
+
+        switch (compare.getResult()) {
+            case EQUAL:
+                return result == 0;
+            case NOT_EQUAL:
+                return result != 0;
+            case GREATER:
+                return result > 0;
+            case LESS:
+                return result < 0;
+            default:
+                throw new UnsupportedOperationException(compare.getResult().toString());
+        }
+    }
+
+    private static class Watch {
+
+        private final ByteString key;
+        private final ByteString rangeEnd;
+        private final StreamObserver<WatchResponse> observer;
+
+        private Watch(ByteString key, ByteString rangeEnd, StreamObserver<WatchResponse> observer) {
+            this.key = key;
+            this.rangeEnd = rangeEnd;
+            this.observer = observer;
+        }
+
+        private boolean matches(String changedKey) {
+            return inRange(changedKey, this.key, this.rangeEnd);
+        }
+    }
+
+    private class KVService extends KVGrpc.KVImplBase {
+
+        @Override
+        public void range(RangeRequest request, StreamObserver<RangeResponse> responseObserver) {
+
+            RangeResponse.Builder response = RangeResponse.newBuilder();
+            synchronized (FakeEtcdServer.this) {
+                ranges++;
+                for (KeyValue keyValue : keyValues.values()) {
+                    if (inRange(keyValue.getKey().toStringUtf8(), request.getKey(), request.getRangeEnd())) {
+                        response.addKvs(keyValue);
+                    }
+                }
+                response.setCount(response.getKvsCount()).setHeader(header());
+            }
+
+            CountDownLatch held = heldRange;
+            if (held != null && rangeReceived.getCount() > 0) {
+                rangeReceived.countDown();
+                try {
+                    held.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void txn(TxnRequest request, StreamObserver<TxnResponse> responseObserver) {
+
+            TxnResponse.Builder response = TxnResponse.newBuilder();
+            synchronized (FakeEtcdServer.this) {
+                txns++;
+
+                boolean succeeded = true;
+                for (Compare compare : request.getCompareList()) {
+                    succeeded &= compare(compare);
+                }
+
+                List<RequestOp> ops = succeeded ? request.getSuccessList() : request.getFailureList();
+                for (RequestOp op : ops) {
+                    long leaseId = op.getRequestPut().getLease();
+                    if (op.getRequestCase() != RequestOp.RequestCase.REQUEST_PUT) {
+                        throw new UnsupportedOperationException(op.getRequestCase().toString());
+                    } else if (leaseId != 0 && !leases.containsKey(leaseId)) {
+                        responseObserver.onError(Status.NOT_FOUND
+                                .withDescription("etcdserver: requested lease not found").asRuntimeException());
+                        return;
+                    }
+                }
+                for (RequestOp op : ops) {
+                    PutRequest put = op.getRequestPut();
+                    FakeEtcdServer.this.put(put.getKey().toStringUtf8(), put.getValue().toStringUtf8(),
+                            put.getLease(), true);
+                    response.addResponses(ResponseOp.newBuilder()
+                            .setResponsePut(PutResponse.newBuilder().setHeader(header())));
+                }
+
+                response.setSucceeded(succeeded).setHeader(header());
+            }
+
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        }
+    }
+
+    private class LeaseService extends LeaseGrpc.LeaseImplBase {
+
+        @Override
+        public void leaseGrant(LeaseGrantRequest request, StreamObserver<LeaseGrantResponse> responseObserver) {
+
+            LeaseGrantResponse response;
+            synchronized (FakeEtcdServer.this) {
+                long leaseId = grant(request.getTTL());
+                response = LeaseGrantResponse.newBuilder().setID(leaseId).setTTL(request.getTTL())
+                        .setHeader(header()).build();
+            }
+
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void leaseRevoke(LeaseRevokeRequest request, StreamObserver<LeaseRevokeResponse> responseObserver) {
+
+            LeaseRevokeResponse response;
+            synchronized (FakeEtcdServer.this) {
+                expire(request.getID());
+                response = LeaseRevokeResponse.newBuilder().setHeader(header()).build();
+            }
+
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public StreamObserver<LeaseKeepAliveRequest> leaseKeepAlive(
+                StreamObserver<LeaseKeepAliveResponse> responseObserver) {
+
+            return new StreamObserver<LeaseKeepAliveRequest>() {
+
+                @Override
+                public void onNext(LeaseKeepAliveRequest request) {
+                    synchronized (FakeEtcdServer.this) {
+                        responseObserver.onNext(LeaseKeepAliveResponse.newBuilder()
+                                .setID(request.getID())
+                                .setTTL(leases.getOrDefault(request.getID(), 0L))
+                                .setHeader(header())
+                                .build());
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                }
+
+                @Override
+                public void onCompleted() {
+                    responseObserver.onCompleted();
+                }
+            };
+        }
+    }
+
+    private class WatchService extends WatchGrpc.WatchImplBase {
+
+        @Override
+        public StreamObserver<WatchRequest> watch(StreamObserver<WatchResponse> responseObserver) {
+
+            return new StreamObserver<WatchRequest>() {
+
+                @Override
+                public void onNext(WatchRequest request) {
+                    synchronized (FakeEtcdServer.this) {
+                        if (request.hasCreateRequest()) {
+                            WatchCreateRequest createRequest = request.getCreateRequest();
+                            long watchId = nextWatchId++;
+                            watches.put(watchId, new Watch(createRequest.getKey(), createRequest.getRangeEnd(),
+                                    responseObserver));
+                            watchStartRevisions.add(createRequest.getStartRevision());
+
+                            responseObserver.onNext(WatchResponse.newBuilder().setHeader(header())
+                                    .setWatchId(watchId).setCreated(true).build());
+                        } else if (request.hasCancelRequest()) {
+                            long watchId = request.getCancelRequest().getWatchId();
+                            watches.remove(watchId);
+
+                            responseObserver.onNext(WatchResponse.newBuilder().setHeader(header())
+                                    .setWatchId(watchId).setCanceled(true).build());
+                        }
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    removeWatches();
+                }
+
+                @Override
+                public void onCompleted() {
+                    removeWatches();
+                    responseObserver.onCompleted();
+                }
+
+                private void removeWatches() {
+                    synchronized (FakeEtcdServer.this) {
+                        watches.values().removeIf(watch -> watch.observer == responseObserver);
+                    }
+                }
+            };
+        }
+    }
+}